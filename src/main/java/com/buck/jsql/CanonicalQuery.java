@@ -0,0 +1,190 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buck.jsql;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The canonical form of query text, produced from the token stream of the
+ * {@link SQLParser}. Comments and white space are dropped, keywords are
+ * upper cased (save those that may also name a property), and tokens are
+ * separated by single spaces. Optionally,
+ * numeric and string literals are lifted out of the text into implicit
+ * positional parameters, so that queries differing only in their literals
+ * share one canonical text (and hence one parsed query).
+ * <p/>
+ * Literals are not lifted from LIKE patterns and ESCAPE characters, which
+ * are compiled when the query is parsed, nor from IN lists, which are
+ * hashed when the query is parsed. Text that already contains parameters
+ * is only normalized, since lifting literals would renumber them.
+ *
+ * @author Robert J. Buck
+ */
+public final class CanonicalQuery {
+
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private final String text;
+    private final Object[] values;
+
+    private CanonicalQuery(String text, Object[] values) {
+        this.text = text;
+        this.values = values;
+    }
+
+    /**
+     * Canonicalizes query text.
+     *
+     * @param query        the query text
+     * @param parameterize whether to lift literals into parameters
+     * @return the canonical query
+     * @throws InvalidQueryException if the text contains an invalid token
+     */
+    public static CanonicalQuery of(String query, boolean parameterize) throws InvalidQueryException {
+        List<Token> tokens = tokenize(query);
+        if (parameterize) {
+            for (Token t : tokens) {
+                if (t.kind == SQLParserConstants.QUESTION || t.kind == SQLParserConstants.NAMED_PARAMETER) {
+                    parameterize = false;
+                    break;
+                }
+            }
+        }
+        StringBuilder builder = new StringBuilder(query.length());
+        List<Object> lifted = new ArrayList<Object>();
+        // depth of parentheses within an IN list, zero if not in one
+        int inList = 0;
+        for (int i = 0; i < tokens.size(); i++) {
+            Token t = tokens.get(i);
+            Token previous = i > 0 ? tokens.get(i - 1) : null;
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            if (t.kind == SQLParserConstants.LPAREN) {
+                if (inList > 0) {
+                    inList++;
+                } else if (previous != null && previous.kind == SQLParserConstants.IN && !isSubQuery(tokens, i + 1)) {
+                    inList = 1;
+                }
+            } else if (t.kind == SQLParserConstants.RPAREN && inList > 0) {
+                inList--;
+            }
+            if (parameterize && inList == 0 && isLiteral(t) && !isPattern(previous)) {
+                builder.append('?');
+                lifted.add(SQLParser.literalValue(t));
+            } else if (isName(t) || t.kind == SQLParserConstants.NAMED_PARAMETER ||
+                    t.kind == SQLParserConstants.STRING_LITERAL) {
+                builder.append(t.image);
+            } else {
+                // not the default locale, under which i may not map to I, as in Turkish
+                builder.append(t.image.toUpperCase(Locale.ENGLISH));
+            }
+        }
+        return new CanonicalQuery(builder.toString(), lifted.isEmpty() ? NO_VALUES : lifted.toArray());
+    }
+
+    private static List<Token> tokenize(String query) throws InvalidQueryException {
+        List<Token> tokens = new ArrayList<Token>();
+        try {
+            SQLParserTokenManager manager = new SQLParserTokenManager(
+                    new SimpleCharStream(new StringReader(query)));
+            for (Token t = manager.getNextToken(); t.kind != SQLParserConstants.EOF; t = manager.getNextToken()) {
+                tokens.add(t);
+            }
+        } catch (TokenMgrError e) {
+            throw new InvalidQueryException(e);
+        }
+        return tokens;
+    }
+
+    private static boolean isLiteral(Token t) {
+        switch (t.kind) {
+            case SQLParserConstants.DECIMAL_LITERAL:
+            case SQLParserConstants.FLOATING_POINT_LITERAL:
+            case SQLParserConstants.HEX_LITERAL:
+            case SQLParserConstants.OCTAL_LITERAL:
+            case SQLParserConstants.STRING_LITERAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a token may name a property; keywords that are reserved only
+     * where they introduce a clause keep their case, since property names are
+     * case sensitive.
+     */
+    private static boolean isName(Token t) {
+        switch (t.kind) {
+            case SQLParserConstants.ID:
+            case SQLParserConstants.SELECT:
+            case SQLParserConstants.WHERE:
+            case SQLParserConstants.FROM:
+            case SQLParserConstants.ORDER:
+            case SQLParserConstants.BY:
+            case SQLParserConstants.ASC:
+            case SQLParserConstants.DESC:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isSubQuery(List<Token> tokens, int i) {
+        return i + 1 < tokens.size() && tokens.get(i).kind == SQLParserConstants.SELECT && isName(tokens.get(i + 1));
+    }
+
+    private static boolean isPattern(Token previous) {
+        return previous != null &&
+                (previous.kind == SQLParserConstants.LIKE || previous.kind == SQLParserConstants.ESCAPE);
+    }
+
+    /**
+     * Gets the canonical text.
+     *
+     * @return the canonical text
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Gets the values of the lifted literals, in the order of the implicit
+     * parameters that replaced them.
+     *
+     * @return the lifted values; empty if no literal was lifted
+     */
+    public Object[] getValues() {
+        return values.clone();
+    }
+
+    /**
+     * Tests whether any literal was lifted into a parameter.
+     *
+     * @return true if the canonical text has implicit parameters
+     */
+    public boolean isParameterized() {
+        return values.length > 0;
+    }
+
+    public String toString() {
+        return text;
+    }
+}
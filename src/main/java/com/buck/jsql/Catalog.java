@@ -0,0 +1,83 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buck.jsql;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Names the collections that subqueries may refer to in their FROM clause,
+ * together with the class of their elements.
+ *
+ * @author Robert J. Buck
+ */
+public class Catalog {
+
+    private static final class Entry {
+        private final Class type;
+        private final Collection<?> collection;
+
+        Entry(Class type, Collection<?> collection) {
+            this.type = type;
+            this.collection = collection;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Registers a named collection, replacing any collection previously
+     * registered under the same name.
+     *
+     * @param name       the name used in FROM clauses
+     * @param type       the class of the elements of the collection
+     * @param collection the collection
+     */
+    public void register(String name, Class type, Collection<?> collection) {
+        entries.put(name, new Entry(type, collection));
+    }
+
+    /**
+     * Removes a named collection.
+     *
+     * @param name the name of the collection
+     */
+    public void unregister(String name) {
+        entries.remove(name);
+    }
+
+    /**
+     * Gets the class of the elements of a named collection.
+     *
+     * @param name the name of the collection
+     * @return the element class, or null if there is no such collection
+     */
+    public Class getType(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.type : null;
+    }
+
+    /**
+     * Gets a named collection.
+     *
+     * @param name the name of the collection
+     * @return the collection, or null if there is no such collection
+     */
+    public Collection<?> getCollection(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.collection : null;
+    }
+}
@@ -0,0 +1,779 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import com.buck.commons.i18n.ResourceBundle;
+import com.buck.jsql.reflection.Getter;
+import com.buck.jsql.reflection.PropertyAccessException;
+import com.buck.jsql.reflection.PropertyNotFoundException;
+import com.buck.jsql.reflection.ReflectionSupport;
+import com.buck.jsql.reflection.Setter;
+import com.buck.jsql.util.LongHashSet;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A collection storing the properties of its elements column by column,
+ * rather than the elements themselves. The properties are the instance
+ * fields of the element class and its superclasses, other than transient
+ * ones, read as queries read them: through a getter if there is one, and
+ * directly otherwise.
+ * <p/>
+ * Integral properties are stored in a <code>long[]</code>, floating point
+ * properties in a <code>double[]</code> and booleans in a
+ * <code>boolean[]</code>; strings are dictionary encoded, each distinct
+ * string being stored once and each row holding the <code>int</code> code
+ * of its string. Null values of boxed and string properties are recorded
+ * in a bitmap per column. Properties of other types are stored as objects.
+ * For large data sets this takes a fraction of the memory of the elements
+ * themselves, having no object headers, references or duplicate strings.
+ * <p/>
+ * Queries evaluate against the columns. The sargable conjuncts of a search
+ * condition are evaluated a column at a time, each narrowing down the rows
+ * the last left in a tight loop over the column array; the whole search
+ * condition is then evaluated against the values of the remaining rows,
+ * read from the columns. Elements are only created for the rows a query
+ * returns, and not at all when projecting.
+ * <p/>
+ * Elements are created anew, through the constructor of the element class
+ * taking no arguments, each time they are iterated or returned by a query;
+ * a property is set through its setter if there is one, and directly
+ * otherwise. Elements may be added, but not removed other than by clearing
+ * the table. The table is not synchronized.
+ *
+ * @author Robert J. Buck
+ */
+public class ColumnarTable<T> extends AbstractCollection<T> implements Queryable<T>, Versioned {
+
+    private final Class<T> type;
+    private final Constructor<T> constructor;
+    private final Column[] columns;
+    private final Map<String, Integer> columnOf = new HashMap<String, Integer>();
+    private int capacity = 16;
+    private int size;
+    private long version;
+
+    /**
+     * Constructs an empty table.
+     *
+     * @param type the class of the elements
+     * @throws QueryException if the class has no constructor taking no
+     *                        arguments
+     */
+    public ColumnarTable(Class<T> type) throws QueryException {
+        this.type = type;
+        try {
+            constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            Object[] arguments = {type.getName()};
+            String message = ResourceBundle.formatResourceBundleMessage(ColumnarTable.class,
+                    "COLUMNAR_NO_CONSTRUCTOR", arguments);
+            throw new QueryException(message, e);
+        }
+        List<Column> list = new ArrayList<Column>();
+        for (Class c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()
+                        || columnOf.containsKey(field.getName())) {
+                    continue;
+                }
+                columnOf.put(field.getName(), list.size());
+                list.add(newColumn(field.getName()));
+            }
+        }
+        columns = list.toArray(new Column[list.size()]);
+    }
+
+    /**
+     * Constructs a table holding the elements of a collection.
+     *
+     * @param type the class of the elements
+     * @param coll the elements to add
+     * @throws QueryException if the class has no constructor taking no
+     *                        arguments
+     */
+    public ColumnarTable(Class<T> type, Collection<? extends T> coll) throws QueryException {
+        this(type);
+        addAll(coll);
+    }
+
+    private Column newColumn(String name) throws QueryException {
+        Getter getter = Query.getGetter(type, name);
+        Setter setter;
+        try {
+            setter = ReflectionSupport.getSetter(type, name);
+        } catch (PropertyNotFoundException e) {
+            Object[] arguments = {name, type.getName()};
+            String message = ResourceBundle.formatResourceBundleMessage(Query.class,
+                    "QUERY_PROPERTY_NOT_FOUND", arguments);
+            throw new QueryException(message, e);
+        }
+        Class c = getter.getReturnType();
+        if (c == long.class || c == int.class || c == short.class || c == byte.class
+                || c == Long.class || c == Integer.class || c == Short.class || c == Byte.class) {
+            return new LongColumn(name, getter, setter, c);
+        } else if (c == double.class || c == float.class || c == Double.class || c == Float.class) {
+            return new DoubleColumn(name, getter, setter, c);
+        } else if (c == boolean.class || c == Boolean.class) {
+            return new BooleanColumn(name, getter, setter);
+        } else if (c == String.class) {
+            return new StringColumn(name, getter, setter);
+        }
+        return new ObjectColumn(name, getter, setter);
+    }
+
+    /**
+     * Gets the class of the elements.
+     *
+     * @return the element class
+     */
+    public Class<T> getType() {
+        return type;
+    }
+
+    /**
+     * Gets the names of the columns, which are those of the properties
+     * stored.
+     *
+     * @return the column names
+     */
+    public List<String> getColumnNames() {
+        List<String> names = new ArrayList<String>(columns.length);
+        for (Column column : columns) {
+            names.add(column.name);
+        }
+        return names;
+    }
+
+    /**
+     * Gets the number of distinct values of a string column, each of which
+     * is stored once.
+     *
+     * @param name the column name
+     * @return the size of the dictionary of the column
+     * @throws IllegalArgumentException if there is no such column, or if it
+     *                                  is not dictionary encoded
+     */
+    public int getDictionarySize(String name) {
+        Integer i = columnOf.get(name);
+        if (i == null || !(columns[i] instanceof StringColumn)) {
+            throw new IllegalArgumentException(name);
+        }
+        return ((StringColumn) columns[i]).words.size();
+    }
+
+    /**
+     * Appends the properties of an element as a row.
+     *
+     * @param element the element to add
+     * @return true
+     * @throws NullPointerException     if the element is null
+     * @throws IllegalArgumentException if a property of the element could
+     *                                  not be read
+     */
+    public boolean add(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            try {
+                values[i] = columns[i].getter.get(element);
+            } catch (PropertyAccessException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+        }
+        if (size == capacity) {
+            capacity *= 2;
+            for (Column column : columns) {
+                column.grow(capacity);
+            }
+        }
+        for (int i = 0; i < columns.length; i++) {
+            if (values[i] == null) {
+                columns[i].nulls.set(size);
+            }
+            columns[i].set(size, values[i]);
+        }
+        size++;
+        version++;
+        return true;
+    }
+
+    public void clear() {
+        for (Column column : columns) {
+            column.clear();
+        }
+        capacity = 16;
+        size = 0;
+        version++;
+    }
+
+    /**
+     * Gets the version of the table, which every element added, and every
+     * clearing of the table, advances.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Iterates over the elements, creating each from its row.
+     *
+     * @return an iterator over new elements, in the order they were added
+     */
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int row;
+
+            public boolean hasNext() {
+                return row < size;
+            }
+
+            public T next() {
+                if (row >= size) {
+                    throw new NoSuchElementException();
+                }
+                return get(row++);
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Gets the elements that may satisfy a query: those of the rows
+     * satisfying its sargable conjuncts, evaluated column by column.
+     *
+     * @param query the query
+     * @return new elements for the candidate rows, in row order
+     */
+    public Collection<T> candidates(Query<T> query) {
+        int[] rows = rows(query);
+        List<T> candidates = new ArrayList<T>(rows.length);
+        for (int row : rows) {
+            candidates.add(get(row));
+        }
+        return candidates;
+    }
+
+    /**
+     * Gets the candidates of a query in the order of its ORDER BY clause; a
+     * columnar table leaves the sorting to the query.
+     *
+     * @param query the query
+     * @return null
+     */
+    public List<T> ordered(Query<T> query) {
+        return null;
+    }
+
+    /**
+     * Finds the rows satisfying the top level sargable conjuncts of the
+     * search condition of a query, by evaluating each conjunct over its
+     * column. Conjuncts over properties having no column are left to the
+     * query.
+     *
+     * @param query the query
+     * @return the candidate rows, ascending
+     */
+    int[] rows(Query<?> query) {
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        Predicate.analyze(query, predicates);
+        int[] rows = new int[size];
+        for (int row = 0; row < size; row++) {
+            rows[row] = row;
+        }
+        int n = size;
+        for (Predicate predicate : predicates) {
+            Integer i = columnOf.get(predicate.getProperty());
+            if (i != null) {
+                n = columns[i].select(predicate, rows, n);
+            }
+        }
+        return n == rows.length ? rows : Arrays.copyOf(rows, n);
+    }
+
+    /**
+     * Gets the column storing a property.
+     *
+     * @param property the property name
+     * @return the column index, or -1 if the property is not stored
+     */
+    int column(String property) {
+        Integer i = columnOf.get(property);
+        return i != null ? i : -1;
+    }
+
+    /**
+     * Gets a value of a column.
+     *
+     * @param column the column index
+     * @param row    the row
+     * @return the value, boxed as the property is declared; null if the
+     *         property is null
+     */
+    Object getValue(int column, int row) {
+        Column c = columns[column];
+        return c.nulls.get(row) ? null : c.get(row);
+    }
+
+    /**
+     * Creates the element of a row.
+     *
+     * @param row the row
+     * @return a new element holding the values of the row
+     * @throws IllegalStateException if the element could not be created
+     */
+    T get(int row) {
+        T element;
+        try {
+            element = constructor.newInstance();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < columns.length; i++) {
+            try {
+                columns[i].setter.set(element, getValue(i, row));
+            } catch (PropertyAccessException e) {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+        return element;
+    }
+
+    /**
+     * The storage of a property.
+     */
+    private abstract static class Column {
+        final String name;
+        final Getter getter;
+        final Setter setter;
+        BitSet nulls = new BitSet();
+
+        Column(String name, Getter getter, Setter setter) {
+            this.name = name;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        /**
+         * Stores a value; null values are stored as zero, the null bitmap
+         * having been set.
+         */
+        abstract void set(int row, Object value);
+
+        /**
+         * Gets a non-null value.
+         */
+        abstract Object get(int row);
+
+        abstract void grow(int capacity);
+
+        void clear() {
+            nulls = new BitSet();
+        }
+
+        /**
+         * Narrows down rows to those whose value is not null and satisfies
+         * a predicate.
+         *
+         * @param predicate the predicate
+         * @param rows      the rows, ascending; receives those selected
+         * @param n         the number of rows
+         * @return the number of rows selected
+         */
+        int select(Predicate predicate, int[] rows, int n) {
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                if (!nulls.get(row) && predicate.test(get(row))) {
+                    rows[m++] = row;
+                }
+            }
+            return m;
+        }
+    }
+
+    private static final class LongColumn extends Column {
+        private final Class type;
+        private long[] values = new long[16];
+
+        LongColumn(String name, Getter getter, Setter setter, Class type) {
+            super(name, getter, setter);
+            this.type = type;
+        }
+
+        void set(int row, Object value) {
+            values[row] = value != null ? ((Number) value).longValue() : 0;
+        }
+
+        Object get(int row) {
+            long value = values[row];
+            if (type == int.class || type == Integer.class) {
+                return (int) value;
+            } else if (type == short.class || type == Short.class) {
+                return (short) value;
+            } else if (type == byte.class || type == Byte.class) {
+                return (byte) value;
+            }
+            return value;
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        void clear() {
+            super.clear();
+            values = new long[16];
+        }
+
+        int select(Predicate predicate, int[] rows, int n) {
+            boolean nullable = !nulls.isEmpty();
+            int m = 0;
+            if (predicate.getKind() == Predicate.Kind.EQ) {
+                // keys are normalized, so only long keys equal an integral value
+                LongHashSet keys = new LongHashSet();
+                long key = 0;
+                for (Object k : predicate.getValues()) {
+                    if (k instanceof Long) {
+                        key = (Long) k;
+                        keys.add(key);
+                    }
+                }
+                if (keys.size() == 1) {
+                    for (int i = 0; i < n; i++) {
+                        int row = rows[i];
+                        if (values[row] == key && (!nullable || !nulls.get(row))) {
+                            rows[m++] = row;
+                        }
+                    }
+                } else if (keys.size() > 1) {
+                    for (int i = 0; i < n; i++) {
+                        int row = rows[i];
+                        if (keys.contains(values[row]) && (!nullable || !nulls.get(row))) {
+                            rows[m++] = row;
+                        }
+                    }
+                }
+                return m;
+            }
+            Object bound = predicate.getValues()[0];
+            if (!(bound instanceof Number)) {
+                return 0;
+            }
+            if (bound instanceof Double) {
+                // compared as doubles, as the comparison predicate does
+                double lo = lower(predicate.getKind(), (Double) bound);
+                double hi = upper(predicate.getKind(), (Double) bound);
+                for (int i = 0; i < n; i++) {
+                    int row = rows[i];
+                    double value = values[row];
+                    if (value >= lo && value <= hi && (!nullable || !nulls.get(row))) {
+                        rows[m++] = row;
+                    }
+                }
+                return m;
+            }
+            long b = (Long) bound;
+            long lo = Long.MIN_VALUE;
+            long hi = Long.MAX_VALUE;
+            switch (predicate.getKind()) {
+                case GT:
+                    if (b == Long.MAX_VALUE) {
+                        return 0;
+                    }
+                    lo = b + 1;
+                    break;
+                case GE:
+                    lo = b;
+                    break;
+                case LT:
+                    if (b == Long.MIN_VALUE) {
+                        return 0;
+                    }
+                    hi = b - 1;
+                    break;
+                default:
+                    hi = b;
+                    break;
+            }
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                long value = values[row];
+                if (value >= lo && value <= hi && (!nullable || !nulls.get(row))) {
+                    rows[m++] = row;
+                }
+            }
+            return m;
+        }
+    }
+
+    /**
+     * Gets the least double satisfying a range predicate.
+     */
+    private static double lower(Predicate.Kind kind, double bound) {
+        switch (kind) {
+            case GT:
+                return Math.nextUp(bound);
+            case GE:
+                return bound;
+            default:
+                return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Gets the greatest double satisfying a range predicate.
+     */
+    private static double upper(Predicate.Kind kind, double bound) {
+        switch (kind) {
+            case LT:
+                return Math.nextAfter(bound, Double.NEGATIVE_INFINITY);
+            case LE:
+                return bound;
+            default:
+                return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    private static final class DoubleColumn extends Column {
+        private final Class type;
+        private double[] values = new double[16];
+
+        DoubleColumn(String name, Getter getter, Setter setter, Class type) {
+            super(name, getter, setter);
+            this.type = type;
+        }
+
+        void set(int row, Object value) {
+            values[row] = value != null ? ((Number) value).doubleValue() : 0;
+        }
+
+        Object get(int row) {
+            if (type == float.class || type == Float.class) {
+                return (float) values[row];
+            }
+            return values[row];
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        void clear() {
+            super.clear();
+            values = new double[16];
+        }
+
+        int select(Predicate predicate, int[] rows, int n) {
+            boolean nullable = !nulls.isEmpty();
+            int m = 0;
+            if (predicate.getKind() == Predicate.Kind.EQ) {
+                List<Double> list = new ArrayList<Double>();
+                for (Object key : predicate.getValues()) {
+                    if (key instanceof Number) {
+                        list.add(((Number) key).doubleValue());
+                    }
+                }
+                double[] keys = new double[list.size()];
+                for (int k = 0; k < keys.length; k++) {
+                    keys[k] = list.get(k);
+                }
+                for (int i = 0; i < n; i++) {
+                    int row = rows[i];
+                    double value = values[row];
+                    for (double key : keys) {
+                        // NaN keys equal NaN values, as normalized keys do
+                        if ((value == key || (value != value && key != key)) && (!nullable || !nulls.get(row))) {
+                            rows[m++] = row;
+                            break;
+                        }
+                    }
+                }
+                return m;
+            }
+            Object bound = predicate.getValues()[0];
+            if (!(bound instanceof Number)) {
+                return 0;
+            }
+            double lo = lower(predicate.getKind(), ((Number) bound).doubleValue());
+            double hi = upper(predicate.getKind(), ((Number) bound).doubleValue());
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                double value = values[row];
+                if (value >= lo && value <= hi && (!nullable || !nulls.get(row))) {
+                    rows[m++] = row;
+                }
+            }
+            return m;
+        }
+    }
+
+    private static final class BooleanColumn extends Column {
+        private boolean[] values = new boolean[16];
+
+        BooleanColumn(String name, Getter getter, Setter setter) {
+            super(name, getter, setter);
+        }
+
+        void set(int row, Object value) {
+            values[row] = Boolean.TRUE.equals(value);
+        }
+
+        Object get(int row) {
+            return values[row];
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        void clear() {
+            super.clear();
+            values = new boolean[16];
+        }
+
+        int select(Predicate predicate, int[] rows, int n) {
+            if (predicate.getKind() != Predicate.Kind.EQ) {
+                return 0;
+            }
+            boolean whenTrue = false;
+            boolean whenFalse = false;
+            for (Object key : predicate.getValues()) {
+                whenTrue |= Boolean.TRUE.equals(key);
+                whenFalse |= Boolean.FALSE.equals(key);
+            }
+            boolean nullable = !nulls.isEmpty();
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                if ((values[row] ? whenTrue : whenFalse) && (!nullable || !nulls.get(row))) {
+                    rows[m++] = row;
+                }
+            }
+            return m;
+        }
+    }
+
+    /**
+     * A dictionary encoded string column; a null value has the code -1.
+     */
+    private static final class StringColumn extends Column {
+        private final List<String> words = new ArrayList<String>();
+        private final Map<String, Integer> codes = new HashMap<String, Integer>();
+        private int[] values = new int[16];
+
+        StringColumn(String name, Getter getter, Setter setter) {
+            super(name, getter, setter);
+        }
+
+        void set(int row, Object value) {
+            if (value == null) {
+                values[row] = -1;
+                return;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                code = words.size();
+                words.add((String) value);
+                codes.put((String) value, code);
+            }
+            values[row] = code;
+        }
+
+        Object get(int row) {
+            return words.get(values[row]);
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        void clear() {
+            super.clear();
+            words.clear();
+            codes.clear();
+            values = new int[16];
+        }
+
+        int select(Predicate predicate, int[] rows, int n) {
+            // the predicate is tested once per distinct string, not per row
+            boolean[] accept = new boolean[words.size()];
+            for (int code = 0; code < accept.length; code++) {
+                accept[code] = predicate.test(words.get(code));
+            }
+            int m = 0;
+            for (int i = 0; i < n; i++) {
+                int row = rows[i];
+                int code = values[row];
+                if (code >= 0 && accept[code]) {
+                    rows[m++] = row;
+                }
+            }
+            return m;
+        }
+    }
+
+    private static final class ObjectColumn extends Column {
+        private Object[] values = new Object[16];
+
+        ObjectColumn(String name, Getter getter, Setter setter) {
+            super(name, getter, setter);
+        }
+
+        void set(int row, Object value) {
+            values[row] = value;
+        }
+
+        Object get(int row) {
+            return values[row];
+        }
+
+        void grow(int capacity) {
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        void clear() {
+            super.clear();
+            values = new Object[16];
+        }
+    }
+}
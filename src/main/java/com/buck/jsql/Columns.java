@@ -0,0 +1,230 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+
+/**
+ * Projected property values stored column by column. Properties declared
+ * with an integral primitive type are stored in a <code>long[]</code>,
+ * floating point primitives in a <code>double[]</code>, booleans in a
+ * <code>boolean[]</code>, and everything else (including boxed types, which
+ * may be null) in an <code>Object[]</code>.
+ *
+ * @author Robert J. Buck
+ */
+public final class Columns {
+
+    private final String[] names;
+    private final Object[] arrays;
+    private final int size;
+
+    private Columns(String[] names, Object[] arrays, int size) {
+        this.names = names;
+        this.arrays = arrays;
+        this.size = size;
+    }
+
+    /**
+     * Gets the number of rows.
+     *
+     * @return the number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the number of columns.
+     *
+     * @return the number of columns
+     */
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    /**
+     * Gets the name of the column at the specified index.
+     *
+     * @param i the column index
+     * @return the column name
+     */
+    public String getColumnName(int i) {
+        return names[i];
+    }
+
+    /**
+     * Gets the element type of the column at the specified index; one of
+     * <code>long.class</code>, <code>double.class</code>,
+     * <code>boolean.class</code> or <code>Object.class</code>.
+     *
+     * @param i the column index
+     * @return the element type of the column storage
+     */
+    public Class getColumnType(int i) {
+        return arrays[i].getClass().getComponentType();
+    }
+
+    /**
+     * Gets the values of an integral column.
+     *
+     * @param name the column name
+     * @return the column values
+     * @throws IllegalArgumentException if there is no such column, or if it
+     *                                  is not stored as longs
+     */
+    public long[] getLongs(String name) {
+        return (long[]) column(name, long[].class);
+    }
+
+    /**
+     * Gets the values of a floating point column.
+     *
+     * @param name the column name
+     * @return the column values
+     * @throws IllegalArgumentException if there is no such column, or if it
+     *                                  is not stored as doubles
+     */
+    public double[] getDoubles(String name) {
+        return (double[]) column(name, double[].class);
+    }
+
+    /**
+     * Gets the values of a boolean column.
+     *
+     * @param name the column name
+     * @return the column values
+     * @throws IllegalArgumentException if there is no such column, or if it
+     *                                  is not stored as booleans
+     */
+    public boolean[] getBooleans(String name) {
+        return (boolean[]) column(name, boolean[].class);
+    }
+
+    /**
+     * Gets the values of an object column.
+     *
+     * @param name the column name
+     * @return the column values
+     * @throws IllegalArgumentException if there is no such column, or if it
+     *                                  is not stored as objects
+     */
+    public Object[] getObjects(String name) {
+        return (Object[]) column(name, Object[].class);
+    }
+
+    private Object column(String name, Class arrayType) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                if (arrays[i].getClass() != arrayType) {
+                    throw new IllegalArgumentException(name + " is stored as " +
+                            getColumnType(i).getName());
+                }
+                return arrays[i];
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    /**
+     * Accumulates rows of values into column storage.
+     */
+    static final class Builder {
+
+        private final String[] names;
+        private final Object[] arrays;
+        private int size;
+
+        /**
+         * Constructs a builder.
+         *
+         * @param names the column names
+         * @param types the declared property types of the columns
+         */
+        Builder(String[] names, Class[] types) {
+            this.names = names;
+            this.arrays = new Object[types.length];
+            for (int i = 0; i < types.length; i++) {
+                arrays[i] = Array.newInstance(storageType(types[i]), 16);
+            }
+        }
+
+        private static Class storageType(Class type) {
+            if (type == long.class || type == int.class || type == short.class || type == byte.class) {
+                return long.class;
+            } else if (type == double.class || type == float.class) {
+                return double.class;
+            } else if (type == boolean.class) {
+                return boolean.class;
+            } else {
+                return Object.class;
+            }
+        }
+
+        /**
+         * Appends a row.
+         *
+         * @param values the row values, one per column
+         */
+        void add(Object[] values) {
+            if (size == Array.getLength(arrays[0])) {
+                for (int i = 0; i < arrays.length; i++) {
+                    arrays[i] = resize(arrays[i], size * 2);
+                }
+            }
+            for (int i = 0; i < arrays.length; i++) {
+                Object array = arrays[i];
+                if (array instanceof long[]) {
+                    ((long[]) array)[size] = ((Number) values[i]).longValue();
+                } else if (array instanceof double[]) {
+                    ((double[]) array)[size] = ((Number) values[i]).doubleValue();
+                } else if (array instanceof boolean[]) {
+                    ((boolean[]) array)[size] = (Boolean) values[i];
+                } else {
+                    ((Object[]) array)[size] = values[i];
+                }
+            }
+            size++;
+        }
+
+        private static Object resize(Object array, int length) {
+            if (array instanceof long[]) {
+                return Arrays.copyOf((long[]) array, length);
+            } else if (array instanceof double[]) {
+                return Arrays.copyOf((double[]) array, length);
+            } else if (array instanceof boolean[]) {
+                return Arrays.copyOf((boolean[]) array, length);
+            } else {
+                return Arrays.copyOf((Object[]) array, length);
+            }
+        }
+
+        /**
+         * Builds the columns, trimming the storage to the number of rows.
+         *
+         * @return the columns
+         */
+        Columns build() {
+            Object[] trimmed = new Object[arrays.length];
+            for (int i = 0; i < arrays.length; i++) {
+                trimmed[i] = resize(arrays[i], size);
+            }
+            return new Columns(names, trimmed, size);
+        }
+    }
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import com.buck.commons.i18n.ResourceBundle;
+import com.buck.jsql.expressions.conditional.Comparison;
+import com.buck.jsql.expressions.conditional.InSubQuery;
+import com.buck.jsql.identifiers.Identifier;
+import com.buck.jsql.identifiers.Parameter;
+import com.buck.jsql.literals.Literal;
+import com.buck.jsql.reflection.Getter;
+import com.buck.jsql.reflection.PropertyAccessException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles many standing queries into a single network of tests in which
+ * identical subexpressions are shared, in the manner of a Rete network.
+ * <p/>
+ * The AND, OR and NOT operators of each query become nodes of the network;
+ * every other subexpression (a comparison, LIKE, IN, BETWEEN or NULL
+ * predicate) becomes a test node. Nodes are hash consed by a signature of
+ * their structure and constant values, so that a test such as
+ * <code>region = 'EU'</code>, or a conjunction such as <code>region = 'EU'
+ * AND tier &gt; 2</code>, appearing in many queries is one node. Operands of
+ * AND and OR are ordered, so <code>a AND b</code> and <code>b AND a</code>
+ * are the same node.
+ * <p/>
+ * When an object is matched, each node is evaluated at most once and its
+ * result is shared by every query depending on it, and each property is
+ * read at most once. AND and OR nodes stop evaluating at the first operand
+ * that decides their result. Queries having subqueries are evaluated as a
+ * whole.
+ * <p/>
+ * The network is not synchronized. Any number of threads may match objects
+ * concurrently, provided no thread adds or removes queries meanwhile.
+ *
+ * @author Robert J. Buck
+ */
+public class DiscriminationNetwork<T, K> {
+
+    private static final int TEST = 0;
+    private static final int AND = 1;
+    private static final int OR = 2;
+    private static final int NOT = 3;
+    private static final int QUERY = 4;
+
+    private final Class type;
+    private final Map<K, Node> roots = new LinkedHashMap<K, Node>();
+    private final Map<String, Node> signatures = new HashMap<String, Node>();
+    private final List<Node> nodes = new ArrayList<Node>();
+    private final List<Integer> free = new ArrayList<Integer>();
+    private final Map<String, Integer> properties = new HashMap<String, Integer>();
+    private final List<Getter> getters = new ArrayList<Getter>();
+    private int unique;
+
+    /**
+     * Constructs an empty network.
+     *
+     * @param type the class of the objects to match
+     */
+    public DiscriminationNetwork(Class type) {
+        this.type = type;
+    }
+
+    /**
+     * Compiles a query into the network under a key, replacing any query
+     * previously registered under the key.
+     *
+     * @param key   the key identifying the query
+     * @param query the query to compile
+     * @throws QueryException if the query refers to a property the matched
+     *                        class does not have
+     */
+    public void add(K key, Query<T> query) throws QueryException {
+        declare(query.getExpression());
+        Node root;
+        if (hasSubQuery(query.getExpression())) {
+            root = intern("query#" + unique++, QUERY, null, null);
+            root.query = query;
+        } else {
+            root = compile(query.getExpression(), query.getParameters());
+        }
+        remove(key);
+        roots.put(key, root);
+    }
+
+    /**
+     * Removes the query registered under a key, along with the nodes no
+     * other query depends on.
+     *
+     * @param key the key identifying the query
+     * @return true if a query was registered under the key
+     */
+    public boolean remove(K key) {
+        Node root = roots.remove(key);
+        if (root == null) {
+            return false;
+        }
+        release(root);
+        return true;
+    }
+
+    /**
+     * Gets the number of registered queries.
+     *
+     * @return the number of queries
+     */
+    public int size() {
+        return roots.size();
+    }
+
+    /**
+     * Gets the number of distinct nodes in the network.
+     *
+     * @return the number of nodes
+     */
+    public int getNodeCount() {
+        return signatures.size();
+    }
+
+    /**
+     * Finds the queries an object satisfies.
+     *
+     * @param object the object to match
+     * @return the keys of the satisfied queries, in registration order
+     * @throws QueryException if an exception occurred while reading a
+     *                        property or evaluating a query
+     */
+    public List<K> match(T object) throws QueryException {
+        Evaluation evaluation = new Evaluation(object);
+        List<K> matches = new ArrayList<K>();
+        for (Map.Entry<K, Node> entry : roots.entrySet()) {
+            if (Boolean.TRUE.equals(evaluation.evaluate(entry.getValue()))) {
+                matches.add(entry.getKey());
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * A node of the network; a logical operator over other nodes, a test
+     * evaluating a subexpression of some query, or a whole query.
+     */
+    private static final class Node {
+        private final int kind;
+        private final String signature;
+        private int id;
+        private int references;
+        private Node left;
+        private Node right;
+        private Expression expression;
+        private Object[] parameters;
+        private int[] slots;
+        private Query<?> query;
+
+        Node(int kind, String signature) {
+            this.kind = kind;
+            this.signature = signature;
+        }
+    }
+
+    /**
+     * Assigns a property slot to every property an expression reads.
+     */
+    private void declare(Expression expression) throws QueryException {
+        if (expression instanceof Identifier) {
+            String name = expression.toString();
+            if (!properties.containsKey(name)) {
+                getters.add(Query.getGetter(type, name));
+                properties.put(name, getters.size() - 1);
+            }
+        }
+        for (int i = 0; i < expression.getNumChildren(); i++) {
+            declare(expression.getChild(i));
+        }
+    }
+
+    private Node compile(Expression expression, Object[] parameters) {
+        switch (expression.type) {
+            case AND:
+            case OR: {
+                Node left = compile(expression.getChild(0), parameters);
+                Node right = compile(expression.getChild(1), parameters);
+                if (left.id > right.id) {
+                    Node swap = left;
+                    left = right;
+                    right = swap;
+                }
+                String signature = expression.type.name() + "(" + left.id + "," + right.id + ")";
+                return intern(signature, expression.type == ExpressionType.AND ? AND : OR, left, right);
+            }
+            case NOT: {
+                Node operand = compile(expression.getChild(0), parameters);
+                return intern("NOT(" + operand.id + ")", NOT, operand, null);
+            }
+            default: {
+                StringBuilder signature = new StringBuilder();
+                sign(expression, parameters, signature);
+                Node node = intern(signature.toString(), TEST, null, null);
+                if (node.expression == null) {
+                    node.expression = expression;
+                    node.parameters = parameters;
+                    node.slots = slots(expression, new int[0]);
+                }
+                return node;
+            }
+        }
+    }
+
+    /**
+     * Finds the node having a signature, or creates it, and references it.
+     * A node references its operands only when it is created.
+     */
+    private Node intern(String signature, int kind, Node left, Node right) {
+        Node node = signatures.get(signature);
+        if (node == null) {
+            node = new Node(kind, signature);
+            node.left = left;
+            node.right = right;
+            if (free.isEmpty()) {
+                node.id = nodes.size();
+                nodes.add(node);
+            } else {
+                node.id = free.remove(free.size() - 1);
+                nodes.set(node.id, node);
+            }
+            signatures.put(signature, node);
+        } else {
+            // the operands were referenced on behalf of this occurrence; the node already holds them
+            if (left != null) {
+                release(left);
+            }
+            if (right != null) {
+                release(right);
+            }
+        }
+        node.references++;
+        return node;
+    }
+
+    private void release(Node node) {
+        if (--node.references == 0) {
+            signatures.remove(node.signature);
+            nodes.set(node.id, null);
+            free.add(node.id);
+            if (node.left != null) {
+                release(node.left);
+            }
+            if (node.right != null) {
+                release(node.right);
+            }
+        }
+    }
+
+    /**
+     * Writes the signature of a test; its structure, the names of the
+     * properties it reads, and its constant values.
+     */
+    private void sign(Expression expression, Object[] parameters, StringBuilder signature) {
+        if (expression instanceof Identifier) {
+            signature.append('$').append(expression.toString());
+            return;
+        }
+        if (expression instanceof Parameter) {
+            int index = ((Parameter) expression).getIndex();
+            if (parameters == null || index >= parameters.length) {
+                // evaluating it reports the unbound parameter; never share it
+                signature.append("?#").append(unique++);
+            } else {
+                constant(parameters[index], signature);
+            }
+            return;
+        }
+        if (expression instanceof Literal) {
+            constant(((Literal) expression).getValue(), signature);
+            return;
+        }
+        signature.append(expression.type.name());
+        if (expression instanceof Comparison) {
+            signature.append(((Comparison) expression).getOperator().operator());
+        }
+        signature.append('(');
+        for (int i = 0; i < expression.getNumChildren(); i++) {
+            if (i > 0) {
+                signature.append(',');
+            }
+            sign(expression.getChild(i), parameters, signature);
+        }
+        signature.append(')');
+    }
+
+    private static void constant(Object value, StringBuilder signature) {
+        if (value == null) {
+            signature.append("null");
+            return;
+        }
+        String text = value instanceof Pattern ? ((Pattern) value).pattern() : value.toString();
+        signature.append(value.getClass().getName()).append('#').append(text.length()).append(':').append(text);
+    }
+
+    /**
+     * Maps the identifier ordinals of a test, which are local to the query
+     * it was parsed from, to the property slots of the network.
+     */
+    private int[] slots(Expression expression, int[] slots) {
+        if (expression instanceof Identifier) {
+            Identifier identifier = (Identifier) expression;
+            int slot = properties.get(identifier.toString());
+            if (identifier.getOrdinal() >= slots.length) {
+                slots = Arrays.copyOf(slots, identifier.getOrdinal() + 1);
+            }
+            slots[identifier.getOrdinal()] = slot;
+            return slots;
+        }
+        for (int i = 0; i < expression.getNumChildren(); i++) {
+            slots = slots(expression.getChild(i), slots);
+        }
+        return slots;
+    }
+
+    private static boolean hasSubQuery(Expression expression) {
+        if (expression instanceof InSubQuery) {
+            return true;
+        }
+        for (int i = 0; i < expression.getNumChildren(); i++) {
+            if (hasSubQuery(expression.getChild(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Evaluation state for matching one object. Node results and property
+     * values are computed on demand and remembered.
+     */
+    private final class Evaluation implements QueryContext {
+        private final Object object;
+        private final Object[] results = new Object[nodes.size()];
+        private final boolean[] evaluated = new boolean[nodes.size()];
+        private final Object[] values = new Object[getters.size()];
+        private final boolean[] fetched = new boolean[getters.size()];
+        private Node test;
+
+        Evaluation(Object object) {
+            this.object = object;
+        }
+
+        @SuppressWarnings({"unchecked"})
+        Object evaluate(Node node) throws QueryException {
+            if (evaluated[node.id]) {
+                return results[node.id];
+            }
+            Object result;
+            switch (node.kind) {
+                case AND: {
+                    Object lhs = evaluate(node.left);
+                    if (Boolean.FALSE.equals(lhs)) {
+                        result = false;
+                    } else {
+                        Object rhs = evaluate(node.right);
+                        if (Boolean.FALSE.equals(rhs)) {
+                            result = false;
+                        } else {
+                            result = lhs == null || rhs == null ? null : Boolean.TRUE;
+                        }
+                    }
+                    break;
+                }
+                case OR: {
+                    Object lhs = evaluate(node.left);
+                    if (Boolean.TRUE.equals(lhs)) {
+                        result = true;
+                    } else {
+                        Object rhs = evaluate(node.right);
+                        if (Boolean.TRUE.equals(rhs)) {
+                            result = true;
+                        } else {
+                            result = lhs == null || rhs == null ? null : Boolean.FALSE;
+                        }
+                    }
+                    break;
+                }
+                case NOT: {
+                    Object operand = evaluate(node.left);
+                    result = operand == null ? null : !(Boolean) operand;
+                    break;
+                }
+                case QUERY:
+                    result = ((Query<Object>) node.query).matches(object);
+                    break;
+                default:
+                    test = node;
+                    result = node.expression.evaluate(this);
+                    break;
+            }
+            results[node.id] = result;
+            evaluated[node.id] = true;
+            return result;
+        }
+
+        public Object getValue(Identifier identifier) throws PropertyAccessException {
+            int slot = test.slots[identifier.getOrdinal()];
+            if (!fetched[slot]) {
+                values[slot] = getters.get(slot).get(object);
+                fetched[slot] = true;
+            }
+            return values[slot];
+        }
+
+        public Object getBinding(int index) {
+            return null;
+        }
+
+        public Object getParameter(int index) throws EvaluationException {
+            if (test.parameters == null || index >= test.parameters.length) {
+                String message = ResourceBundle.formatResourceBundleMessage(Query.class,
+                        "QUERY_PARAMETER_NOT_BOUND", new Object[]{"?", index + 1});
+                throw new EvaluationException(message);
+            }
+            return test.parameters[index];
+        }
+    }
+}
@@ -28,6 +28,7 @@ public abstract class Expression {
 
     private Expression parent;
     protected Expression[] children;
+    private int numChildren;
     protected final ExpressionType type;
 
     /**
@@ -40,7 +41,9 @@ public abstract class Expression {
     }
 
     /**
-     * Add a child at the specified index.
+     * Add a child at the specified index. The children array grows
+     * geometrically, so appending n children costs O(n) overall; slots
+     * beyond {@link #getNumChildren()} are null.
      *
      * @param node Node
      * @param i    int
@@ -48,12 +51,15 @@ public abstract class Expression {
     public void addChild(Expression node, int i) {
         if (children == null) {
             children = new Expression[i + 1];
-        } else {
-            Expression[] newArray = new Expression[i + 1];
+        } else if (i >= children.length) {
+            Expression[] newArray = new Expression[Math.max(i + 1, children.length * 2)];
             System.arraycopy(children, 0, newArray, 0, children.length);
             children = newArray;
         }
         children[i] = node;
+        if (i >= numChildren) {
+            numChildren = i + 1;
+        }
     }
 
     /**
@@ -72,7 +78,7 @@ public abstract class Expression {
      * @return int
      */
     public int getNumChildren() {
-        return children != null ? children.length : 0;
+        return numChildren;
     }
 
     /**
@@ -106,11 +112,9 @@ public abstract class Expression {
      */
     public void writeTo(Writer writer) throws IOException {
         writer.append("<").append(toString()).append(">");
-        if (children != null) {
-            for (Expression child : children) {
-                if (child != null) {
-                    child.writeTo(writer);
-                }
+        for (int i = 0; i < numChildren; i++) {
+            if (children[i] != null) {
+                children[i].writeTo(writer);
             }
         }
         writer.append("</").append(toString()).append(">");
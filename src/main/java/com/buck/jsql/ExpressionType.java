@@ -34,6 +34,13 @@ public enum ExpressionType {
      */
     Identifier(0, "Identifier"),
 
+    /**
+     * Node type is a Parameter.
+     *
+     * @see com.buck.jsql.identifiers.Parameter
+     */
+    Parameter(1, "Parameter"),
+
     //-------------------------------------------------------------------------
     // conditional expressions
     //-------------------------------------------------------------------------
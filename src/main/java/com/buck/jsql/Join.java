@@ -0,0 +1,171 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import com.buck.jsql.reflection.Getter;
+import com.buck.jsql.util.Values;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Equi-joins two collections on a pair of properties. Each side is first
+ * filtered by its own query; a hash table is then built on the join key of
+ * the smaller filtered side and probed with the elements of the larger one.
+ * Null keys never join.
+ *
+ * @author Robert J. Buck
+ */
+public class Join<L, R> {
+
+    private final Query<L> left;
+    private final Query<R> right;
+    private final Getter leftKey;
+    private final Getter rightKey;
+
+    /**
+     * Constructs an equi-join.
+     *
+     * @param left     the query selecting elements from the left collection
+     * @param leftKey  the join property of the left elements
+     * @param right    the query selecting elements from the right collection
+     * @param rightKey the join property of the right elements
+     * @throws QueryException if either join property does not exist
+     */
+    public Join(Query<L> left, String leftKey, Query<R> right, String rightKey) throws QueryException {
+        this.left = left;
+        this.right = right;
+        this.leftKey = Query.getGetter(left.getType(), leftKey);
+        this.rightKey = Query.getGetter(right.getType(), rightKey);
+    }
+
+    /**
+     * A pair of joined elements.
+     */
+    public static final class Pair<L, R> {
+        private final L left;
+        private final R right;
+
+        Pair(L left, R right) {
+            this.left = left;
+            this.right = right;
+        }
+
+        public L getLeft() {
+            return left;
+        }
+
+        public R getRight() {
+            return right;
+        }
+
+        public String toString() {
+            return "(" + left + ", " + right + ")";
+        }
+    }
+
+    /**
+     * An action that may be applied to each pair of joined elements.
+     */
+    public interface Apply<L, R> {
+        public void action(L left, R right);
+    }
+
+    /**
+     * Joins two collections.
+     *
+     * @param lcoll the left collection
+     * @param rcoll the right collection
+     * @return the joined pairs
+     * @throws QueryException if an exception occurred while evaluating the
+     *                        queries or the join keys
+     */
+    public List<Pair<L, R>> join(Collection<L> lcoll, Collection<R> rcoll) throws QueryException {
+        final List<Pair<L, R>> pairs = new ArrayList<Pair<L, R>>();
+        apply(lcoll, rcoll, new Apply<L, R>() {
+            public void action(L l, R r) {
+                pairs.add(new Pair<L, R>(l, r));
+            }
+        });
+        return pairs;
+    }
+
+    /**
+     * Applies an action to each pair of joined elements.
+     *
+     * @param lcoll the left collection
+     * @param rcoll the right collection
+     * @param apply the action to apply to each joined pair
+     * @throws QueryException if an exception occurred while evaluating the
+     *                        queries or the join keys
+     */
+    @SuppressWarnings({"unchecked"})
+    public void apply(Collection<L> lcoll, Collection<R> rcoll, Apply<L, R> apply) throws QueryException {
+        List<L> lselected = filter(left, lcoll);
+        List<R> rselected = filter(right, rcoll);
+        if (lselected.size() <= rselected.size()) {
+            HashMap<Object, List<Object>> table = build(lselected, leftKey);
+            for (R r : rselected) {
+                List<Object> matches = table.get(Values.key(rightKey.get(r)));
+                if (matches != null) {
+                    for (Object l : matches) {
+                        apply.action((L) l, r);
+                    }
+                }
+            }
+        } else {
+            HashMap<Object, List<Object>> table = build(rselected, rightKey);
+            for (L l : lselected) {
+                List<Object> matches = table.get(Values.key(leftKey.get(l)));
+                if (matches != null) {
+                    for (Object r : matches) {
+                        apply.action(l, (R) r);
+                    }
+                }
+            }
+        }
+    }
+
+    private static <E> List<E> filter(Query<E> query, Collection<E> coll) throws QueryException {
+        final List<E> selected = new ArrayList<E>();
+        query.apply(coll, new Query.Apply<E>() {
+            public void action(E object) {
+                selected.add(object);
+            }
+        });
+        return selected;
+    }
+
+    private static HashMap<Object, List<Object>> build(List<?> elements, Getter key) throws QueryException {
+        HashMap<Object, List<Object>> table = new HashMap<Object, List<Object>>(elements.size() * 2);
+        for (Object element : elements) {
+            Object value = key.get(element);
+            if (value != null) {
+                value = Values.key(value);
+                List<Object> bucket = table.get(value);
+                if (bucket == null) {
+                    bucket = new ArrayList<Object>(1);
+                    table.put(value, bucket);
+                }
+                bucket.add(element);
+            }
+        }
+        return table;
+    }
+}
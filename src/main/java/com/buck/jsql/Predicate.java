@@ -0,0 +1,539 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import com.buck.jsql.expressions.conditional.Comparison;
+import com.buck.jsql.expressions.conditional.In;
+import com.buck.jsql.identifiers.Identifier;
+import com.buck.jsql.literals.Literal;
+import com.buck.jsql.literals.PatternLiteral;
+import com.buck.jsql.util.Values;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A conjunct of a search condition that tests a single property against
+ * constant values, and hence may be answered by an index. Constants are
+ * literals, bound parameters, or arithmetic over them.
+ * <p/>
+ * Equality values are normalized with {@link Values#key(Object)}; range
+ * bounds are numbers or strings and are compared with {@link #compare}.
+ *
+ * @author Robert J. Buck
+ */
+public final class Predicate {
+
+    /**
+     * The test a predicate applies to the property value.
+     */
+    public enum Kind {
+        /**
+         * The value equals one of the predicate values.
+         */
+        EQ,
+        /**
+         * The value is greater than the bound.
+         */
+        GT,
+        /**
+         * The value is greater than or equal to the bound.
+         */
+        GE,
+        /**
+         * The value is less than the bound.
+         */
+        LT,
+        /**
+         * The value is less than or equal to the bound.
+         */
+        LE,
+        /**
+         * The value is a string matching a LIKE pattern. Predicates of this
+         * kind are only handed to a {@link Visitor}.
+         */
+        LIKE
+    }
+
+    private final String property;
+    private final Kind kind;
+    private final Object[] values;
+    private final Pattern pattern;
+
+    private Predicate(String property, Kind kind, Object... values) {
+        this.property = property;
+        this.kind = kind;
+        this.values = values;
+        this.pattern = null;
+    }
+
+    private Predicate(String property, PatternLiteral like) {
+        this.property = property;
+        this.kind = Kind.LIKE;
+        this.values = like.getEscape() != null
+                ? new Object[]{like.getSource(), like.getEscape()} : new Object[]{like.getSource()};
+        this.pattern = (Pattern) like.getValue();
+    }
+
+    /**
+     * Gets the name of the property tested.
+     *
+     * @return the property name
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * Gets the test applied to the property.
+     *
+     * @return the kind of test
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets the values compared with; one or more distinct keys for an
+     * equality test, exactly one bound for a range test, and the pattern
+     * followed by the escape character, if there is one, for a LIKE test.
+     *
+     * @return the predicate values
+     */
+    public Object[] getValues() {
+        return values;
+    }
+
+    /**
+     * Tests a non-null property value against the predicate.
+     *
+     * @param value the property value
+     * @return true if the value satisfies the predicate
+     */
+    public boolean test(Object value) {
+        if (kind == Kind.LIKE) {
+            return value instanceof String && pattern.matcher((String) value).matches();
+        }
+        if (kind == Kind.EQ) {
+            Object key = Values.key(value);
+            for (Object v : values) {
+                if (v.equals(key)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (!comparable(value, values[0])) {
+            return false;
+        }
+        int c = compare(value, values[0]);
+        switch (kind) {
+            case GT:
+                return c > 0;
+            case GE:
+                return c >= 0;
+            case LT:
+                return c < 0;
+            default:
+                return c <= 0;
+        }
+    }
+
+    /**
+     * Splits the search condition of a query into its top level conjuncts
+     * and converts each sargable conjunct into predicates. A BETWEEN
+     * conjunct yields two range predicates; an IN list of literals yields
+     * one equality predicate having many values.
+     *
+     * @param query      the query to analyze
+     * @param predicates receives the predicates
+     * @return true if every conjunct was converted, such that an object
+     *         satisfying all the predicates satisfies the query
+     */
+    public static boolean analyze(Query<?> query, List<Predicate> predicates) {
+        return analyze(query.getExpression(), query.getParameters(), predicates);
+    }
+
+    /**
+     * Receives the boolean structure of a search condition, as walked by
+     * {@link #visit}. Three valued logic is preserved: the conditions
+     * handed to the visitor are true, false and unknown for exactly the
+     * objects the corresponding parts of the search condition are.
+     */
+    public interface Visitor<R> {
+        /**
+         * Visits a conjunction of predicates.
+         *
+         * @param predicates one or more predicates, all of which must hold
+         * @return the result for the conjunction
+         */
+        R predicates(List<Predicate> predicates);
+
+        /**
+         * Visits a test of a property for null.
+         *
+         * @param property the name of the property tested
+         * @return the result for the test
+         */
+        R isNull(String property);
+
+        /**
+         * Visits a negation.
+         *
+         * @param operand the result for the negated condition
+         * @return the result for the negation
+         */
+        R not(R operand);
+
+        /**
+         * Visits a conjunction.
+         *
+         * @param operands the results for two or more conditions
+         * @return the result for the conjunction
+         */
+        R and(List<R> operands);
+
+        /**
+         * Visits a disjunction.
+         *
+         * @param operands the results for two or more conditions
+         * @return the result for the disjunction
+         */
+        R or(List<R> operands);
+
+        /**
+         * Visits a condition that is described by no predicate.
+         *
+         * @return the result for the condition
+         */
+        R other();
+    }
+
+    /**
+     * Walks the boolean structure of the search condition of a query. The
+     * sargable conjuncts of each AND are handed to the visitor together as
+     * one conjunction of predicates; a &lt;&gt; comparison is handed over as
+     * the negation of an equality predicate, and a LIKE over a property as
+     * a LIKE predicate.
+     *
+     * @param query   the query to walk
+     * @param visitor the visitor
+     * @return the result for the search condition
+     */
+    public static <R> R visit(Query<?> query, Visitor<R> visitor) {
+        return visit(query.getExpression(), query.getParameters(), visitor);
+    }
+
+    private static <R> R visit(Expression expression, Object[] parameters, Visitor<R> visitor) {
+        switch (expression.type) {
+            case AND: {
+                List<Expression> conjuncts = new ArrayList<Expression>();
+                flatten(expression, ExpressionType.AND, conjuncts);
+                List<Predicate> predicates = new ArrayList<Predicate>();
+                List<R> operands = new ArrayList<R>();
+                for (Expression conjunct : conjuncts) {
+                    if (!sargable(conjunct, parameters, predicates)) {
+                        operands.add(visit(conjunct, parameters, visitor));
+                    }
+                }
+                if (!predicates.isEmpty()) {
+                    operands.add(0, visitor.predicates(predicates));
+                }
+                return operands.size() == 1 ? operands.get(0) : visitor.and(operands);
+            }
+            case OR: {
+                List<Expression> disjuncts = new ArrayList<Expression>();
+                flatten(expression, ExpressionType.OR, disjuncts);
+                List<R> operands = new ArrayList<R>(disjuncts.size());
+                for (Expression disjunct : disjuncts) {
+                    operands.add(visit(disjunct, parameters, visitor));
+                }
+                return visitor.or(operands);
+            }
+            case NOT:
+                return visitor.not(visit(expression.getChild(0), parameters, visitor));
+            case NULL:
+                if (expression.getChild(0) instanceof Identifier) {
+                    return visitor.isNull(expression.getChild(0).toString());
+                }
+                return visitor.other();
+            default: {
+                List<Predicate> predicates = new ArrayList<Predicate>();
+                if (sargable(expression, parameters, predicates)) {
+                    return visitor.predicates(predicates);
+                }
+                if (expression instanceof Comparison
+                        && ((Comparison) expression).getOperator() == Comparison.Operator.NE) {
+                    // a <> b is the negation of a = b, in three valued logic as well
+                    if (comparison(expression.getChild(0), expression.getChild(1), Comparison.Operator.EQ,
+                            parameters, predicates)) {
+                        return visitor.not(visitor.predicates(predicates));
+                    }
+                }
+                return visitor.other();
+            }
+        }
+    }
+
+    private static void flatten(Expression expression, ExpressionType type, List<Expression> operands) {
+        if (expression.type == type) {
+            flatten(expression.getChild(0), type, operands);
+            flatten(expression.getChild(1), type, operands);
+        } else {
+            operands.add(expression);
+        }
+    }
+
+    private static boolean sargable(Expression expression, Object[] parameters, List<Predicate> predicates) {
+        if (expression.type == ExpressionType.LIKE) {
+            if (expression.getChild(0) instanceof Identifier && expression.getChild(1) instanceof PatternLiteral) {
+                predicates.add(new Predicate(expression.getChild(0).toString(),
+                        (PatternLiteral) expression.getChild(1)));
+                return true;
+            }
+            return false;
+        }
+        return expression.type != ExpressionType.AND && analyze(expression, parameters, predicates);
+    }
+
+    private static boolean analyze(Expression expression, Object[] parameters, List<Predicate> predicates) {
+        switch (expression.type) {
+            case AND:
+                boolean left = analyze(expression.getChild(0), parameters, predicates);
+                boolean right = analyze(expression.getChild(1), parameters, predicates);
+                return left && right;
+            case ComparisonPredicate:
+                return comparison((Comparison) expression, parameters, predicates);
+            case BETWEEN:
+                return between(expression, parameters, predicates);
+            case IN:
+                return in(expression, parameters, predicates);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean comparison(Comparison comparison, Object[] parameters, List<Predicate> predicates) {
+        return comparison(comparison.getChild(0), comparison.getChild(1), comparison.getOperator(),
+                parameters, predicates);
+    }
+
+    private static boolean comparison(Expression lhs, Expression rhs, Comparison.Operator operator,
+                                      Object[] parameters, List<Predicate> predicates) {
+        if (rhs instanceof Identifier) {
+            Expression swap = lhs;
+            lhs = rhs;
+            rhs = swap;
+            operator = reverse(operator);
+        }
+        if (!(lhs instanceof Identifier)) {
+            return false;
+        }
+        Object value = constant(rhs, parameters);
+        String property = lhs.toString();
+        switch (operator) {
+            case EQ:
+                if (value instanceof Number || value instanceof String || value instanceof Boolean) {
+                    predicates.add(new Predicate(property, Kind.EQ, Values.key(value)));
+                    return true;
+                }
+                return false;
+            case NE:
+                return false;
+            default:
+                if (!ordered(value)) {
+                    return false;
+                }
+                predicates.add(new Predicate(property, Kind.valueOf(operator.name()), Values.key(value)));
+                return true;
+        }
+    }
+
+    private static boolean between(Expression between, Object[] parameters, List<Predicate> predicates) {
+        Expression value = between.getChild(0);
+        if (!(value instanceof Identifier)) {
+            return false;
+        }
+        Object lower = constant(between.getChild(1), parameters);
+        Object upper = constant(between.getChild(2), parameters);
+        if (!(lower instanceof Number) || !(upper instanceof Number) || !ordered(lower) || !ordered(upper)) {
+            return false;
+        }
+        String property = value.toString();
+        predicates.add(new Predicate(property, Kind.GE, Values.key(lower)));
+        predicates.add(new Predicate(property, Kind.LE, Values.key(upper)));
+        return true;
+    }
+
+    private static boolean in(Expression in, Object[] parameters, List<Predicate> predicates) {
+        Expression value = in.getChild(0);
+        if (!(in instanceof In) || !(value instanceof Identifier)) {
+            return false;
+        }
+        Set<Object> keys = new LinkedHashSet<Object>();
+        for (int i = 1; i < in.getNumChildren(); i++) {
+            Object item = constant(in.getChild(i), parameters);
+            if (!(item instanceof Number || item instanceof String || item instanceof Boolean)) {
+                // a null item makes a miss unknown rather than false; leave it to the query
+                return false;
+            }
+            keys.add(Values.key(item));
+        }
+        predicates.add(new Predicate(value.toString(), Kind.EQ, keys.toArray()));
+        return true;
+    }
+
+    private static Comparison.Operator reverse(Comparison.Operator operator) {
+        switch (operator) {
+            case LT:
+                return Comparison.Operator.GT;
+            case GT:
+                return Comparison.Operator.LT;
+            case LE:
+                return Comparison.Operator.GE;
+            case GE:
+                return Comparison.Operator.LE;
+            default:
+                return operator;
+        }
+    }
+
+    private static boolean ordered(Object value) {
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            return d == d;
+        }
+        return value instanceof String;
+    }
+
+    /**
+     * Evaluates an expression consisting only of literals, parameters and
+     * arithmetic operators.
+     *
+     * @param expression the expression to evaluate
+     * @param parameters the parameter values, may be null
+     * @return the value of the expression, or null if it is not constant,
+     *         refers to an unbound parameter, or evaluates to null
+     */
+    static Object constant(Expression expression, final Object[] parameters) {
+        if (expression instanceof Literal) {
+            return ((Literal) expression).getValue();
+        }
+        if (!isConstant(expression)) {
+            return null;
+        }
+        try {
+            return expression.evaluate(new QueryContext() {
+                public Object getValue(Identifier identifier) throws EvaluationException {
+                    throw new EvaluationException(identifier.toString());
+                }
+
+                public Object getBinding(int index) {
+                    return null;
+                }
+
+                public Object getParameter(int index) throws EvaluationException {
+                    if (parameters == null || index >= parameters.length) {
+                        throw new EvaluationException(String.valueOf(index));
+                    }
+                    return parameters[index];
+                }
+            });
+        } catch (EvaluationException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static boolean isConstant(Expression expression) {
+        switch (expression.type) {
+            case Parameter:
+            case NumericLiteral:
+            case StringLiteral:
+            case BooleanLiteral:
+                return true;
+            case ADD:
+            case SUBTRACT:
+            case DIVIDE:
+            case MULTIPLY:
+            case MODULUS:
+            case NEGATE:
+                for (int i = 0; i < expression.getNumChildren(); i++) {
+                    if (!isConstant(expression.getChild(i))) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Tests whether two values are ordered with respect to each other by
+     * the comparison predicate; that is, both are numbers or both are
+     * strings, and neither is NaN.
+     *
+     * @param a a value
+     * @param b another value
+     * @return true if the values may be passed to {@link #compare}
+     */
+    public static boolean comparable(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            return ordered(a) && ordered(b);
+        }
+        return a instanceof String && b instanceof String;
+    }
+
+    /**
+     * Compares two numbers or two strings as the comparison predicate
+     * does; numbers compare as doubles if either is floating point and as
+     * longs otherwise.
+     *
+     * @param a a value
+     * @param b another value of the same kind
+     * @return a negative integer, zero, or a positive integer as the first
+     *         value is less than, equal to, or greater than the second
+     */
+    public static int compare(Object a, Object b) {
+        if (a instanceof String) {
+            return ((String) a).compareTo((String) b);
+        }
+        Number l = (Number) a;
+        Number r = (Number) b;
+        if (l instanceof Double || l instanceof Float || r instanceof Double || r instanceof Float) {
+            double x = l.doubleValue();
+            double y = r.doubleValue();
+            return x < y ? -1 : (x > y ? 1 : 0);
+        }
+        long x = l.longValue();
+        long y = r.longValue();
+        return x < y ? -1 : (x > y ? 1 : 0);
+    }
+
+    public String toString() {
+        if (kind == Kind.LIKE) {
+            return property + " LIKE '" + values[0] + "'" + (values.length > 1 ? " ESCAPE '" + values[1] + "'" : "");
+        }
+        return property + " " + kind + " " + Arrays.toString(values);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buck.jsql;
+
+import com.buck.commons.i18n.ResourceBundle;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A query containing parameters, either positional (<code>?</code>) or
+ * named (<code>:name</code>), that is parsed and bound to POJO properties
+ * once and then executed with different parameter values. Binding values
+ * produces a {@link Query} that shares all of the prepared state, so it is
+ * cheap enough to do per request. A prepared query may be shared amongst
+ * threads.
+ *
+ * @author Robert J. Buck
+ */
+public class PreparedQuery<T> {
+
+    private final Query<T> query;
+
+    /**
+     * Prepares a query.
+     *
+     * @param type  the class that provides the context in which the query is interpreted
+     * @param query the query expression to prepare
+     * @throws QueryException if an exception occurred while parsing the query
+     *                        or binding to POJO fields
+     */
+    public PreparedQuery(Class type, String query) throws QueryException {
+        this(type, query, null);
+    }
+
+    /**
+     * Prepares a query whose subqueries refer to collections of a catalog.
+     *
+     * @param type    the class that provides the context in which the query is interpreted
+     * @param query   the query expression to prepare
+     * @param catalog the catalog naming the collections of subqueries
+     * @throws QueryException if an exception occurred while parsing the query,
+     *                        resolving a collection, or binding to POJO fields
+     */
+    public PreparedQuery(Class type, String query, Catalog catalog) throws QueryException {
+        this(new Query<T>(type, query, catalog));
+    }
+
+    /**
+     * Prepares an already parsed query.
+     *
+     * @param query the unbound query
+     */
+    PreparedQuery(Query<T> query) {
+        this.query = query;
+    }
+
+    /**
+     * Gets the number of distinct parameters.
+     *
+     * @return the number of parameters
+     */
+    public int getParameterCount() {
+        return query.getParameterNames().length;
+    }
+
+    /**
+     * Gets the name of a parameter.
+     *
+     * @param index the index of the parameter, starting at zero
+     * @return the parameter name, or null if the parameter is positional
+     */
+    public String getParameterName(int index) {
+        return query.getParameterNames()[index];
+    }
+
+    /**
+     * Binds parameter values by position. Named parameters take the position
+     * of their first appearance.
+     *
+     * @param values the parameter values, one per parameter
+     * @return a query bound to the values
+     * @throws QueryException if the number of values does not match the
+     *                        number of parameters
+     */
+    public Query<T> bind(Object... values) throws QueryException {
+        if (values.length != getParameterCount()) {
+            Object[] arguments = {getParameterCount(), values.length};
+            String message = ResourceBundle.formatResourceBundleMessage(PreparedQuery.class,
+                    "QUERY_PARAMETER_COUNT", arguments);
+            throw new QueryException(message);
+        }
+        return new Query<T>(query, values.clone());
+    }
+
+    /**
+     * Binds parameter values by name.
+     *
+     * @param values the parameter values, keyed by parameter name
+     * @return a query bound to the values
+     * @throws QueryException if a parameter is positional, or has no value
+     */
+    public Query<T> bind(Map<String, ?> values) throws QueryException {
+        String[] names = query.getParameterNames();
+        Object[] bound = new Object[names.length];
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] == null || !values.containsKey(names[i])) {
+                Object[] arguments = {names[i] != null ? ":" + names[i] : "?", i + 1};
+                String message = ResourceBundle.formatResourceBundleMessage(PreparedQuery.class,
+                        "QUERY_PARAMETER_NOT_BOUND", arguments);
+                throw new QueryException(message);
+            }
+            bound[i] = values.get(names[i]);
+        }
+        return new Query<T>(query, bound);
+    }
+
+    /**
+     * Selects objects from a collection satisfying the query with the given
+     * parameter values.
+     *
+     * @param coll   the collection to query
+     * @param values the parameter values, one per parameter
+     * @return the objects satisfying the query
+     * @throws QueryException if the values could not be bound, or if an
+     *                        exception occurred while evaluating the query
+     */
+    public Set<T> select(Collection<T> coll, Object... values) throws QueryException {
+        return bind(values).select(coll);
+    }
+
+    /**
+     * Applies an action to objects from a collection which satisfy the query
+     * with the given parameter values.
+     *
+     * @param coll   the collection to query and apply an action to
+     * @param apply  the action to apply to objects satisfying the query
+     * @param values the parameter values, one per parameter
+     * @throws QueryException if the values could not be bound, or if an
+     *                        exception occurred while evaluating the query
+     */
+    public void apply(Collection<T> coll, Query.Apply<T> apply, Object... values) throws QueryException {
+        bind(values).apply(coll, apply);
+    }
+}
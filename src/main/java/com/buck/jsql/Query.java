@@ -18,15 +18,23 @@ package com.buck.jsql;
 
 import com.buck.commons.i18n.ResourceBundle;
 import com.buck.jsql.identifiers.Identifier;
+import com.buck.jsql.identifiers.Parameter;
 import com.buck.jsql.reflection.Getter;
 import com.buck.jsql.reflection.PropertyAccessException;
 import com.buck.jsql.reflection.PropertyNotFoundException;
 import com.buck.jsql.reflection.ReflectionSupport;
+import com.buck.jsql.util.ValueSet;
+import com.buck.jsql.util.Values;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
-import java.util.TreeMap;
 
 /**
  * Queries a collection of objects.
@@ -35,11 +43,26 @@ import java.util.TreeMap;
  */
 public class Query<T> {
 
+    private static final Object[] NO_BINDINGS = new Object[0];
+
+    private final Class type;
     private final Expression expression;
-    private final TreeMap<Identifier, Getter> accessors;
+    private final Getter[] accessors;
+    private final String[] properties;
+    private final Identifier[] projection;
+    private final SortKey[] ordering;
+    private final Catalog catalog;
+    private final String[] sources;
+    private final Query<?>[] subqueries;
+    private final String[] parameterNames;
+    private final Object[] parameters;
+    private volatile Results results;
 
     /**
-     * Create a Query object.
+     * Create a Query object. The query is either a search condition, such as
+     * <code>age &gt;= 50</code>, or a query specification naming the
+     * properties to project, such as <code>SELECT name, age WHERE age &gt;=
+     * 50</code>.
      *
      * @param type  the class that provides the context in which the query is interpreted
      * @param query the query expression to execute.
@@ -47,36 +70,503 @@ public class Query<T> {
      *                        or binding to POJO fields
      */
     public Query(Class type, String query) throws QueryException {
-        SQLParser parser = new SQLParser();
-        SQLParser.ParserState state = parser.parse(query);
+        this(type, query, null);
+    }
+
+    /**
+     * Create a Query object whose subqueries refer to collections of a
+     * catalog, such as <code>deptId IN (SELECT id FROM departments WHERE
+     * region = 'EU')</code>. Each subquery is evaluated once per scan of the
+     * outer query, against the collection registered in the catalog at the
+     * time of the scan. Later scans, and {@link #matches}, reuse the result
+     * for as long as the same collection is registered and, being {@link
+     * Versioned}, reports no change since.
+     *
+     * @param type    the class that provides the context in which the query is interpreted
+     * @param query   the query expression to execute.
+     * @param catalog the catalog naming the collections of subqueries
+     * @throws QueryException if an exception occurred while parsing the query,
+     *                        resolving a collection, or binding to POJO fields
+     */
+    public Query(Class type, String query, Catalog catalog) throws QueryException {
+        this(type, new SQLParser().parse(query), catalog);
+    }
+
+    private Query(Class type, SQLParser.ParserState state, Catalog catalog) throws QueryException {
+        this.type = type;
+        this.catalog = catalog;
         expression = state.getRoot();
+        parameters = null;
 
-        // establish the property accessors
-        accessors = new TreeMap<Identifier, Getter>();
+        // establish the property accessors, indexed by identifier ordinal
         Collection<Identifier> identifiers = state.getIdentifiers();
+        accessors = new Getter[identifiers.size()];
+        properties = new String[identifiers.size()];
         for (Identifier id : identifiers) {
-            try {
-                accessors.put(id, ReflectionSupport.getGetter(type, id.toString()));
-            } catch (PropertyNotFoundException e) {
-                Object[] arguments = {id.toString(), type.getName()};
-                String message = ResourceBundle.formatResourceBundleMessage(Query.class,
-                        "QUERY_PROPERTY_NOT_FOUND", arguments);
-                throw new QueryException(message, e);
+            accessors[id.getOrdinal()] = getGetter(type, id.toString());
+            properties[id.getOrdinal()] = id.toString();
+        }
+        List<Identifier> columns = state.getProjection();
+        projection = columns.toArray(new Identifier[columns.size()]);
+        List<SortKey> keys = state.getOrdering();
+        ordering = keys.toArray(new SortKey[keys.size()]);
+
+        // bind the subqueries to the element types of their collections
+        List<SQLParser.ParserState> states = state.getSubQueries();
+        sources = new String[states.size()];
+        subqueries = new Query<?>[states.size()];
+        for (int i = 0; i < sources.length; i++) {
+            SQLParser.ParserState subquery = states.get(i);
+            sources[i] = subquery.getSource();
+            subqueries[i] = new Query<Object>(getSourceType(sources[i]), subquery, catalog);
+        }
+
+        List<Parameter> declared = state.getParameters();
+        parameterNames = new String[declared.size()];
+        for (Parameter parameter : declared) {
+            parameterNames[parameter.getIndex()] = parameter.getName();
+        }
+    }
+
+    /**
+     * Creates a query sharing the parsed and bound state of another query,
+     * but with its own parameter values.
+     *
+     * @param query      the query to share state with
+     * @param parameters the parameter values, indexed by parameter
+     */
+    Query(Query<T> query, Object[] parameters) {
+        this.type = query.type;
+        this.expression = query.expression;
+        this.accessors = query.accessors;
+        this.properties = query.properties;
+        this.projection = query.projection;
+        this.ordering = query.ordering;
+        this.catalog = query.catalog;
+        this.sources = query.sources;
+        this.subqueries = query.subqueries;
+        this.parameterNames = query.parameterNames;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Gets the names of the parameters, indexed by parameter; positional
+     * parameters have a null name.
+     *
+     * @return the parameter names
+     */
+    String[] getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * Gets the parsed search condition.
+     *
+     * @return the root of the expression tree
+     */
+    Expression getExpression() {
+        return expression;
+    }
+
+    /**
+     * Gets the parameter values the query is bound to.
+     *
+     * @return the parameter values, or null if the query is not bound
+     */
+    Object[] getParameters() {
+        return parameters;
+    }
+
+    /**
+     * Gets the names of the properties the query reads, indexed by
+     * identifier ordinal.
+     *
+     * @return the property names
+     */
+    String[] getPropertyNames() {
+        return properties;
+    }
+
+    /**
+     * Gets the results of the subqueries for a scan, evaluating them anew
+     * unless the collections they read are versioned and unchanged.
+     *
+     * @return the bindings for a scan, indexed by subquery
+     * @throws QueryException if a subquery could not be evaluated
+     */
+    Object[] getBindings() throws QueryException {
+        if (subqueries.length == 0) {
+            return NO_BINDINGS;
+        }
+        Results last = results;
+        if (last != null && last.isCurrent(catalog)) {
+            return last.bindings;
+        }
+        Results current = new Results();
+        current.bindings = evaluateSubQueries(parameters, current);
+        if (current.versioned) {
+            results = current;
+        }
+        return current.bindings;
+    }
+
+    /**
+     * Reports a parameter having no value.
+     *
+     * @param index the index of the parameter
+     * @return the exception to throw
+     */
+    EvaluationException parameterNotBound(int index) {
+        Object[] arguments = {parameterNames[index] != null ? ":" + parameterNames[index] : "?", index + 1};
+        String message = ResourceBundle.formatResourceBundleMessage(Query.class,
+                "QUERY_PARAMETER_NOT_BOUND", arguments);
+        return new EvaluationException(message);
+    }
+
+    private Class getSourceType(String source) throws QueryException {
+        Class sourceType = catalog != null ? catalog.getType(source) : null;
+        if (sourceType == null) {
+            throw collectionNotFound(source);
+        }
+        return sourceType;
+    }
+
+    private static QueryException collectionNotFound(String source) {
+        Object[] arguments = {source};
+        String message = ResourceBundle.formatResourceBundleMessage(Query.class,
+                "QUERY_COLLECTION_NOT_FOUND", arguments);
+        return new QueryException(message);
+    }
+
+    /**
+     * Creates the evaluation state for a scan.
+     *
+     * @return the evaluation state
+     * @throws QueryException if a subquery could not be evaluated
+     */
+    Row newRow() throws QueryException {
+        return new Row(getBindings(), parameters);
+    }
+
+    /**
+     * The results of the subqueries, along with the collections read to
+     * evaluate them, nested subqueries included, and the versions of those
+     * collections at the time.
+     */
+    private static final class Results {
+        private final List<String> sources = new ArrayList<String>();
+        private final List<Collection<?>> collections = new ArrayList<Collection<?>>();
+        private final List<Long> versions = new ArrayList<Long>();
+        private boolean versioned = true;
+        private Object[] bindings;
+
+        void read(String source, Collection<?> coll) {
+            sources.add(source);
+            collections.add(coll);
+            if (coll instanceof Versioned) {
+                versions.add(((Versioned) coll).getVersion());
+            } else {
+                versions.add(null);
+                versioned = false;
             }
         }
+
+        boolean isCurrent(Catalog catalog) {
+            for (int i = 0; i < sources.size(); i++) {
+                Collection<?> coll = catalog.getCollection(sources.get(i));
+                if (coll != collections.get(i) || ((Versioned) coll).getVersion() != versions.get(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
     }
 
-    public Set<T> select(Collection<T> coll) throws QueryException {
-        Set<T> set = new HashSet<T>();
-        for (final T object : coll) {
-            boolean select = (Boolean) expression.evaluate(new EvaluationContext() {
-                public Object getValue(Identifier identifier) throws PropertyAccessException {
-                    return accessors.get(identifier).get(object);
+    /**
+     * Evaluates the subqueries into hash sets of their projected values,
+     * noting the collections read. The version of a collection is noted
+     * before it is read, so that a change made meanwhile is seen later.
+     *
+     * @param parameters the parameter values of the outermost query
+     * @param results    the results, noting the collections read
+     * @return the bindings for a scan, indexed by subquery
+     * @throws QueryException if a collection is no longer in the catalog, or
+     *                        if a subquery could not be evaluated
+     */
+    private Object[] evaluateSubQueries(Object[] parameters, Results results) throws QueryException {
+        Object[] bindings = new Object[subqueries.length];
+        for (int i = 0; i < subqueries.length; i++) {
+            Collection<?> coll = catalog.getCollection(sources[i]);
+            if (coll == null) {
+                throw collectionNotFound(sources[i]);
+            }
+            results.read(sources[i], coll);
+            ValueSet set = new ValueSet(coll.size());
+            subqueries[i].collect(coll, set, parameters, results);
+            bindings[i] = set;
+        }
+        return bindings;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private void collect(Collection<?> coll, ValueSet set, Object[] parameters, Results results)
+            throws QueryException {
+        Query<Object> query = (Query<Object>) this;
+        Query<Object>.Row row = query.new Row(evaluateSubQueries(parameters, results), parameters);
+        Query<Object>.Scan scan = query.scan((Collection<Object>) coll, row);
+        while (scan.next()) {
+            set.add(row.getValue(projection[0]));
+        }
+    }
+
+    /**
+     * Gets the elements of a collection a scan must visit; all of them,
+     * unless the collection is able to narrow them down.
+     *
+     * @param coll the collection to scan
+     * @return the elements to scan
+     * @throws QueryException if the collection failed to plan the query
+     */
+    @SuppressWarnings({"unchecked"})
+    private Collection<T> candidates(Collection<T> coll) throws QueryException {
+        if (coll instanceof Queryable) {
+            Collection<T> candidates = ((Queryable<T>) coll).candidates(this);
+            if (candidates != null) {
+                return candidates;
+            }
+        }
+        return coll;
+    }
+
+    /**
+     * Starts a scan of a collection, over its columns if it is a columnar
+     * table, and otherwise over the elements it narrows the scan down to.
+     *
+     * @param coll the collection to scan
+     * @param row  the evaluation state of the scan
+     * @return the scan
+     * @throws QueryException if the collection failed to plan the query
+     */
+    @SuppressWarnings({"unchecked"})
+    private Scan scan(Collection<T> coll, Row row) throws QueryException {
+        if (coll instanceof ColumnarTable) {
+            ColumnarTable<T> table = (ColumnarTable<T>) coll;
+            row.bind(table);
+            return new Scan(row, table.rows(this));
+        }
+        return new Scan(row, candidates(coll).iterator());
+    }
+
+    /**
+     * Gets a property accessor, reporting a missing property as a query
+     * exception.
+     *
+     * @param type the class declaring the property
+     * @param name the name of the property
+     * @return the property accessor
+     * @throws QueryException if the class has no such property
+     */
+    static Getter getGetter(Class type, String name) throws QueryException {
+        try {
+            return ReflectionSupport.getGetter(type, name);
+        } catch (PropertyNotFoundException e) {
+            Object[] arguments = {name, type.getName()};
+            String message = ResourceBundle.formatResourceBundleMessage(Query.class,
+                    "QUERY_PROPERTY_NOT_FOUND", arguments);
+            throw new QueryException(message, e);
+        }
+    }
+
+    /**
+     * Gets the class that provides the context in which the query is
+     * interpreted.
+     *
+     * @return the class the query is bound to
+     */
+    public Class getType() {
+        return type;
+    }
+
+    /**
+     * Gets the sort keys of the ORDER BY clause of the query.
+     *
+     * @return the sort keys, most significant first; empty if the query has
+     *         no ORDER BY clause
+     */
+    public List<SortKey> getOrdering() {
+        return Arrays.asList(ordering);
+    }
+
+    /**
+     * Evaluation state for a single scan. Property values are fetched at
+     * most once per row, and are shared by the search condition and the
+     * projection. Over a columnar table, values are fetched from the
+     * columns, and the element is only created if a property has no column
+     * or the element itself is asked for.
+     */
+    final class Row implements QueryContext {
+        private final Object[] values = new Object[accessors.length];
+        private final boolean[] fetched = new boolean[accessors.length];
+        private final Object[] bindings;
+        private final Object[] parameters;
+        private Object object;
+        private ColumnarTable<?> table;
+        private int[] columns;
+        private int position;
+
+        Row(Object[] bindings, Object[] parameters) {
+            this.bindings = bindings;
+            this.parameters = parameters;
+        }
+
+        void reset(Object object) {
+            this.object = object;
+            Arrays.fill(fetched, false);
+        }
+
+        /**
+         * Binds the row to the columns of a table, which are then read by
+         * position.
+         *
+         * @param table the table to scan
+         */
+        void bind(ColumnarTable<?> table) {
+            this.table = table;
+            columns = new int[properties.length];
+            for (int i = 0; i < properties.length; i++) {
+                columns[i] = table.column(properties[i]);
+            }
+        }
+
+        void reset(int position) {
+            this.position = position;
+            this.object = null;
+            Arrays.fill(fetched, false);
+        }
+
+        Object getObject() {
+            if (object == null && table != null) {
+                object = table.get(position);
+            }
+            return object;
+        }
+
+        boolean matches() throws EvaluationException {
+            return Boolean.TRUE.equals(expression.evaluate(this));
+        }
+
+        public Object getValue(Identifier identifier) throws PropertyAccessException {
+            int i = identifier.getOrdinal();
+            if (!fetched[i]) {
+                if (table != null && columns[i] >= 0) {
+                    values[i] = table.getValue(columns[i], position);
+                } else {
+                    values[i] = accessors[i].get(getObject());
                 }
-            });
-            if (select) {
-                set.add(object);
+                fetched[i] = true;
             }
+            return values[i];
+        }
+
+        public Object getBinding(int index) {
+            return bindings[index];
+        }
+
+        public Object getParameter(int index) throws EvaluationException {
+            if (parameters == null) {
+                throw parameterNotBound(index);
+            }
+            return parameters[index];
+        }
+
+        Object[] project() throws PropertyAccessException {
+            Object[] tuple = new Object[projection.length];
+            for (int i = 0; i < projection.length; i++) {
+                tuple[i] = getValue(projection[i]);
+            }
+            return tuple;
+        }
+    }
+
+    /**
+     * A scan over the candidates of a collection, or over the candidate
+     * rows of a columnar table, stopping at each that satisfies the query.
+     */
+    final class Scan {
+        private final Row row;
+        private final Iterator<T> iterator;
+        private final int[] positions;
+        private int next;
+
+        Scan(Row row, Iterator<T> iterator) {
+            this.row = row;
+            this.iterator = iterator;
+            this.positions = null;
+        }
+
+        Scan(Row row, int[] positions) {
+            this.row = row;
+            this.iterator = null;
+            this.positions = positions;
+        }
+
+        /**
+         * Advances to the next candidate satisfying the query, whose values
+         * are then those of the row.
+         *
+         * @return false if there is none
+         * @throws EvaluationException if the query failed to evaluate
+         */
+        boolean next() throws EvaluationException {
+            if (positions != null) {
+                while (next < positions.length) {
+                    row.reset(positions[next++]);
+                    if (row.matches()) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            while (iterator.hasNext()) {
+                row.reset(iterator.next());
+                if (row.matches()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Gets the candidate satisfying the query.
+         *
+         * @return the element
+         */
+        @SuppressWarnings({"unchecked"})
+        T object() {
+            return (T) row.getObject();
+        }
+    }
+
+    /**
+     * Tests whether a single object satisfies the query. An unknown (null)
+     * result does not satisfy the query.
+     *
+     * @param object the object to test
+     * @return true if the object satisfies the query
+     * @throws QueryException if an exception occurred while evaluating the
+     *                        query
+     */
+    public boolean matches(T object) throws QueryException {
+        Row row = newRow();
+        row.reset(object);
+        return row.matches();
+    }
+
+    public Set<T> select(Collection<T> coll) throws QueryException {
+        Set<T> set = new HashSet<T>();
+        Scan scan = scan(coll, newRow());
+        while (scan.next()) {
+            set.add(scan.object());
         }
         return set;
     }
@@ -98,15 +588,152 @@ public class Query<T> {
      *                        or binding to POJO fields
      */
     public void apply(Collection<T> coll, Apply<T> apply) throws QueryException {
-        for (final T object : coll) {
-            boolean select = (Boolean) expression.evaluate(new EvaluationContext() {
-                public Object getValue(Identifier identifier) throws PropertyAccessException {
-                    return accessors.get(identifier).get(object);
+        Scan scan = scan(coll, newRow());
+        while (scan.next()) {
+            apply.action(scan.object());
+        }
+    }
+
+    /**
+     * Lists the objects from a collection which satisfy the query, in the
+     * order of the ORDER BY clause of the query. Objects that sort alike, or
+     * all objects if there is no ORDER BY clause, are listed in collection
+     * order.
+     *
+     * @param coll the collection to query
+     * @return the objects satisfying the query
+     * @throws QueryException if an exception occurred while evaluating the
+     *                        query
+     */
+    public List<T> list(Collection<T> coll) throws QueryException {
+        List<Match> matches = matches(coll, false);
+        List<T> objects = new ArrayList<T>(matches.size());
+        for (Match match : matches) {
+            objects.add(match.object);
+        }
+        return objects;
+    }
+
+    /**
+     * Projects the properties named by the select list of the query from the
+     * objects which satisfy the query, returning one tuple per object.
+     *
+     * @param coll the collection to query
+     * @return the projected tuples, in the order of the ORDER BY clause or
+     *         else in collection order
+     * @throws QueryException if the query has no select list, or if an
+     *                        exception occurred while evaluating the query
+     */
+    public List<Tuple> project(Collection<T> coll) throws QueryException {
+        String[] names = getColumnNames();
+        List<Match> matches = matches(coll, true);
+        List<Tuple> tuples = new ArrayList<Tuple>(matches.size());
+        for (Match match : matches) {
+            tuples.add(new Tuple(names, match.tuple));
+        }
+        return tuples;
+    }
+
+    /**
+     * Projects the properties named by the select list of the query from the
+     * objects which satisfy the query, returning the values column by column.
+     * Primitive properties are stored in primitive arrays. Rows are in the
+     * order of the ORDER BY clause, or else in collection order.
+     *
+     * @param coll the collection to query
+     * @return the projected columns
+     * @throws QueryException if the query has no select list, or if an
+     *                        exception occurred while evaluating the query
+     * @see Columns
+     */
+    public Columns columns(Collection<T> coll) throws QueryException {
+        String[] names = getColumnNames();
+        Class[] types = new Class[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            types[i] = accessors[projection[i].getOrdinal()].getReturnType();
+        }
+        Columns.Builder builder = new Columns.Builder(names, types);
+        for (Match match : matches(coll, true)) {
+            builder.add(match.tuple);
+        }
+        return builder.build();
+    }
+
+    /**
+     * An object satisfying the query, along with its sort keys and its
+     * projection.
+     */
+    private final class Match {
+        private final T object;
+        private final Object[] keys;
+        private final Object[] tuple;
+
+        Match(T object, Object[] keys, Object[] tuple) {
+            this.object = object;
+            this.keys = keys;
+            this.tuple = tuple;
+        }
+    }
+
+    /**
+     * Finds the objects satisfying the query, sorted as the ORDER BY clause
+     * specifies. If the collection is able to supply the candidates in that
+     * order, they are not sorted again.
+     *
+     * @param coll    the collection to query
+     * @param project true to project the properties of the select list
+     * @return the matches
+     * @throws QueryException if an exception occurred while evaluating the
+     *                        query
+     */
+    @SuppressWarnings({"unchecked"})
+    private List<Match> matches(Collection<T> coll, boolean project) throws QueryException {
+        Collection<T> candidates = null;
+        if (ordering.length > 0 && coll instanceof Queryable) {
+            candidates = ((Queryable<T>) coll).ordered(this);
+        }
+        boolean sort = ordering.length > 0 && candidates == null;
+        List<Match> matches = new ArrayList<Match>();
+        Row row = newRow();
+        Scan scan = candidates != null ? new Scan(row, candidates.iterator()) : scan(coll, row);
+        while (scan.next()) {
+            Object[] keys = null;
+            if (sort) {
+                keys = new Object[ordering.length];
+                for (int i = 0; i < ordering.length; i++) {
+                    keys[i] = row.getValue(ordering[i].getIdentifier());
                 }
-            });
-            if (select) {
-                apply.action(object);
             }
+            // a projection needs no element, which a columnar table would have to create
+            matches.add(new Match(project ? null : scan.object(), keys, project ? row.project() : null));
+        }
+        if (sort) {
+            // a merge sort, hence stable
+            Collections.sort(matches, new Comparator<Match>() {
+                public int compare(Match a, Match b) {
+                    for (int i = 0; i < ordering.length; i++) {
+                        int c = Values.compare(a.keys[i], b.keys[i]);
+                        if (c != 0) {
+                            return ordering[i].isAscending() ? c : -c;
+                        }
+                    }
+                    return 0;
+                }
+            });
+        }
+        return matches;
+    }
+
+    private String[] getColumnNames() throws QueryException {
+        if (projection.length == 0) {
+            String message = ResourceBundle.formatResourceBundleMessage(Query.class,
+                    "QUERY_NO_PROJECTION", new Object[0]);
+            throw new QueryException(message);
+        }
+        String[] names = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            names[i] = projection[i].toString();
         }
+        return names;
     }
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import com.buck.jsql.identifiers.Identifier;
+import com.buck.jsql.reflection.Getter;
+import com.buck.jsql.reflection.PropertyAccessException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Evaluates many queries over one collection in a single pass. Each
+ * element is visited once, each property is read at most once per element
+ * and shared by every query reading it, and each query then receives the
+ * elements satisfying it.
+ *
+ * @author Robert J. Buck
+ */
+public class QueryBatch<T> {
+
+    private final Class type;
+    private final List<Query<T>> queries = new ArrayList<Query<T>>();
+    private final List<Query.Apply<T>> actions = new ArrayList<Query.Apply<T>>();
+    private final List<int[]> slots = new ArrayList<int[]>();
+    private final Map<String, Integer> properties = new HashMap<String, Integer>();
+    private final List<Getter> getters = new ArrayList<Getter>();
+
+    /**
+     * Constructs an empty batch.
+     *
+     * @param type the class of the elements of the collections scanned
+     */
+    public QueryBatch(Class type) {
+        this.type = type;
+    }
+
+    /**
+     * Adds a query whose elements are returned by {@link #select}.
+     *
+     * @param query the query to add
+     * @return the index of the query in the batch
+     * @throws QueryException if the query refers to a property the element
+     *                        class does not have
+     */
+    public int add(Query<T> query) throws QueryException {
+        return add(query, null);
+    }
+
+    /**
+     * Adds a query and the action {@link #apply} applies to the elements
+     * satisfying it.
+     *
+     * @param query  the query to add
+     * @param action the action to apply, or null
+     * @return the index of the query in the batch
+     * @throws QueryException if the query refers to a property the element
+     *                        class does not have
+     */
+    public int add(Query<T> query, Query.Apply<T> action) throws QueryException {
+        // map the identifier ordinals of the query onto the shared property slots
+        String[] names = query.getPropertyNames();
+        int[] local = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            Integer slot = properties.get(names[i]);
+            if (slot == null) {
+                getters.add(Query.getGetter(type, names[i]));
+                slot = getters.size() - 1;
+                properties.put(names[i], slot);
+            }
+            local[i] = slot;
+        }
+        queries.add(query);
+        actions.add(action);
+        slots.add(local);
+        return queries.size() - 1;
+    }
+
+    /**
+     * Gets the number of queries in the batch.
+     *
+     * @return the number of queries
+     */
+    public int size() {
+        return queries.size();
+    }
+
+    /**
+     * Selects the elements of a collection satisfying each query.
+     *
+     * @param coll the collection to scan
+     * @return the elements satisfying each query, indexed by query
+     * @throws QueryException if an exception occurred while evaluating a
+     *                        query
+     */
+    public List<Set<T>> select(Collection<T> coll) throws QueryException {
+        final List<Set<T>> results = new ArrayList<Set<T>>(queries.size());
+        for (int i = 0; i < queries.size(); i++) {
+            results.add(new HashSet<T>());
+        }
+        scan(coll, new Sink<T>() {
+            public void accept(int query, T object) {
+                results.get(query).add(object);
+            }
+        });
+        return results;
+    }
+
+    /**
+     * Applies the action of each query to the elements of a collection
+     * satisfying it. Queries added without an action are skipped.
+     *
+     * @param coll the collection to scan
+     * @throws QueryException if an exception occurred while evaluating a
+     *                        query
+     */
+    public void apply(Collection<T> coll) throws QueryException {
+        scan(coll, new Sink<T>() {
+            public void accept(int query, T object) {
+                Query.Apply<T> action = actions.get(query);
+                if (action != null) {
+                    action.action(object);
+                }
+            }
+        });
+    }
+
+    /**
+     * Receives the elements satisfying each query.
+     */
+    private interface Sink<T> {
+        void accept(int query, T object);
+    }
+
+    private void scan(Collection<T> coll, Sink<T> sink) throws QueryException {
+        int n = queries.size();
+        Expression[] expressions = new Expression[n];
+        Object[][] bindings = new Object[n][];
+        for (int i = 0; i < n; i++) {
+            expressions[i] = queries.get(i).getExpression();
+            bindings[i] = queries.get(i).getBindings();
+        }
+        Row row = new Row();
+        for (T object : coll) {
+            row.reset(object);
+            for (int i = 0; i < n; i++) {
+                row.select(queries.get(i), slots.get(i), bindings[i]);
+                if (Boolean.TRUE.equals(expressions[i].evaluate(row))) {
+                    sink.accept(i, object);
+                }
+            }
+        }
+    }
+
+    /**
+     * Evaluation state for a single pass. Property values are fetched at
+     * most once per element and shared by every query; identifiers are
+     * resolved through the slot mapping of the query being evaluated.
+     */
+    private final class Row implements QueryContext {
+        private final Object[] values = new Object[getters.size()];
+        private final boolean[] fetched = new boolean[getters.size()];
+        private Object object;
+        private Query<T> query;
+        private int[] local;
+        private Object[] bindings;
+
+        void reset(Object object) {
+            this.object = object;
+            Arrays.fill(fetched, false);
+        }
+
+        void select(Query<T> query, int[] local, Object[] bindings) {
+            this.query = query;
+            this.local = local;
+            this.bindings = bindings;
+        }
+
+        public Object getValue(Identifier identifier) throws PropertyAccessException {
+            int slot = local[identifier.getOrdinal()];
+            if (!fetched[slot]) {
+                values[slot] = getters.get(slot).get(object);
+                fetched[slot] = true;
+            }
+            return values[slot];
+        }
+
+        public Object getBinding(int index) {
+            return bindings[index];
+        }
+
+        public Object getParameter(int index) throws EvaluationException {
+            Object[] parameters = query.getParameters();
+            if (parameters == null) {
+                throw query.parameterNotBound(index);
+            }
+            return parameters[index];
+        }
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buck.jsql;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A thread-safe, size-bounded cache of parsed and bound queries, keyed by
+ * the class a query is bound to and its canonical text. Cached queries are
+ * immutable and shared by all callers; the least recently used entry is
+ * evicted once the cache is full.
+ * <p/>
+ * Literals are lifted out of the text of queries obtained through
+ * {@link #getQuery(Class, String)}, so that queries differing only in
+ * their literals, white space, comments or keyword case share one cached
+ * query.
+ *
+ * @see CanonicalQuery
+ * @author Robert J. Buck
+ */
+public class QueryCache {
+
+    private static final class Key {
+        private final Class type;
+        private final String text;
+
+        Key(Class type, String text) {
+            this.type = type;
+            this.text = text;
+        }
+
+        public int hashCode() {
+            return 31 * type.hashCode() + text.hashCode();
+        }
+
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj instanceof Key) {
+                Key other = (Key) obj;
+                return type == other.type && text.equals(other.text);
+            }
+            return false;
+        }
+    }
+
+    private final int capacity;
+    private final Catalog catalog;
+    private final LinkedHashMap<Key, Query<?>> plans;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Constructs a query cache.
+     *
+     * @param capacity the maximum number of cached queries
+     */
+    public QueryCache(int capacity) {
+        this(capacity, null);
+    }
+
+    /**
+     * Constructs a query cache whose queries may contain subqueries over the
+     * collections of a catalog.
+     *
+     * @param capacity the maximum number of cached queries
+     * @param catalog  the catalog naming the collections of subqueries
+     */
+    public QueryCache(final int capacity, Catalog catalog) {
+        this.capacity = capacity;
+        this.catalog = catalog;
+        this.plans = new LinkedHashMap<Key, Query<?>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 5163457390241762381L;
+
+            protected boolean removeEldestEntry(Map.Entry<Key, Query<?>> eldest) {
+                if (size() > QueryCache.this.capacity) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Gets a query, parsing and binding it on a cache miss. The literals of
+     * the query are lifted into implicit parameters, so the query returned
+     * is bound to the literal values of this particular text.
+     *
+     * @param type  the class that provides the context in which the query is interpreted
+     * @param query the query expression
+     * @return the query
+     * @throws QueryException if an exception occurred while parsing the query
+     *                        or binding to POJO fields
+     */
+    public <T> Query<T> getQuery(Class type, String query) throws QueryException {
+        CanonicalQuery canonical = CanonicalQuery.of(query, true);
+        Query<T> plan = lookup(type, canonical.getText());
+        return canonical.isParameterized() ? new Query<T>(plan, canonical.getValues()) : plan;
+    }
+
+    /**
+     * Gets a prepared query, parsing and binding it on a cache miss. Only
+     * the explicit parameters of the query are parameters of the prepared
+     * query.
+     *
+     * @param type  the class that provides the context in which the query is interpreted
+     * @param query the query expression
+     * @return a prepared query sharing the cached state
+     * @throws QueryException if an exception occurred while parsing the query
+     *                        or binding to POJO fields
+     */
+    public <T> PreparedQuery<T> getPreparedQuery(Class type, String query) throws QueryException {
+        CanonicalQuery canonical = CanonicalQuery.of(query, false);
+        return new PreparedQuery<T>(this.<T>lookup(type, canonical.getText()));
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private <T> Query<T> lookup(Class type, String text) throws QueryException {
+        Key key = new Key(type, text);
+        Query<?> plan;
+        synchronized (plans) {
+            plan = plans.get(key);
+        }
+        if (plan != null) {
+            hits.incrementAndGet();
+            return (Query<T>) plan;
+        }
+        misses.incrementAndGet();
+        // parse outside of the lock; a racing thread may parse the same text
+        plan = new Query<T>(type, text, catalog);
+        synchronized (plans) {
+            Query<?> existing = plans.get(key);
+            if (existing != null) {
+                return (Query<T>) existing;
+            }
+            plans.put(key, plan);
+        }
+        return (Query<T>) plan;
+    }
+
+    /**
+     * Gets the number of lookups answered from the cache.
+     *
+     * @return the hit count
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Gets the number of lookups that parsed a query.
+     *
+     * @return the miss count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Gets the number of queries evicted to respect the capacity.
+     *
+     * @return the eviction count
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * Gets the number of cached queries.
+     *
+     * @return the number of cached queries
+     */
+    public int size() {
+        synchronized (plans) {
+            return plans.size();
+        }
+    }
+
+    /**
+     * Removes all cached queries; the statistics are retained.
+     */
+    public void clear() {
+        synchronized (plans) {
+            plans.clear();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+/**
+ * The state of an evaluation by the query engine, which supplies what
+ * query expressions need beyond the values of identifiers: parameter
+ * values and subquery results. Expressions
+ * needing it fail to evaluate against any other evaluation context.
+ *
+ * @author Robert J. Buck
+ */
+public interface QueryContext extends EvaluationContext {
+    /**
+     * Gets a value bound to the query for the duration of an evaluation,
+     * such as the result of a subquery.
+     *
+     * @param index the index of the binding
+     * @return the bound value
+     * @throws EvaluationException if the binding is not available
+     */
+    public Object getBinding(int index) throws EvaluationException;
+
+    /**
+     * Gets the value of a query parameter.
+     *
+     * @param index the index of the parameter
+     * @return the parameter value
+     * @throws EvaluationException if the parameter is not bound
+     */
+    public Object getParameter(int index) throws EvaluationException;
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A collection able to narrow down the elements that may satisfy a query,
+ * typically by means of indexes. Queries scan the candidates in place of
+ * the whole collection, evaluating the search condition against each of
+ * them as usual. A collection may also be able to supply the candidates
+ * in the order of the ORDER BY clause of a query, sparing the sort.
+ *
+ * @author Robert J. Buck
+ */
+public interface Queryable<T> {
+    /**
+     * Gets the elements that may satisfy a query; every element satisfying
+     * the query must be among them.
+     *
+     * @param query the query
+     * @return the candidate elements, in collection order, or null if the
+     *         whole collection must be scanned
+     * @throws QueryException if an exception occurred while planning
+     */
+    public Collection<T> candidates(Query<T> query) throws QueryException;
+
+    /**
+     * Gets the elements that may satisfy a query in the order of its ORDER
+     * BY clause; elements that sort alike must be in collection order.
+     *
+     * @param query the query, having an ORDER BY clause
+     * @return the candidate elements in order, or null if the collection
+     *         cannot supply them in order
+     * @throws QueryException if an exception occurred while planning
+     */
+    public List<T> ordered(Query<T> query) throws QueryException;
+}
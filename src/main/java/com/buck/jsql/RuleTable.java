@@ -0,0 +1,352 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import com.buck.jsql.reflection.Getter;
+import com.buck.jsql.util.Values;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An ordered table of rules, each a query and an action, of which the first
+ * rule whose query an object satisfies wins.
+ * <p/>
+ * Rather than evaluating the rules one after another, the table is compiled
+ * into a decision tree. Each branch node reads one property and selects a
+ * child by its value; the child holds, in their original order, only the
+ * rules whose equality or IN conjuncts over that property admit the value,
+ * along with the rules that do not test the property. The property chosen
+ * at each node is the one tested for equality by the most remaining rules.
+ * Rules are tried in order at the leaves; conjuncts already decided by the
+ * path to the leaf are not tested again, and a rule all of whose conjuncts
+ * are decided wins without evaluating its query. Because rules that do not
+ * test a property are copied into every child, the depth of the tree is
+ * bounded.
+ * <p/>
+ * The table is compiled on the first dispatch following a change.
+ * <p/>
+ * The table is thread-safe. Rules may be added while objects are being
+ * dispatched; a dispatch uses the table as compiled when it started, whose
+ * nodes and candidates hold the property accessors they need. Actions are
+ * applied by the dispatching thread, holding no lock.
+ *
+ * @author Robert J. Buck
+ */
+public class RuleTable<T> {
+
+    /**
+     * The default bound on the depth of the decision tree.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 6;
+
+    private static final int LEAF_SIZE = 2;
+
+    private final Class type;
+    private final int maxDepth;
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private final Map<String, Getter> getters = new HashMap<String, Getter>();
+    private Node root;
+
+    /**
+     * Constructs an empty rule table.
+     *
+     * @param type the class of the objects dispatched
+     */
+    public RuleTable(Class type) {
+        this(type, DEFAULT_MAX_DEPTH);
+    }
+
+    /**
+     * Constructs an empty rule table.
+     *
+     * @param type     the class of the objects dispatched
+     * @param maxDepth the maximum number of properties tested before the
+     *                 remaining rules are tried in order
+     */
+    public RuleTable(Class type, int maxDepth) {
+        this.type = type;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Appends a rule, having lower priority than every rule added before.
+     *
+     * @param query  the query selecting the objects the rule applies to
+     * @param action the action to apply to those objects
+     * @throws QueryException if the query refers to a property the
+     *                        dispatched class does not have
+     */
+    public synchronized void add(Query<T> query, Query.Apply<T> action) throws QueryException {
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        boolean exact = Predicate.analyze(query, predicates);
+        for (Predicate predicate : predicates) {
+            if (!getters.containsKey(predicate.getProperty())) {
+                getters.put(predicate.getProperty(), Query.getGetter(type, predicate.getProperty()));
+            }
+        }
+        rules.add(new Rule(query, action, predicates, exact));
+        root = null;
+    }
+
+    /**
+     * Gets the number of rules.
+     *
+     * @return the number of rules
+     */
+    public synchronized int size() {
+        return rules.size();
+    }
+
+    /**
+     * Applies the action of the first rule an object satisfies.
+     *
+     * @param object the object to dispatch
+     * @return true if a rule was applied, false if the object satisfies no
+     *         rule
+     * @throws QueryException if an exception occurred while reading a
+     *                        property or evaluating a query
+     */
+    public boolean dispatch(T object) throws QueryException {
+        Rule rule = first(object);
+        if (rule == null) {
+            return false;
+        }
+        rule.action.action(object);
+        return true;
+    }
+
+    /**
+     * Finds the first rule an object satisfies.
+     *
+     * @param object the object to dispatch
+     * @return the index of the rule in the order added, or -1 if the object
+     *         satisfies no rule
+     * @throws QueryException if an exception occurred while reading a
+     *                        property or evaluating a query
+     */
+    public int find(T object) throws QueryException {
+        Rule rule = first(object);
+        return rule != null ? rule.index : -1;
+    }
+
+    private Rule first(T object) throws QueryException {
+        Node node = compile();
+        while (node.property != null) {
+            Object value = node.getter.get(object);
+            Node child = value != null ? node.children.get(Values.key(value)) : null;
+            node = child != null ? child : node.otherwise;
+        }
+        for (Candidate candidate : node.candidates) {
+            if (candidate.matches(object)) {
+                return candidate.rule;
+            }
+        }
+        return null;
+    }
+
+    private synchronized Node compile() {
+        if (root == null) {
+            List<Candidate> candidates = new ArrayList<Candidate>(rules.size());
+            for (Rule rule : rules) {
+                candidates.add(new Candidate(rule, rule.predicates));
+            }
+            root = build(candidates, 0);
+        }
+        return root;
+    }
+
+    private Node build(List<Candidate> candidates, int depth) {
+        // rules following one that always matches can never win
+        for (int i = 0; i < candidates.size(); i++) {
+            if (candidates.get(i).isUnconditional()) {
+                candidates = candidates.subList(0, i + 1);
+                break;
+            }
+        }
+        String property = depth < maxDepth && candidates.size() > LEAF_SIZE ? choose(candidates) : null;
+        if (property == null) {
+            return new Node(candidates);
+        }
+        Set<Object> values = new LinkedHashSet<Object>();
+        for (Candidate candidate : candidates) {
+            for (Predicate predicate : candidate.remaining) {
+                if (isEquality(predicate, property)) {
+                    for (Object value : predicate.getValues()) {
+                        values.add(value);
+                    }
+                }
+            }
+        }
+        Node node = new Node(property, getters.get(property));
+        for (Object value : values) {
+            node.children.put(value, build(admit(candidates, property, value), depth + 1));
+        }
+        node.otherwise = build(admit(candidates, property, null), depth + 1);
+        return node;
+    }
+
+    /**
+     * Chooses the property tested for equality by the most candidates.
+     */
+    private String choose(List<Candidate> candidates) {
+        Map<String, Integer> counts = new LinkedHashMap<String, Integer>();
+        for (Candidate candidate : candidates) {
+            Set<String> tested = new LinkedHashSet<String>();
+            for (Predicate predicate : candidate.remaining) {
+                if (predicate.getKind() == Predicate.Kind.EQ) {
+                    tested.add(predicate.getProperty());
+                }
+            }
+            for (String property : tested) {
+                Integer count = counts.get(property);
+                counts.put(property, count == null ? 1 : count + 1);
+            }
+        }
+        String best = null;
+        int most = 0;
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            if (entry.getValue() > most) {
+                best = entry.getKey();
+                most = entry.getValue();
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Selects the candidates that may match an object whose property has a
+     * value, removing the conjuncts the value decides. A null value stands
+     * for any value not tested by some candidate.
+     */
+    private List<Candidate> admit(List<Candidate> candidates, String property, Object value) {
+        List<Candidate> admitted = new ArrayList<Candidate>();
+        outer:
+        for (Candidate candidate : candidates) {
+            List<Predicate> remaining = new ArrayList<Predicate>(candidate.remaining.size());
+            for (Predicate predicate : candidate.remaining) {
+                if (isEquality(predicate, property)) {
+                    if (value == null || !contains(predicate.getValues(), value)) {
+                        continue outer;
+                    }
+                } else {
+                    remaining.add(predicate);
+                }
+            }
+            admitted.add(new Candidate(candidate.rule, remaining));
+        }
+        return admitted;
+    }
+
+    private static boolean isEquality(Predicate predicate, String property) {
+        return predicate.getKind() == Predicate.Kind.EQ && predicate.getProperty().equals(property);
+    }
+
+    private static boolean contains(Object[] values, Object value) {
+        for (Object v : values) {
+            if (v.equals(value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A rule as added to the table.
+     */
+    private final class Rule {
+        private final int index;
+        private final Query<T> query;
+        private final Query.Apply<T> action;
+        private final List<Predicate> predicates;
+        private final boolean exact;
+
+        Rule(Query<T> query, Query.Apply<T> action, List<Predicate> predicates, boolean exact) {
+            this.index = rules.size();
+            this.query = query;
+            this.action = action;
+            this.predicates = predicates;
+            this.exact = exact;
+        }
+    }
+
+    /**
+     * A rule at some node of the tree, and those of its conjuncts not
+     * decided by the path to the node, along with the accessors of the
+     * properties they test. Candidates are only created while compiling.
+     */
+    private final class Candidate {
+        private final Rule rule;
+        private final List<Predicate> remaining;
+        private final Getter[] accessors;
+
+        Candidate(Rule rule, List<Predicate> remaining) {
+            this.rule = rule;
+            this.remaining = remaining;
+            accessors = new Getter[remaining.size()];
+            for (int i = 0; i < accessors.length; i++) {
+                accessors[i] = getters.get(remaining.get(i).getProperty());
+            }
+        }
+
+        boolean isUnconditional() {
+            return rule.exact && remaining.isEmpty();
+        }
+
+        boolean matches(T object) throws QueryException {
+            if (!rule.exact) {
+                return rule.query.matches(object);
+            }
+            for (int i = 0; i < accessors.length; i++) {
+                Object value = accessors[i].get(object);
+                if (value == null || !remaining.get(i).test(value)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * A node of the decision tree; a branch on the value of a property, or
+     * a leaf holding the candidate rules in order.
+     */
+    private final class Node {
+        private final String property;
+        private final Getter getter;
+        private final Map<Object, Node> children = new HashMap<Object, Node>();
+        private Node otherwise;
+        private final List<Candidate> candidates;
+
+        Node(String property, Getter getter) {
+            this.property = property;
+            this.getter = getter;
+            this.candidates = null;
+        }
+
+        Node(List<Candidate> candidates) {
+            this.property = null;
+            this.getter = null;
+            this.candidates = candidates;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import com.buck.jsql.reflection.Getter;
+import com.buck.jsql.util.Values;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Matches an object against many standing queries, such as the selectors of
+ * message subscribers, without evaluating every query.
+ * <p/>
+ * Each query is split into its top level conjuncts. Equality, IN and range
+ * conjuncts over a property are entered in per property indexes: a hash
+ * table for equality values and sorted maps for range bounds. To match an
+ * object, each indexed property is read once, and every predicate it
+ * satisfies increments a counter of its query; a query whose counter
+ * reaches its number of predicates is a candidate. Candidates having
+ * conjuncts that could not be indexed are then verified by evaluating the
+ * whole query. Queries having no indexable conjunct at all are always
+ * evaluated.
+ * <p/>
+ * The index is not synchronized. Any number of threads may match objects
+ * concurrently, provided no thread adds or removes queries meanwhile.
+ *
+ * @author Robert J. Buck
+ */
+public class SelectorIndex<T, K> {
+
+    private final Class type;
+    private final Map<K, Subscription> subscriptions = new HashMap<K, Subscription>();
+    private final Map<String, PropertyIndex> properties = new LinkedHashMap<String, PropertyIndex>();
+    private final List<Subscription> unindexed = new ArrayList<Subscription>();
+    private final List<Subscription> slots = new ArrayList<Subscription>();
+    private final List<Integer> free = new ArrayList<Integer>();
+
+    /**
+     * Constructs an empty selector index.
+     *
+     * @param type the class of the objects to match
+     */
+    public SelectorIndex(Class type) {
+        this.type = type;
+    }
+
+    /**
+     * Registers a query under a key, replacing any query previously
+     * registered under the key.
+     *
+     * @param key   the key identifying the query, such as a subscription
+     * @param query the query to register
+     * @throws QueryException if the query refers to a property the indexed
+     *                        class does not have
+     */
+    public void add(K key, Query<T> query) throws QueryException {
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        boolean exact = Predicate.analyze(query, predicates);
+        Map<String, Getter> getters = new HashMap<String, Getter>();
+        for (Predicate predicate : predicates) {
+            getters.put(predicate.getProperty(), Query.getGetter(type, predicate.getProperty()));
+        }
+        remove(key);
+        for (Map.Entry<String, Getter> entry : getters.entrySet()) {
+            if (!properties.containsKey(entry.getKey())) {
+                properties.put(entry.getKey(), new PropertyIndex(entry.getValue()));
+            }
+        }
+        Subscription subscription = new Subscription(key, query, predicates, exact);
+        if (free.isEmpty()) {
+            subscription.slot = slots.size();
+            slots.add(subscription);
+        } else {
+            subscription.slot = free.remove(free.size() - 1);
+            slots.set(subscription.slot, subscription);
+        }
+        subscriptions.put(key, subscription);
+        if (predicates.isEmpty()) {
+            unindexed.add(subscription);
+        } else {
+            for (Predicate predicate : predicates) {
+                properties.get(predicate.getProperty()).add(predicate, subscription);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the query registered under a key.
+     *
+     * @param key the key identifying the query
+     * @return true if a query was registered under the key
+     */
+    public boolean remove(K key) {
+        Subscription subscription = subscriptions.remove(key);
+        if (subscription == null) {
+            return false;
+        }
+        if (subscription.predicates.isEmpty()) {
+            unindexed.remove(subscription);
+        } else {
+            for (Predicate predicate : subscription.predicates) {
+                PropertyIndex index = properties.get(predicate.getProperty());
+                index.remove(predicate, subscription);
+                if (index.isEmpty()) {
+                    properties.remove(predicate.getProperty());
+                }
+            }
+        }
+        slots.set(subscription.slot, null);
+        free.add(subscription.slot);
+        return true;
+    }
+
+    /**
+     * Gets the number of registered queries.
+     *
+     * @return the number of queries
+     */
+    public int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Finds the queries an object satisfies.
+     *
+     * @param object the object to match
+     * @return the keys of the satisfied queries, in no particular order
+     * @throws QueryException if an exception occurred while reading a
+     *                        property or evaluating a query
+     */
+    public List<K> match(T object) throws QueryException {
+        int[] counts = new int[slots.size()];
+        List<Subscription> candidates = new ArrayList<Subscription>();
+        for (PropertyIndex index : properties.values()) {
+            Object value = index.getter.get(object);
+            if (value != null) {
+                index.count(value, counts, candidates);
+            }
+        }
+        List<K> matches = new ArrayList<K>();
+        for (Subscription subscription : candidates) {
+            if (subscription.exact || subscription.query.matches(object)) {
+                matches.add(subscription.key);
+            }
+        }
+        for (Subscription subscription : unindexed) {
+            if (subscription.query.matches(object)) {
+                matches.add(subscription.key);
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * A registered query.
+     */
+    private final class Subscription {
+        private final K key;
+        private final Query<T> query;
+        private final List<Predicate> predicates;
+        private final boolean exact;
+        private int slot;
+
+        Subscription(K key, Query<T> query, List<Predicate> predicates, boolean exact) {
+            this.key = key;
+            this.query = query;
+            this.predicates = predicates;
+            this.exact = exact;
+        }
+
+        /**
+         * Counts a satisfied predicate, adding the subscription to the
+         * candidates once all its predicates are satisfied.
+         */
+        void hit(int[] counts, List<Subscription> candidates) {
+            if (++counts[slot] == predicates.size()) {
+                candidates.add(this);
+            }
+        }
+    }
+
+    /**
+     * Orders range bounds as the comparison predicate does.
+     */
+    private static final Comparator<Object> BOUNDS = new Comparator<Object>() {
+        public int compare(Object a, Object b) {
+            return Predicate.compare(a, b);
+        }
+    };
+
+    /**
+     * The predicates over one property. Equality values are hashed; range
+     * bounds are kept in sorted maps, one per kind of range and kind of
+     * value, so that the predicates satisfied by a value form a prefix or
+     * a suffix of a map.
+     */
+    private final class PropertyIndex {
+        private final Getter getter;
+        private final HashMap<Object, List<Subscription>> equal = new HashMap<Object, List<Subscription>>();
+        private final Map<Predicate.Kind, NavigableMap<Object, List<Subscription>>> numbers =
+                new HashMap<Predicate.Kind, NavigableMap<Object, List<Subscription>>>();
+        private final Map<Predicate.Kind, NavigableMap<Object, List<Subscription>>> strings =
+                new HashMap<Predicate.Kind, NavigableMap<Object, List<Subscription>>>();
+        private int size;
+
+        PropertyIndex(Getter getter) {
+            this.getter = getter;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(Predicate predicate, Subscription subscription) {
+            size++;
+            if (predicate.getKind() == Predicate.Kind.EQ) {
+                for (Object value : predicate.getValues()) {
+                    bucket(equal, value, true).add(subscription);
+                }
+            } else {
+                Object bound = predicate.getValues()[0];
+                bucket(ranges(bound, predicate.getKind(), true), bound, true).add(subscription);
+            }
+        }
+
+        void remove(Predicate predicate, Subscription subscription) {
+            size--;
+            if (predicate.getKind() == Predicate.Kind.EQ) {
+                for (Object value : predicate.getValues()) {
+                    removeFrom(equal, value, subscription);
+                }
+            } else {
+                Object bound = predicate.getValues()[0];
+                removeFrom(ranges(bound, predicate.getKind(), false), bound, subscription);
+            }
+        }
+
+        private NavigableMap<Object, List<Subscription>> ranges(Object bound, Predicate.Kind kind, boolean create) {
+            Map<Predicate.Kind, NavigableMap<Object, List<Subscription>>> maps =
+                    bound instanceof String ? strings : numbers;
+            NavigableMap<Object, List<Subscription>> map = maps.get(kind);
+            if (map == null && create) {
+                map = new TreeMap<Object, List<Subscription>>(BOUNDS);
+                maps.put(kind, map);
+            }
+            return map;
+        }
+
+        private List<Subscription> bucket(Map<Object, List<Subscription>> map, Object value, boolean create) {
+            List<Subscription> bucket = map.get(value);
+            if (bucket == null && create) {
+                bucket = new ArrayList<Subscription>(1);
+                map.put(value, bucket);
+            }
+            return bucket;
+        }
+
+        private void removeFrom(Map<Object, List<Subscription>> map, Object value, Subscription subscription) {
+            List<Subscription> bucket = map.get(value);
+            bucket.remove(subscription);
+            if (bucket.isEmpty()) {
+                map.remove(value);
+            }
+        }
+
+        /**
+         * Counts the predicates a property value satisfies.
+         */
+        void count(Object value, int[] counts, List<Subscription> candidates) {
+            List<Subscription> bucket = equal.get(Values.key(value));
+            if (bucket != null) {
+                for (Subscription subscription : bucket) {
+                    subscription.hit(counts, candidates);
+                }
+            }
+            Map<Predicate.Kind, NavigableMap<Object, List<Subscription>>> maps;
+            if (value instanceof String) {
+                maps = strings;
+            } else if (value instanceof Number && Predicate.comparable(value, value)) {
+                maps = numbers;
+            } else {
+                return;
+            }
+            if (maps.isEmpty()) {
+                return;
+            }
+            // value > bound, value >= bound, value < bound, value <= bound
+            count(maps.get(Predicate.Kind.GT), value, true, false, counts, candidates);
+            count(maps.get(Predicate.Kind.GE), value, true, true, counts, candidates);
+            count(maps.get(Predicate.Kind.LT), value, false, false, counts, candidates);
+            count(maps.get(Predicate.Kind.LE), value, false, true, counts, candidates);
+        }
+
+        private void count(NavigableMap<Object, List<Subscription>> map, Object value, boolean below,
+                           boolean inclusive, int[] counts, List<Subscription> candidates) {
+            if (map == null) {
+                return;
+            }
+            Map<Object, List<Subscription>> satisfied = below ? map.headMap(value, inclusive) : map.tailMap(value, inclusive);
+            for (List<Subscription> bucket : satisfied.values()) {
+                for (Subscription subscription : bucket) {
+                    subscription.hit(counts, candidates);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Executes queries submitted concurrently against the same list in shared
+ * scans.
+ * <p/>
+ * While a list is being scanned for some query, further queries against it
+ * do not start scans of their own; they attach to the running scan at its
+ * current position, ride it to the end of the list, and ride on from the
+ * start of the list until they have seen every element once. The scan runs
+ * in chunks on the executor for as long as it has riders, so each element
+ * is brought into the cache once for all the queries riding at the time.
+ * <p/>
+ * Lists are identified by identity, and must support fast random access.
+ * As with iteration, a list must not be modified while it is scanned.
+ *
+ * @author Robert J. Buck
+ */
+public class SharedScanService {
+
+    /**
+     * The default number of elements scanned between admissions of new
+     * riders.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    private final Executor executor;
+    private final int chunkSize;
+    private final Map<List<?>, Scan> scans = new IdentityHashMap<List<?>, Scan>();
+
+    /**
+     * Constructs a shared scan service.
+     *
+     * @param executor the executor running the scans
+     */
+    public SharedScanService(Executor executor) {
+        this(executor, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Constructs a shared scan service.
+     *
+     * @param executor  the executor running the scans
+     * @param chunkSize the number of elements scanned between admissions of
+     *                  new riders
+     */
+    public SharedScanService(Executor executor, int chunkSize) {
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Selects the elements of a list satisfying a query.
+     *
+     * @param list  the list to query
+     * @param query the query to execute
+     * @return the future result; evaluation failures are reported as the
+     *         cause of an <code>ExecutionException</code>
+     * @throws QueryException if a subquery could not be evaluated
+     */
+    public <T> Future<Set<T>> select(List<T> list, Query<T> query) throws QueryException {
+        final Set<T> selected = new HashSet<T>();
+        return submit(list, query, new Query.Apply<T>() {
+            public void action(T object) {
+                selected.add(object);
+            }
+        }, selected);
+    }
+
+    /**
+     * Applies an action to the elements of a list satisfying a query. The
+     * action is called from the thread running the scan.
+     *
+     * @param list  the list to query
+     * @param query the query to execute
+     * @param apply the action to apply to the elements satisfying the query
+     * @return the future completion of the query; evaluation failures are
+     *         reported as the cause of an <code>ExecutionException</code>
+     * @throws QueryException if a subquery could not be evaluated
+     */
+    public <T> Future<Void> apply(List<T> list, Query<T> query, Query.Apply<T> apply) throws QueryException {
+        return submit(list, query, apply, null);
+    }
+
+    private <T, R> Future<R> submit(List<T> list, Query<T> query, Query.Apply<T> apply, R result)
+            throws QueryException {
+        Rider<T, R> rider = new Rider<T, R>(query.newRow(), apply, result);
+        synchronized (scans) {
+            Scan scan = scans.get(list);
+            if (scan == null) {
+                scan = new Scan(list);
+                scans.put(list, scan);
+                scan.pending.add(rider);
+                try {
+                    executor.execute(scan);
+                } catch (RuntimeException e) {
+                    // a rejected scan must not be joined by later queries
+                    scans.remove(list);
+                    throw e;
+                }
+            } else {
+                scan.pending.add(rider);
+            }
+        }
+        return rider.future;
+    }
+
+    /**
+     * A query riding a scan.
+     */
+    private static final class Rider<T, R> implements Callable<R> {
+        private final Query<T>.Row row;
+        private final Query.Apply<T> apply;
+        private final R result;
+        private final FutureTask<R> future = new FutureTask<R>(this);
+        private int remaining;
+        private Throwable failure;
+
+        Rider(Query<T>.Row row, Query.Apply<T> apply, R result) {
+            this.row = row;
+            this.apply = apply;
+            this.result = result;
+        }
+
+        @SuppressWarnings({"unchecked"})
+        void accept(Object object) {
+            remaining--;
+            try {
+                row.reset(object);
+                if (row.matches()) {
+                    apply.action((T) object);
+                }
+            } catch (QueryException e) {
+                failure = e;
+                remaining = 0;
+            } catch (RuntimeException e) {
+                failure = e;
+                remaining = 0;
+            }
+        }
+
+        /**
+         * Completes the future; called by the scan once the rider has seen
+         * every element. A failure that is neither an error nor an exception
+         * is wrapped, so that it is still reported.
+         */
+        public R call() throws Exception {
+            if (failure instanceof Error) {
+                throw (Error) failure;
+            }
+            if (failure instanceof Exception) {
+                throw (Exception) failure;
+            }
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A circular scan of a list, carrying riders.
+     */
+    private final class Scan implements Runnable {
+        private final List<?> list;
+        private final List<Rider<?, ?>> pending = new ArrayList<Rider<?, ?>>();
+        private final List<Rider<?, ?>> riders = new ArrayList<Rider<?, ?>>();
+
+        Scan(List<?> list) {
+            this.list = list;
+        }
+
+        /**
+         * Runs the scan until it has no riders. Should the scan fail, every
+         * rider fails with the cause, and the scan is withdrawn so that
+         * later queries start a scan of their own.
+         */
+        public void run() {
+            Throwable cause = null;
+            try {
+                scan();
+            } catch (Throwable t) {
+                cause = t;
+                if (t instanceof Error) {
+                    throw (Error) t;
+                }
+            } finally {
+                if (cause != null) {
+                    abort(cause);
+                }
+            }
+        }
+
+        private void abort(Throwable cause) {
+            synchronized (scans) {
+                riders.addAll(pending);
+                pending.clear();
+                for (Rider<?, ?> rider : riders) {
+                    if (rider.failure == null) {
+                        rider.failure = cause;
+                    }
+                    rider.future.run();
+                }
+                riders.clear();
+                if (scans.get(list) == this) {
+                    scans.remove(list);
+                }
+            }
+        }
+
+        private void scan() {
+            int position = 0;
+            while (true) {
+                int size = list.size();
+                synchronized (scans) {
+                    for (Rider<?, ?> rider : pending) {
+                        rider.remaining = size;
+                        riders.add(rider);
+                    }
+                    pending.clear();
+                    for (Iterator<Rider<?, ?>> i = riders.iterator(); i.hasNext(); ) {
+                        Rider<?, ?> rider = i.next();
+                        if (rider.remaining <= 0 || rider.future.isCancelled()) {
+                            i.remove();
+                            rider.future.run();
+                        }
+                    }
+                    if (riders.isEmpty()) {
+                        scans.remove(list);
+                        return;
+                    }
+                }
+                if (position >= size) {
+                    position = 0;
+                }
+                int end = Math.min(position + chunkSize, size);
+                for (int i = position; i < end; i++) {
+                    Object object = list.get(i);
+                    for (Rider<?, ?> rider : riders) {
+                        if (rider.remaining > 0) {
+                            rider.accept(object);
+                        }
+                    }
+                }
+                position = end;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import com.buck.jsql.identifiers.Identifier;
+
+/**
+ * A sort specification of an ORDER BY clause; a property and a direction.
+ * Values sort as described by {@link com.buck.jsql.util.Values#compare};
+ * nulls come first in ascending order.
+ *
+ * @author Robert J. Buck
+ */
+public final class SortKey {
+
+    private final Identifier identifier;
+    private final boolean ascending;
+
+    /**
+     * Constructs a sort key.
+     *
+     * @param identifier the property to sort by
+     * @param ascending  true to sort in ascending order
+     */
+    SortKey(Identifier identifier, boolean ascending) {
+        this.identifier = identifier;
+        this.ascending = ascending;
+    }
+
+    Identifier getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * Gets the name of the property to sort by.
+     *
+     * @return the property name
+     */
+    public String getProperty() {
+        return identifier.toString();
+    }
+
+    /**
+     * Tests whether the sort is in ascending order.
+     *
+     * @return true if ascending, false if descending
+     */
+    public boolean isAscending() {
+        return ascending;
+    }
+
+    public String toString() {
+        return getProperty() + (ascending ? " ASC" : " DESC");
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+import java.util.Arrays;
+
+/**
+ * A row of projected property values. The column names are shared by all
+ * tuples produced by the same query, so a tuple costs little more than the
+ * array of its values.
+ *
+ * @author Robert J. Buck
+ */
+public final class Tuple {
+
+    private final String[] names;
+    private final Object[] values;
+
+    /**
+     * Constructs a tuple.
+     *
+     * @param names  the column names, shared amongst tuples
+     * @param values the column values
+     */
+    Tuple(String[] names, Object[] values) {
+        this.names = names;
+        this.values = values;
+    }
+
+    /**
+     * Gets the number of columns in the tuple.
+     *
+     * @return the number of columns
+     */
+    public int size() {
+        return values.length;
+    }
+
+    /**
+     * Gets the name of the column at the specified index.
+     *
+     * @param i the column index
+     * @return the column name
+     */
+    public String getName(int i) {
+        return names[i];
+    }
+
+    /**
+     * Gets the value of the column at the specified index.
+     *
+     * @param i the column index
+     * @return the column value
+     */
+    public Object get(int i) {
+        return values[i];
+    }
+
+    /**
+     * Gets the value of the named column.
+     *
+     * @param name the column name
+     * @return the column value
+     * @throws IllegalArgumentException if the tuple has no such column
+     */
+    public Object get(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return values[i];
+            }
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj instanceof Tuple) {
+            Tuple other = (Tuple) obj;
+            return Arrays.equals(names, other.names) && Arrays.equals(values, other.values);
+        }
+        return false;
+    }
+
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    public String toString() {
+        return Arrays.toString(values);
+    }
+}
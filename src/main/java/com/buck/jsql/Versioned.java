@@ -0,0 +1,34 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql;
+
+/**
+ * A collection that reports its changes by advancing a version. Queries
+ * reuse the results of subqueries over such collections for as long as
+ * their versions stay the same, rather than evaluating the subqueries anew
+ * for every scan or every object matched.
+ *
+ * @author Robert J. Buck
+ */
+public interface Versioned {
+    /**
+     * Gets the version of the collection, which every change advances.
+     *
+     * @return the version
+     */
+    public long getVersion();
+}
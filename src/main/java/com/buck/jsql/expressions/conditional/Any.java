@@ -49,15 +49,16 @@ public class Any extends NAryExpression {
     public Object evaluate(EvaluationContext context) throws EvaluationException {
         // null && null => null
         boolean allNull = true;
-        for (Expression child : children) {
-            allNull &= child == null;
+        for (int i = 0; i < getNumChildren(); i++) {
+            allNull &= getChild(i) == null;
         }
         if (allNull) {
             return null;
         }
 
         // if any node evaluates true, return true, otherwise return false
-        for (Expression child : children) {
+        for (int i = 0; i < getNumChildren(); i++) {
+            Expression child = getChild(i);
             if (child != null) {
                 Boolean value = (Boolean) child.evaluate(context);
                 if (value) {
@@ -93,6 +93,14 @@ public class Comparison extends BinaryExpression {
         this.operator = operator;
     }
 
+    /**
+     * Gets the comparison operator.
+     *
+     * @return the operator
+     */
+    public Operator getOperator() {
+        return operator;
+    }
 
     /**
      * Compares two children using a specified operator
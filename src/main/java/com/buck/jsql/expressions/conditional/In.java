@@ -21,6 +21,9 @@ import com.buck.jsql.EvaluationException;
 import com.buck.jsql.Expression;
 import com.buck.jsql.ExpressionType;
 import com.buck.jsql.expressions.UnaryExpression;
+import com.buck.jsql.literals.Literal;
+import com.buck.jsql.util.ValueSet;
+import com.buck.jsql.util.Values;
 
 import java.util.List;
 
@@ -28,10 +31,19 @@ import java.util.List;
  * The IN predicate compares a value or values with a collection of values. The
  * first child is the identifier to compare to, the remaining children are the
  * collection of values to compare the literal to.
+ * <p/>
+ * When every item is a literal, the items are hashed into a typed set when
+ * the expression is constructed, so that evaluation costs a single probe
+ * regardless of the length of the list. Items compare equal as they would
+ * with the comparison predicate; numbers compare by value irrespective of
+ * their boxed type.
  *
  * @author Robert J. Buck
  */
 public class In extends UnaryExpression {
+
+    private final ValueSet set;
+
     /**
      * Constructs an IN expression.
      *
@@ -40,9 +52,30 @@ public class In extends UnaryExpression {
      */
     public In(final Expression lhs, List<Expression> items) {
         super(ExpressionType.IN, lhs);
+        boolean literals = true;
         for (int i = 0; i < items.size(); i++) {
-            addChild(items.get(i), i);
+            Expression item = items.get(i);
+            addChild(item, i + 1);
+            item.setParent(this);
+            literals &= item instanceof Literal;
         }
+        if (literals) {
+            set = new ValueSet(items.size());
+            for (Expression item : items) {
+                set.add(((Literal) item).getValue());
+            }
+        } else {
+            set = null;
+        }
+    }
+
+    /**
+     * Gets the typed set of the items, if every item is a literal.
+     *
+     * @return the set of items, or null if some item is not a literal
+     */
+    public ValueSet getValueSet() {
+        return set;
     }
 
     /**
@@ -59,9 +92,13 @@ public class In extends UnaryExpression {
         if (obj == null) {
             return null;
         }
-        for (int i = 1; i < children.length; i++) {
-            String literal = (String) getChild(i).evaluate(context);
-            if (literal.equals(obj)) {
+        if (set != null) {
+            return set.contains(obj);
+        }
+        Object key = Values.key(obj);
+        for (int i = 1; i < getNumChildren(); i++) {
+            Object item = getChild(i).evaluate(context);
+            if (item != null && key.equals(Values.key(item))) {
                 return true;
             }
         }
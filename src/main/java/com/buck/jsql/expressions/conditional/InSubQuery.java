@@ -0,0 +1,85 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.expressions.conditional;
+
+import com.buck.commons.i18n.ResourceBundle;
+import com.buck.jsql.EvaluationContext;
+import com.buck.jsql.EvaluationException;
+import com.buck.jsql.Expression;
+import com.buck.jsql.ExpressionType;
+import com.buck.jsql.QueryContext;
+import com.buck.jsql.expressions.UnaryExpression;
+import com.buck.jsql.util.ValueSet;
+
+/**
+ * The IN predicate applied to the result of a subquery (a semi-join). The
+ * subquery is evaluated once per scan into a hash set, which is obtained
+ * from the evaluation context; each row then costs a single probe.
+ *
+ * @author Robert J. Buck
+ */
+public class InSubQuery extends UnaryExpression {
+
+    private final int index;
+
+    /**
+     * Constructs an IN expression over a subquery.
+     *
+     * @param lhs   the left hand side expression to evaluate
+     * @param index the index of the subquery binding holding the result set
+     */
+    public InSubQuery(final Expression lhs, int index) {
+        super(ExpressionType.IN, lhs);
+        this.index = index;
+    }
+
+    /**
+     * Gets the index of the binding that holds the subquery result.
+     *
+     * @return the binding index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Evaluate a message to see if a field value is in the subquery result.
+     *
+     * @param context the context to evaluate
+     * @return true if the value is in the result, null if it is not but the
+     *         result contains a null, false otherwise
+     * @throws com.buck.jsql.EvaluationException
+     *          if the expression evaluation failed, or if the context is not
+     *          a {@link QueryContext} holding the subquery result
+     */
+    public Object evaluate(EvaluationContext context) throws EvaluationException {
+        Object obj = getLHS().evaluate(context);
+        if (obj == null) {
+            return null;
+        }
+        if (!(context instanceof QueryContext)) {
+            String message = ResourceBundle.formatResourceBundleMessage(QueryContext.class,
+                    "QUERY_CONTEXT_REQUIRED", new Object[]{"IN (SELECT ...)"});
+            throw new EvaluationException(message);
+        }
+        ValueSet set = (ValueSet) ((QueryContext) context).getBinding(index);
+        if (set.contains(obj)) {
+            return true;
+        }
+        return set.containsNull() ? null : false;
+    }
+}
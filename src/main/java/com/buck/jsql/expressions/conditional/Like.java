@@ -21,6 +21,7 @@ import com.buck.jsql.EvaluationException;
 import com.buck.jsql.Expression;
 import com.buck.jsql.ExpressionType;
 import com.buck.jsql.expressions.BinaryExpression;
+import com.buck.jsql.literals.PatternLiteral;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -32,6 +33,10 @@ import java.util.regex.Pattern;
  * @author Robert J. Buck
  */
 public class Like extends BinaryExpression {
+
+    // the prefix of a pattern matched by a prefix test rather than by the regular expression
+    private final String prefix;
+
     /**
      * Constructs a logical OR operator expression.
      *
@@ -40,6 +45,11 @@ public class Like extends BinaryExpression {
      */
     public Like(final Expression lhs, final Expression rhs) {
         super(ExpressionType.LIKE, lhs, rhs);
+        if (rhs instanceof PatternLiteral && ((PatternLiteral) rhs).isPrefixOnly()) {
+            prefix = ((PatternLiteral) rhs).getPrefix();
+        } else {
+            prefix = null;
+        }
     }
 
     /**
@@ -47,12 +57,18 @@ public class Like extends BinaryExpression {
      * literal.
      *
      * @param context the context to evaluate
-     * @return true if the literal matches
+     * @return true if the literal matches, null if the value is null
      * @throws com.buck.jsql.EvaluationException
      *          if the expression evaluation failed
      */
     public Object evaluate(EvaluationContext context) throws EvaluationException {
         String svalue = (String) getLHS().evaluate(context);
+        if (svalue == null) {
+            return null;
+        }
+        if (prefix != null) {
+            return svalue.startsWith(prefix);
+        }
         Pattern pattern = (Pattern) getRHS().evaluate(context);
         Matcher matcher = pattern.matcher(svalue);
         return matcher.matches();
@@ -31,6 +31,7 @@ import com.buck.jsql.reflection.PropertyAccessException;
 public class Identifier extends Expression implements Comparable<Identifier> {
 
     private final String id;
+    private final int ordinal;
 
     /**
      * Constructs an identifier.
@@ -38,8 +39,32 @@ public class Identifier extends Expression implements Comparable<Identifier> {
      * @param id the identity of the identifier
      */
     public Identifier(final String id) {
+        this(id, -1);
+    }
+
+    /**
+     * Constructs an identifier having a position within the set of distinct
+     * identifiers of a query.
+     *
+     * @param id      the identity of the identifier
+     * @param ordinal the position of the identifier within its query, or -1
+     *                if it has none
+     */
+    public Identifier(final String id, final int ordinal) {
         super(ExpressionType.Identifier);
         this.id = id;
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * Gets the position of this identifier amongst the distinct identifiers
+     * of the query that declared it. Identifiers are numbered in order of
+     * first appearance, starting at zero.
+     *
+     * @return the ordinal of this identifier, or -1 if it has none
+     */
+    public int getOrdinal() {
+        return ordinal;
     }
 
     public Object evaluate(EvaluationContext context) throws EvaluationException {
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buck.jsql.identifiers;
+
+import com.buck.commons.i18n.ResourceBundle;
+import com.buck.jsql.EvaluationContext;
+import com.buck.jsql.EvaluationException;
+import com.buck.jsql.Expression;
+import com.buck.jsql.ExpressionType;
+import com.buck.jsql.QueryContext;
+
+/**
+ * A query parameter, either positional (<code>?</code>) or named
+ * (<code>:name</code>). Parameters are numbered in order of first
+ * appearance, starting at zero; each occurrence of a named parameter shares
+ * one number. The value is supplied by the query context.
+ *
+ * @author Robert J. Buck
+ */
+public class Parameter extends Expression {
+
+    private final int index;
+    private final String name;
+
+    /**
+     * Constructs a parameter.
+     *
+     * @param index the index of the parameter
+     * @param name  the name of the parameter, or null if it is positional
+     */
+    public Parameter(int index, String name) {
+        super(ExpressionType.Parameter);
+        this.index = index;
+        this.name = name;
+    }
+
+    /**
+     * Gets the index of the parameter.
+     *
+     * @return the parameter index
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * Gets the name of the parameter.
+     *
+     * @return the parameter name, or null if it is positional
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the value bound to the parameter.
+     *
+     * @param context the context supplying the parameter values
+     * @return the parameter value
+     * @throws com.buck.jsql.EvaluationException
+     *          if the parameter is not bound, or if the context is not a
+     *          {@link QueryContext}
+     */
+    public Object evaluate(EvaluationContext context) throws EvaluationException {
+        if (!(context instanceof QueryContext)) {
+            String message = ResourceBundle.formatResourceBundleMessage(QueryContext.class,
+                    "QUERY_CONTEXT_REQUIRED", new Object[]{toString()});
+            throw new EvaluationException(message);
+        }
+        return ((QueryContext) context).getParameter(index);
+    }
+
+    public String toString() {
+        return name != null ? ":" + name : "?";
+    }
+}
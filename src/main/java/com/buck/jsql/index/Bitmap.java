@@ -0,0 +1,501 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import java.util.Arrays;
+
+/**
+ * A compressed set of row numbers, in the manner of a roaring bitmap.
+ * <p/>
+ * Rows are partitioned by their high 16 bits into chunks of 65536. A sparse
+ * chunk is held as a sorted array of the low 16 bits of its rows, a dense
+ * chunk as a bitset of 1024 words; a chunk switches representation as its
+ * cardinality crosses 4096, the point at which the two take the same
+ * space. Set operations work chunk by chunk, choosing an algorithm for each
+ * pair of representations, and never modify their operands.
+ *
+ * @author Robert J. Buck
+ */
+final class Bitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int WORDS = 1024;
+
+    private char[] keys;
+    private Chunk[] chunks;
+    private int size;
+
+    /**
+     * Constructs an empty bitmap.
+     */
+    Bitmap() {
+        this(4);
+    }
+
+    private Bitmap(int capacity) {
+        keys = new char[capacity];
+        chunks = new Chunk[capacity];
+    }
+
+    /**
+     * Constructs a bitmap holding an ascending array of rows.
+     *
+     * @param rows the rows, in ascending order
+     * @return the bitmap
+     */
+    static Bitmap of(int[] rows) {
+        Bitmap bitmap = new Bitmap();
+        int i = 0;
+        while (i < rows.length) {
+            int high = rows[i] >>> 16;
+            int j = i;
+            while (j < rows.length && rows[j] >>> 16 == high) {
+                j++;
+            }
+            Chunk chunk = new Chunk(new char[j - i], j - i);
+            for (int k = i; k < j; k++) {
+                chunk.array[k - i] = (char) rows[k];
+            }
+            bitmap.append((char) high, chunk.optimize());
+            i = j;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Adds a row.
+     *
+     * @param row the row number
+     */
+    void add(int row) {
+        char high = (char) (row >>> 16);
+        int i = Arrays.binarySearch(keys, 0, size, high);
+        if (i < 0) {
+            i = -i - 1;
+            insert(i, high, new Chunk(new char[4], 0));
+        }
+        chunks[i].add((char) row);
+    }
+
+    /**
+     * Removes a row.
+     *
+     * @param row the row number
+     */
+    void remove(int row) {
+        int i = Arrays.binarySearch(keys, 0, size, (char) (row >>> 16));
+        if (i >= 0) {
+            chunks[i].remove((char) row);
+            if (chunks[i].cardinality == 0) {
+                System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+                System.arraycopy(chunks, i + 1, chunks, i, size - i - 1);
+                chunks[--size] = null;
+            }
+        }
+    }
+
+    /**
+     * Removes every row.
+     */
+    void clear() {
+        Arrays.fill(chunks, 0, size, null);
+        size = 0;
+    }
+
+    /**
+     * Tests whether a row is present.
+     *
+     * @param row the row number
+     * @return true if the row is present
+     */
+    boolean contains(int row) {
+        int i = Arrays.binarySearch(keys, 0, size, (char) (row >>> 16));
+        return i >= 0 && chunks[i].contains((char) row);
+    }
+
+    /**
+     * Gets the number of rows.
+     *
+     * @return the number of rows
+     */
+    int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += chunks[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    /**
+     * Copies the rows into an array.
+     *
+     * @return the rows in ascending order
+     */
+    int[] toArray() {
+        int[] rows = new int[cardinality()];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            n = chunks[i].copy(keys[i] << 16, rows, n);
+        }
+        return rows;
+    }
+
+    /**
+     * Intersects two bitmaps.
+     *
+     * @param a a bitmap
+     * @param b another bitmap
+     * @return the rows present in both bitmaps
+     */
+    static Bitmap and(Bitmap a, Bitmap b) {
+        Bitmap result = new Bitmap(Math.max(1, Math.min(a.size, b.size)));
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Chunk chunk = Chunk.and(a.chunks[i], b.chunks[j]);
+                if (chunk.cardinality > 0) {
+                    result.append(a.keys[i], chunk);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Unites two bitmaps.
+     *
+     * @param a a bitmap
+     * @param b another bitmap
+     * @return the rows present in either bitmap
+     */
+    static Bitmap or(Bitmap a, Bitmap b) {
+        Bitmap result = new Bitmap(Math.max(1, a.size + b.size));
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.append(a.keys[i], a.chunks[i].copy());
+                i++;
+            } else if (i == a.size || a.keys[i] > b.keys[j]) {
+                result.append(b.keys[j], b.chunks[j].copy());
+                j++;
+            } else {
+                result.append(a.keys[i], Chunk.or(a.chunks[i], b.chunks[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Subtracts one bitmap from another.
+     *
+     * @param a a bitmap
+     * @param b the bitmap to subtract
+     * @return the rows present in the first bitmap but not the second
+     */
+    static Bitmap andNot(Bitmap a, Bitmap b) {
+        Bitmap result = new Bitmap(Math.max(1, a.size));
+        int j = 0;
+        for (int i = 0; i < a.size; i++) {
+            while (j < b.size && b.keys[j] < a.keys[i]) {
+                j++;
+            }
+            Chunk chunk = j < b.size && b.keys[j] == a.keys[i]
+                    ? Chunk.andNot(a.chunks[i], b.chunks[j]) : a.chunks[i].copy();
+            if (chunk.cardinality > 0) {
+                result.append(a.keys[i], chunk);
+            }
+        }
+        return result;
+    }
+
+    private void append(char key, Chunk chunk) {
+        insert(size, key, chunk);
+    }
+
+    private void insert(int i, char key, Chunk chunk) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            chunks = Arrays.copyOf(chunks, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(chunks, i, chunks, i + 1, size - i);
+        keys[i] = key;
+        chunks[i] = chunk;
+        size++;
+    }
+
+    /**
+     * The low 16 bits of the rows sharing their high 16 bits; a sorted
+     * array while sparse, a bitset while dense.
+     */
+    private static final class Chunk {
+        private char[] array;
+        private long[] words;
+        private int cardinality;
+
+        Chunk(char[] array, int cardinality) {
+            this.array = array;
+            this.cardinality = cardinality;
+        }
+
+        Chunk(long[] words, int cardinality) {
+            this.words = words;
+            this.cardinality = cardinality;
+        }
+
+        boolean contains(char value) {
+            if (words != null) {
+                return (words[value >>> 6] & (1L << value)) != 0;
+            }
+            return Arrays.binarySearch(array, 0, cardinality, value) >= 0;
+        }
+
+        void add(char value) {
+            if (words != null) {
+                long bit = 1L << value;
+                if ((words[value >>> 6] & bit) == 0) {
+                    words[value >>> 6] |= bit;
+                    cardinality++;
+                }
+                return;
+            }
+            int i = cardinality == 0 || array[cardinality - 1] < value
+                    ? -cardinality - 1 : Arrays.binarySearch(array, 0, cardinality, value);
+            if (i >= 0) {
+                return;
+            }
+            i = -i - 1;
+            if (cardinality == ARRAY_MAX) {
+                toWords();
+                add(value);
+                return;
+            }
+            if (cardinality == array.length) {
+                array = Arrays.copyOf(array, Math.min(ARRAY_MAX, Math.max(4, cardinality * 2)));
+            }
+            System.arraycopy(array, i, array, i + 1, cardinality - i);
+            array[i] = value;
+            cardinality++;
+        }
+
+        void remove(char value) {
+            if (words != null) {
+                long bit = 1L << value;
+                if ((words[value >>> 6] & bit) != 0) {
+                    words[value >>> 6] &= ~bit;
+                    if (--cardinality <= ARRAY_MAX / 2) {
+                        toArray();
+                    }
+                }
+                return;
+            }
+            int i = Arrays.binarySearch(array, 0, cardinality, value);
+            if (i >= 0) {
+                System.arraycopy(array, i + 1, array, i, cardinality - i - 1);
+                cardinality--;
+            }
+        }
+
+        private void toWords() {
+            words = new long[WORDS];
+            for (int i = 0; i < cardinality; i++) {
+                words[array[i] >>> 6] |= 1L << array[i];
+            }
+            array = null;
+        }
+
+        private void toArray() {
+            array = new char[cardinality];
+            int n = 0;
+            for (int w = 0; w < WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    array[n++] = (char) ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            words = null;
+        }
+
+        /**
+         * Settles the representation after a set operation.
+         */
+        Chunk optimize() {
+            if (words == null && cardinality > ARRAY_MAX) {
+                toWords();
+            } else if (words != null && cardinality <= ARRAY_MAX) {
+                toArray();
+            }
+            return this;
+        }
+
+        Chunk copy() {
+            return words != null ? new Chunk(words.clone(), cardinality)
+                    : new Chunk(Arrays.copyOf(array, cardinality), cardinality);
+        }
+
+        int copy(int high, int[] rows, int n) {
+            if (words == null) {
+                for (int i = 0; i < cardinality; i++) {
+                    rows[n++] = high | array[i];
+                }
+                return n;
+            }
+            for (int w = 0; w < WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    rows[n++] = high | ((w << 6) + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return n;
+        }
+
+        static Chunk and(Chunk a, Chunk b) {
+            if (a.words != null && b.words != null) {
+                long[] words = new long[WORDS];
+                int cardinality = 0;
+                for (int w = 0; w < WORDS; w++) {
+                    words[w] = a.words[w] & b.words[w];
+                    cardinality += Long.bitCount(words[w]);
+                }
+                return new Chunk(words, cardinality).optimize();
+            }
+            if (a.words != null) {
+                return filter(b, a, true);
+            }
+            if (b.words != null) {
+                return filter(a, b, true);
+            }
+            char[] array = new char[Math.min(a.cardinality, b.cardinality)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.cardinality && j < b.cardinality) {
+                if (a.array[i] < b.array[j]) {
+                    i++;
+                } else if (a.array[i] > b.array[j]) {
+                    j++;
+                } else {
+                    array[n++] = a.array[i];
+                    i++;
+                    j++;
+                }
+            }
+            return new Chunk(array, n);
+        }
+
+        static Chunk or(Chunk a, Chunk b) {
+            if (a.words != null || b.words != null) {
+                Chunk result = (a.words != null ? a : b).copy();
+                Chunk other = a.words != null ? b : a;
+                if (other.words != null) {
+                    int cardinality = 0;
+                    for (int w = 0; w < WORDS; w++) {
+                        result.words[w] |= other.words[w];
+                        cardinality += Long.bitCount(result.words[w]);
+                    }
+                    result.cardinality = cardinality;
+                } else {
+                    for (int i = 0; i < other.cardinality; i++) {
+                        result.add(other.array[i]);
+                    }
+                }
+                return result;
+            }
+            char[] array = new char[a.cardinality + b.cardinality];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.cardinality || j < b.cardinality) {
+                if (j == b.cardinality || (i < a.cardinality && a.array[i] < b.array[j])) {
+                    array[n++] = a.array[i++];
+                } else if (i == a.cardinality || a.array[i] > b.array[j]) {
+                    array[n++] = b.array[j++];
+                } else {
+                    array[n++] = a.array[i];
+                    i++;
+                    j++;
+                }
+            }
+            return new Chunk(array, n).optimize();
+        }
+
+        static Chunk andNot(Chunk a, Chunk b) {
+            if (a.words != null) {
+                Chunk result = a.copy();
+                if (b.words != null) {
+                    int cardinality = 0;
+                    for (int w = 0; w < WORDS; w++) {
+                        result.words[w] &= ~b.words[w];
+                        cardinality += Long.bitCount(result.words[w]);
+                    }
+                    result.cardinality = cardinality;
+                } else {
+                    for (int i = 0; i < b.cardinality; i++) {
+                        long bit = 1L << b.array[i];
+                        if ((result.words[b.array[i] >>> 6] & bit) != 0) {
+                            result.words[b.array[i] >>> 6] &= ~bit;
+                            result.cardinality--;
+                        }
+                    }
+                }
+                return result.optimize();
+            }
+            if (b.words != null) {
+                return filter(a, b, false);
+            }
+            char[] array = new char[a.cardinality];
+            int n = 0;
+            int j = 0;
+            for (int i = 0; i < a.cardinality; i++) {
+                while (j < b.cardinality && b.array[j] < a.array[i]) {
+                    j++;
+                }
+                if (j == b.cardinality || b.array[j] != a.array[i]) {
+                    array[n++] = a.array[i];
+                }
+            }
+            return new Chunk(array, n);
+        }
+
+        /**
+         * Keeps the values of an array chunk that are, or are not, present
+         * in a bitset chunk.
+         */
+        private static Chunk filter(Chunk array, Chunk words, boolean present) {
+            char[] values = new char[array.cardinality];
+            int n = 0;
+            for (int i = 0; i < array.cardinality; i++) {
+                if (words.contains(array.array[i]) == present) {
+                    values[n++] = array.array[i];
+                }
+            }
+            return new Chunk(values, n);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+import com.buck.jsql.util.Values;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A bitmap index, holding a compressed bitmap of rows per distinct value;
+ * suited to properties having few distinct values, such as states, codes
+ * and flags. Besides equality and IN predicates, the index answers their
+ * negations and IS NULL, since it knows which rows have a value at all;
+ * the planner combines such answers by bitmap algebra across AND, OR and
+ * NOT before any element is read.
+ *
+ * @author Robert J. Buck
+ */
+public class BitmapIndex extends Index {
+
+    private final HashMap<Object, Bitmap> bitmaps = new HashMap<Object, Bitmap>();
+    private final Bitmap present = new Bitmap();
+
+    /**
+     * Constructs a bitmap index.
+     *
+     * @param property the indexed property
+     */
+    BitmapIndex(String property) {
+        super(property);
+    }
+
+    /**
+     * Gets the number of distinct values indexed.
+     *
+     * @return the number of distinct values
+     */
+    public int getCardinality() {
+        return bitmaps.size();
+    }
+
+    void add(int row, Object value) {
+        Object key = Values.key(value);
+        Bitmap rows = bitmaps.get(key);
+        if (rows == null) {
+            rows = new Bitmap();
+            bitmaps.put(key, rows);
+        }
+        rows.add(row);
+        present.add(row);
+    }
+
+    void remove(int row, Object value) {
+        Object key = Values.key(value);
+        Bitmap rows = bitmaps.get(key);
+        if (rows != null) {
+            rows.remove(row);
+            if (rows.cardinality() == 0) {
+                bitmaps.remove(key);
+            }
+        }
+        present.remove(row);
+    }
+
+    void clear() {
+        bitmaps.clear();
+        present.clear();
+    }
+
+    double getLookupCost() {
+        return 0.02;
+    }
+
+    int[] lookup(List<Predicate> predicates) {
+        Bitmap rows = match(predicates);
+        return rows != null ? rows.toArray() : null;
+    }
+
+    /**
+     * Finds the rows whose property value satisfies every equality
+     * predicate.
+     *
+     * @param predicates the predicates over the indexed property
+     * @return the rows, or null if there is no equality predicate
+     */
+    Bitmap match(List<Predicate> predicates) {
+        Bitmap rows = null;
+        for (Predicate predicate : predicates) {
+            if (predicate.getKind() == Predicate.Kind.EQ) {
+                Bitmap found = match(predicate.getValues());
+                rows = rows == null ? found : Bitmap.and(rows, found);
+            }
+        }
+        return rows;
+    }
+
+    private Bitmap match(Object[] values) {
+        Bitmap rows = null;
+        for (Object value : values) {
+            Bitmap found = bitmaps.get(value);
+            if (found != null) {
+                rows = rows == null ? found : Bitmap.or(rows, found);
+            }
+        }
+        return rows != null ? rows : new Bitmap();
+    }
+
+    /**
+     * Gets the rows having a value; those not having a value are null.
+     *
+     * @return the rows having a value, not to be modified
+     */
+    Bitmap present() {
+        return present;
+    }
+}
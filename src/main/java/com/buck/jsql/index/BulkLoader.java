@@ -0,0 +1,298 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Builds indexes in bulk from the values extracted for a batch of rows, or
+ * removes a batch of rows from them.
+ * <p/>
+ * The values of each index are cut into runs, which are sorted as separate
+ * tasks; the sorted runs of each index are then merged, and the index is
+ * built from the merged entries, again as a task per index. Tasks run on
+ * the executor given, or in the calling thread if there is none. Sorting
+ * is stable, so rows having equal values stay in ascending order, and each
+ * index receives its rows grouped by value.
+ * <p/>
+ * A failure, of a task or of the executor to accept one, is reported once
+ * every task already submitted has finished, so that no task changes an
+ * index after the call returns. The loader then tells, index by index,
+ * whether the rows were entered or removed in full, in part, or not at
+ * all.
+ *
+ * @author Robert J. Buck
+ */
+final class BulkLoader {
+
+    /**
+     * The number of values sorted by a single task.
+     */
+    static final int RUN = 1 << 16;
+
+    private static final int BLOCK = 32;
+
+    private final Executor executor;
+    private final List<Entries> entries = new ArrayList<Entries>();
+
+    BulkLoader(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Tells whether the last call entered or removed every row of an index.
+     *
+     * @param i the position of the index in the list given
+     * @return true if the index was fully maintained
+     */
+    boolean isComplete(int i) {
+        return i < entries.size() && entries.get(i).built;
+    }
+
+    /**
+     * Tells whether the last call failed having entered or removed some,
+     * but maybe not all, of the rows of an index.
+     *
+     * @param i the position of the index in the list given
+     * @return true if the index was partly maintained
+     */
+    boolean isPartial(int i) {
+        return i < entries.size() && entries.get(i).started && !entries.get(i).built;
+    }
+
+    /**
+     * Enters a batch of rows into indexes.
+     *
+     * @param indexes the indexes to build
+     * @param values  the values of the rows for each index; null values are
+     *                not entered
+     * @param first   the row number of the first row of the batch
+     */
+    void load(List<Index> indexes, List<Object[]> values, int first) {
+        int[] rows = new int[values.isEmpty() ? 0 : values.get(0).length];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = first + i;
+        }
+        run(indexes, values, rows, false);
+    }
+
+    /**
+     * Removes a batch of rows from indexes.
+     *
+     * @param indexes the indexes to remove the rows from
+     * @param values  the values the rows were entered with, for each index
+     * @param rows    the row numbers
+     */
+    void unload(List<Index> indexes, List<Object[]> values, int[] rows) {
+        run(indexes, values, rows, true);
+    }
+
+    private void run(List<Index> indexes, List<Object[]> values, int[] rows, boolean remove) {
+        // gather the entries of each index, and sort them in runs
+        entries.clear();
+        List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>();
+        try {
+            for (int i = 0; i < indexes.size(); i++) {
+                Entries e = new Entries(indexes.get(i), values.get(i), rows, remove);
+                entries.add(e);
+                if (e.order != null) {
+                    for (int from = 0; from < e.rows.length; from += RUN) {
+                        tasks.add(submit(e.sort(from, Math.min(e.rows.length, from + RUN))));
+                    }
+                }
+            }
+        } finally {
+            await(tasks);
+        }
+        tasks.clear();
+        try {
+            for (Entries e : entries) {
+                tasks.add(submit(e.build()));
+            }
+        } finally {
+            await(tasks);
+        }
+    }
+
+    private FutureTask<Void> submit(Runnable runnable) {
+        FutureTask<Void> task = new FutureTask<Void>(runnable, null);
+        if (executor != null) {
+            executor.execute(task);
+        } else {
+            task.run();
+        }
+        return task;
+    }
+
+    /**
+     * Waits for every task to finish, then reports the first that failed.
+     */
+    private static void await(List<FutureTask<Void>> tasks) {
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (FutureTask<Void> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException(failure);
+        }
+    }
+
+    /**
+     * The non-null entries of an index for a batch of rows.
+     */
+    private static final class Entries {
+        private final Index index;
+        private final Comparator<Object> order;
+        private final Object[] keys;
+        private final int[] rows;
+        private final boolean remove;
+        private volatile boolean started;
+        private volatile boolean built;
+
+        Entries(Index index, Object[] values, int[] batch, boolean remove) {
+            this.index = index;
+            this.remove = remove;
+            this.order = index.getLoadOrder();
+            int n = 0;
+            for (Object value : values) {
+                if (value != null) {
+                    n++;
+                }
+            }
+            keys = new Object[n];
+            rows = new int[n];
+            n = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    keys[n] = values[i];
+                    rows[n++] = batch[i];
+                }
+            }
+        }
+
+        Runnable sort(final int from, final int to) {
+            return new Runnable() {
+                public void run() {
+                    BulkLoader.sort(keys, rows, from, to, order);
+                }
+            };
+        }
+
+        Runnable build() {
+            return new Runnable() {
+                public void run() {
+                    started = true;
+                    if (order != null) {
+                        for (int width = RUN; width < rows.length; width *= 2) {
+                            for (int from = 0; from + width < rows.length; from += 2 * width) {
+                                merge(keys, rows, from, from + width, Math.min(rows.length, from + 2 * width), order);
+                            }
+                        }
+                    }
+                    if (remove) {
+                        index.unload(keys, rows);
+                    } else {
+                        index.load(keys, rows);
+                    }
+                    built = true;
+                }
+            };
+        }
+    }
+
+    /**
+     * Sorts entries by key, stably; short blocks by insertion, which are
+     * then merged.
+     */
+    static void sort(Object[] keys, int[] rows, int from, int to, Comparator<Object> order) {
+        for (int lo = from; lo < to; lo += BLOCK) {
+            int hi = Math.min(to, lo + BLOCK);
+            for (int i = lo + 1; i < hi; i++) {
+                Object key = keys[i];
+                int row = rows[i];
+                int j = i;
+                while (j > lo && order.compare(keys[j - 1], key) > 0) {
+                    keys[j] = keys[j - 1];
+                    rows[j] = rows[j - 1];
+                    j--;
+                }
+                keys[j] = key;
+                rows[j] = row;
+            }
+        }
+        for (int width = BLOCK; width < to - from; width *= 2) {
+            for (int lo = from; lo + width < to; lo += 2 * width) {
+                merge(keys, rows, lo, lo + width, Math.min(to, lo + 2 * width), order);
+            }
+        }
+    }
+
+    /**
+     * Merges two adjacent sorted ranges of entries.
+     */
+    private static void merge(Object[] keys, int[] rows, int from, int middle, int to, Comparator<Object> order) {
+        if (order.compare(keys[middle - 1], keys[middle]) <= 0) {
+            return;
+        }
+        Object[] leftKeys = Arrays.copyOfRange(keys, from, middle);
+        int[] leftRows = Arrays.copyOfRange(rows, from, middle);
+        int i = 0;
+        int j = middle;
+        int k = from;
+        while (i < leftKeys.length && j < to) {
+            if (order.compare(keys[j], leftKeys[i]) < 0) {
+                keys[k] = keys[j];
+                rows[k++] = rows[j++];
+            } else {
+                keys[k] = leftKeys[i];
+                rows[k++] = leftRows[i++];
+            }
+        }
+        while (i < leftKeys.length) {
+            keys[k] = leftKeys[i];
+            rows[k++] = leftRows[i++];
+        }
+    }
+}
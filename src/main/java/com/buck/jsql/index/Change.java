@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+/**
+ * A change to the elements of an {@link IndexedCollection}, as captured
+ * from the source of the elements: an insertion, a deletion, or an update
+ * replacing one element with another.
+ *
+ * @author Robert J. Buck
+ * @see IndexedCollection#apply(java.util.List)
+ */
+public final class Change<T> {
+
+    /**
+     * The kinds of change.
+     */
+    public enum Type {
+        INSERT, UPDATE, DELETE
+    }
+
+    private final Type type;
+    private final T before;
+    private final T after;
+
+    private Change(Type type, T before, T after) {
+        this.type = type;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Creates the insertion of an element.
+     *
+     * @param element the element inserted
+     * @return the change
+     * @throws NullPointerException if the element is null
+     */
+    public static <T> Change<T> insert(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        return new Change<T>(Type.INSERT, null, element);
+    }
+
+    /**
+     * Creates the update of an element, replacing it by another holding
+     * the new property values.
+     *
+     * @param before the element replaced
+     * @param after  the element replacing it
+     * @return the change
+     * @throws NullPointerException if either element is null
+     */
+    public static <T> Change<T> update(T before, T after) {
+        if (before == null || after == null) {
+            throw new NullPointerException();
+        }
+        return new Change<T>(Type.UPDATE, before, after);
+    }
+
+    /**
+     * Creates the deletion of an element.
+     *
+     * @param element the element deleted
+     * @return the change
+     * @throws NullPointerException if the element is null
+     */
+    public static <T> Change<T> delete(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        return new Change<T>(Type.DELETE, element, null);
+    }
+
+    /**
+     * Gets the kind of change.
+     *
+     * @return the type of the change
+     */
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the element deleted or replaced.
+     *
+     * @return the element before the change, or null for an insertion
+     */
+    public T getBefore() {
+        return before;
+    }
+
+    /**
+     * Gets the element inserted or replacing another.
+     *
+     * @return the element after the change, or null for a deletion
+     */
+    public T getAfter() {
+        return after;
+    }
+
+    public String toString() {
+        switch (type) {
+            case INSERT:
+                return "INSERT " + after;
+            case UPDATE:
+                return "UPDATE " + before + " -> " + after;
+            default:
+                return "DELETE " + before;
+        }
+    }
+}
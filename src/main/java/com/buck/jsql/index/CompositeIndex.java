@@ -0,0 +1,362 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+import com.buck.jsql.util.Values;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A composite index over a tuple of properties, keeping rows sorted by the
+ * tuple of their property values, most significant property first.
+ * <p/>
+ * A conjunction having equality predicates over the leading properties of
+ * the tuple, and optionally range predicates over the property following
+ * them, selects a contiguous range of entries for each combination of the
+ * equality values; such a conjunction is answered by one range probe per
+ * combination, rather than by intersecting the rows found for each
+ * property. IN lists multiply the probes, and leading properties beyond
+ * {@link #MAX_PROBES} combinations are left unmatched.
+ * <p/>
+ * Every row is entered, whatever its values; nulls sort first. Values are
+ * ordered as by {@link Values#compare}, so a range over numbers never
+ * includes strings and the reverse.
+ *
+ * @author Robert J. Buck
+ */
+public class CompositeIndex extends Index {
+
+    /**
+     * The most probes a lookup makes.
+     */
+    public static final int MAX_PROBES = 64;
+
+    // sentinels bounding every value in a key, for probes by a leading part of the key
+    private static final Object LOW = new Object();
+    private static final Object HIGH = new Object();
+
+    private static final Comparator<Object[]> ORDER = new Comparator<Object[]>() {
+        public int compare(Object[] a, Object[] b) {
+            for (int i = 0; i < a.length && i < b.length; i++) {
+                int c = compareValues(a[i], b[i]);
+                if (c != 0) {
+                    return c;
+                }
+            }
+            return a.length - b.length;
+        }
+    };
+
+    private final String[] properties;
+    private final TreeMap<Object[], Postings> entries = new TreeMap<Object[], Postings>(ORDER);
+
+    /**
+     * Constructs a composite index.
+     *
+     * @param properties the indexed properties, most significant first
+     */
+    CompositeIndex(String... properties) {
+        super(properties[0]);
+        this.properties = properties.clone();
+    }
+
+    public List<String> getProperties() {
+        return Collections.unmodifiableList(Arrays.asList(properties));
+    }
+
+    void add(int row, Object value) {
+        Object[] key = key((Object[]) value);
+        Postings rows = entries.get(key);
+        if (rows == null) {
+            rows = new Postings();
+            entries.put(key, rows);
+        }
+        rows.add(row);
+    }
+
+    /**
+     * Enters rows sorted by tuple, a run of rows having the same tuple at
+     * a time.
+     */
+    void load(Object[] values, int[] rows) {
+        int i = 0;
+        while (i < values.length) {
+            Object[] key = key((Object[]) values[i]);
+            int j = i + 1;
+            while (j < values.length && ORDER.compare(key, (Object[]) values[j]) == 0) {
+                j++;
+            }
+            Postings postings = entries.get(key);
+            if (postings == null) {
+                postings = new Postings(j - i);
+                entries.put(key, postings);
+            }
+            for (int r = i; r < j; r++) {
+                postings.add(rows[r]);
+            }
+            i = j;
+        }
+    }
+
+    Comparator<Object> getLoadOrder() {
+        return new Comparator<Object>() {
+            public int compare(Object a, Object b) {
+                return ORDER.compare((Object[]) a, (Object[]) b);
+            }
+        };
+    }
+
+    void remove(int row, Object value) {
+        Object[] key = key((Object[]) value);
+        Postings rows = entries.get(key);
+        if (rows != null) {
+            rows.remove(row);
+            if (rows.size() == 0) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    private static Object[] key(Object[] tuple) {
+        Object[] key = new Object[tuple.length];
+        for (int i = 0; i < key.length; i++) {
+            key[i] = Values.key(tuple[i]);
+        }
+        return key;
+    }
+
+    int[] lookup(List<Predicate> predicates) {
+        Probe probe = new Probe(Collections.singletonMap(properties[0], predicates));
+        return probe.columns > 0 ? probe.lookup() : null;
+    }
+
+    /**
+     * Counts the leading properties of the tuple a single lookup would
+     * answer for a conjunction.
+     *
+     * @param predicates the predicates of the conjunction, by property
+     * @return the number of properties matched
+     */
+    int match(Map<String, List<Predicate>> predicates) {
+        return new Probe(predicates).columns;
+    }
+
+    /**
+     * Finds the rows satisfying the predicates over the leading properties
+     * matched.
+     *
+     * @param predicates the predicates of the conjunction, by property
+     * @return the rows in ascending order, or null if no property matched
+     */
+    int[] lookup(Map<String, List<Predicate>> predicates) {
+        Probe probe = new Probe(predicates);
+        return probe.columns > 0 ? probe.lookup() : null;
+    }
+
+    public String toString() {
+        StringBuilder text = new StringBuilder(getClass().getSimpleName()).append('(');
+        for (int i = 0; i < properties.length; i++) {
+            text.append(i > 0 ? ", " : "").append(properties[i]);
+        }
+        return text.append(')').toString();
+    }
+
+    private static int compareValues(Object a, Object b) {
+        if (a == b) {
+            return 0;
+        }
+        if (a == LOW || b == HIGH) {
+            return -1;
+        }
+        if (a == HIGH || b == LOW) {
+            return 1;
+        }
+        return Values.compare(a, b);
+    }
+
+    /**
+     * The probes answering a conjunction: the equality values of the
+     * leading properties, and the bounds over the property following them.
+     */
+    private final class Probe {
+        private final List<Object[]> prefixes = new ArrayList<Object[]>();
+        private int equalities;
+        private int columns;
+        private boolean empty;
+        private Object lower;
+        private boolean lowerInclusive;
+        private Object upper;
+        private boolean upperInclusive;
+
+        Probe(Map<String, List<Predicate>> predicates) {
+            prefixes.add(new Object[0]);
+            while (equalities < properties.length) {
+                Set<Object> values = equalities(predicates.get(properties[equalities]));
+                if (values == null || prefixes.size() * Math.max(1, values.size()) > MAX_PROBES) {
+                    break;
+                }
+                List<Object[]> extended = new ArrayList<Object[]>(prefixes.size() * values.size());
+                for (Object[] prefix : prefixes) {
+                    for (Object value : values) {
+                        Object[] key = Arrays.copyOf(prefix, prefix.length + 1);
+                        key[prefix.length] = value;
+                        extended.add(key);
+                    }
+                }
+                prefixes.clear();
+                prefixes.addAll(extended);
+                equalities++;
+            }
+            empty = prefixes.isEmpty();
+            columns = equalities;
+            if (equalities < properties.length && bound(predicates.get(properties[equalities]))) {
+                columns++;
+            }
+        }
+
+        /**
+         * Gets the values an equality conjunct over a property allows.
+         *
+         * @return the values, or null if no equality predicate applies
+         */
+        private Set<Object> equalities(List<Predicate> predicates) {
+            Set<Object> values = null;
+            if (predicates != null) {
+                for (Predicate predicate : predicates) {
+                    if (predicate.getKind() == Predicate.Kind.EQ) {
+                        Set<Object> allowed = new LinkedHashSet<Object>(Arrays.asList(predicate.getValues()));
+                        if (values == null) {
+                            values = allowed;
+                        } else {
+                            values.retainAll(allowed);
+                        }
+                    }
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Takes the tightest bounds of the range predicates over a
+         * property.
+         *
+         * @return true if there is a range predicate
+         */
+        private boolean bound(List<Predicate> predicates) {
+            if (predicates == null) {
+                return false;
+            }
+            boolean found = false;
+            for (Predicate predicate : predicates) {
+                Predicate.Kind kind = predicate.getKind();
+                if (kind == Predicate.Kind.EQ || kind == Predicate.Kind.LIKE) {
+                    continue;
+                }
+                Object bound = predicate.getValues()[0];
+                Object other = lower != null ? lower : upper;
+                if (other != null && (other instanceof String) != (bound instanceof String)) {
+                    // no value is both a number and a string
+                    empty = true;
+                }
+                if (kind == Predicate.Kind.GT || kind == Predicate.Kind.GE) {
+                    int c = lower == null ? 1 : Values.compare(bound, lower);
+                    if (c > 0 || (c == 0 && kind == Predicate.Kind.GT)) {
+                        lower = bound;
+                        lowerInclusive = kind == Predicate.Kind.GE;
+                    }
+                } else {
+                    int c = upper == null ? -1 : Values.compare(bound, upper);
+                    if (c < 0 || (c == 0 && kind == Predicate.Kind.LT)) {
+                        upper = bound;
+                        upperInclusive = kind == Predicate.Kind.LE;
+                    }
+                }
+                found = true;
+            }
+            if (found) {
+                // confine a half open range to the values of the same kind
+                if (lower == null) {
+                    lower = upper instanceof String ? "" : (Object) Double.NEGATIVE_INFINITY;
+                    lowerInclusive = true;
+                } else if (upper == null) {
+                    upper = lower instanceof String ? (Object) Boolean.FALSE : "";
+                    upperInclusive = false;
+                }
+            }
+            return found;
+        }
+
+        int[] lookup() {
+            if (empty) {
+                return new int[0];
+            }
+            boolean ranged = columns > equalities;
+            List<int[]> lists = new ArrayList<int[]>();
+            for (Object[] prefix : prefixes) {
+                Object[] from;
+                Object[] to;
+                boolean fromInclusive = true;
+                boolean toInclusive = true;
+                if (ranged) {
+                    boolean padded = columns < properties.length;
+                    from = key(prefix, lower, lowerInclusive ? LOW : HIGH);
+                    to = key(prefix, upper, upperInclusive ? HIGH : LOW);
+                    fromInclusive = lowerInclusive || padded;
+                    toInclusive = upperInclusive || padded;
+                } else {
+                    from = key(prefix, null, LOW);
+                    to = key(prefix, null, HIGH);
+                }
+                int c = ORDER.compare(from, to);
+                if (c > 0 || (c == 0 && !(fromInclusive && toInclusive))) {
+                    continue;
+                }
+                for (Postings rows : entries.subMap(from, fromInclusive, to, toInclusive).values()) {
+                    lists.add(rows.toArray());
+                }
+            }
+            return lists.isEmpty() ? new int[0] : Postings.union(lists);
+        }
+
+        /**
+         * Builds a bound of full key length; the prefix, the range bound if
+         * any, and the padding in the remaining positions.
+         */
+        private Object[] key(Object[] prefix, Object bound, Object padding) {
+            Object[] key = Arrays.copyOf(prefix, properties.length);
+            int i = prefix.length;
+            if (bound != null) {
+                key[i++] = bound;
+            }
+            Arrays.fill(key, i, key.length, padding);
+            return key;
+        }
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An adaptive index over a numeric property, answering range, BETWEEN,
+ * equality and IN predicates; the index is built by the queries using it,
+ * rather than up front.
+ * <p/>
+ * The index holds a cracker column, an array of (value, row) pairs in no
+ * particular order to begin with. Each lookup partitions the pieces of the
+ * column holding its bounds around those bounds, as a quicksort would, and
+ * remembers where the column was cut; the rows in range are then those
+ * between two cuts. The first lookup costs about as much as a scan, and
+ * as cuts accumulate, the pieces left to partition shrink, so that the
+ * lookups over a frequently queried property approach the speed of a
+ * sorted index.
+ * <p/>
+ * Rows added are held aside until enough of them accumulate, and rows
+ * removed are marked as such; both are then merged into the column piece
+ * by piece, keeping the cuts made. Values other than numbers, and NaN,
+ * satisfy no numeric range and are not entered; numbers having no exact
+ * double representation are always reported as candidates.
+ *
+ * @author Robert J. Buck
+ */
+public class CrackerIndex extends Index {
+
+    private double[] values = new double[16];
+    private int[] rows = new int[16];
+    private int count;
+    private final TreeMap<Cut, Integer> cuts = new TreeMap<Cut, Integer>();
+
+    private double[] pendingValues = new double[16];
+    private int[] pendingRows = new int[16];
+    private int pending;
+    private final Bitmap removed = new Bitmap();
+    private int removedCount;
+    private Postings inexact = new Postings();
+
+    /**
+     * Constructs a cracker index.
+     *
+     * @param property the indexed property
+     */
+    CrackerIndex(String property) {
+        super(property);
+    }
+
+    /**
+     * A position of the column, before which every value is less than, or
+     * less than or equal to, the value of the cut.
+     */
+    private static final class Cut implements Comparable<Cut> {
+        private final double value;
+        private final boolean inclusive;
+
+        Cut(double value, boolean inclusive) {
+            this.value = value;
+            this.inclusive = inclusive;
+        }
+
+        boolean before(double v) {
+            return inclusive ? v <= value : v < value;
+        }
+
+        public int compareTo(Cut other) {
+            if (value != other.value) {
+                return value < other.value ? -1 : 1;
+            }
+            return inclusive == other.inclusive ? 0 : (inclusive ? 1 : -1);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Cut && compareTo((Cut) o) == 0;
+        }
+
+        public int hashCode() {
+            return (int) Double.doubleToLongBits(value) ^ (inclusive ? 1 : 0);
+        }
+    }
+
+    void add(int row, Object value) {
+        if (!(value instanceof Number)) {
+            return;
+        }
+        if (!isExact((Number) value)) {
+            inexact.add(row);
+            return;
+        }
+        double d = ((Number) value).doubleValue();
+        if (d != d) {
+            return;
+        }
+        if (pending == pendingRows.length) {
+            pendingValues = Arrays.copyOf(pendingValues, pending * 2);
+            pendingRows = Arrays.copyOf(pendingRows, pending * 2);
+        }
+        pendingValues[pending] = d;
+        pendingRows[pending++] = row;
+    }
+
+    void remove(int row, Object value) {
+        if (!(value instanceof Number)) {
+            return;
+        }
+        if (!isExact((Number) value)) {
+            inexact.remove(row);
+            return;
+        }
+        for (int i = 0; i < pending; i++) {
+            if (pendingRows[i] == row) {
+                pending--;
+                pendingValues[i] = pendingValues[pending];
+                pendingRows[i] = pendingRows[pending];
+                return;
+            }
+        }
+        if (((Number) value).doubleValue() == ((Number) value).doubleValue() && !removed.contains(row)) {
+            removed.add(row);
+            removedCount++;
+        }
+    }
+
+    void clear() {
+        count = 0;
+        cuts.clear();
+        pending = 0;
+        removed.clear();
+        removedCount = 0;
+        inexact = new Postings();
+    }
+
+    /**
+     * Tests whether a number converts to a double without loss.
+     */
+    private static boolean isExact(Number number) {
+        if (number instanceof Double || number instanceof Float) {
+            return true;
+        }
+        long l = number.longValue();
+        return (long) (double) l == l && number.doubleValue() == l;
+    }
+
+    /**
+     * Gets the number of pieces the column is cut into.
+     *
+     * @return the number of pieces
+     */
+    int pieces() {
+        return cuts.size() + 1;
+    }
+
+    int[] lookup(List<Predicate> predicates) {
+        Cut lower = null;
+        Cut upper = null;
+        int[] found = null;
+        boolean answered = false;
+        for (Predicate predicate : predicates) {
+            Object[] bounds = predicate.getValues();
+            if (predicate.getKind() == Predicate.Kind.LIKE || !isNumbers(bounds)) {
+                continue;
+            }
+            double bound = ((Number) bounds[0]).doubleValue();
+            switch (predicate.getKind()) {
+                case EQ: {
+                    List<int[]> lists = new ArrayList<int[]>(bounds.length);
+                    for (Object value : bounds) {
+                        double d = ((Number) value).doubleValue();
+                        lists.add(range(new Cut(d, false), new Cut(d, true)));
+                    }
+                    int[] rows = Postings.union(lists);
+                    found = found == null ? rows : Postings.intersect(found, rows);
+                    break;
+                }
+                case GT:
+                case GE: {
+                    Cut cut = new Cut(bound, predicate.getKind() == Predicate.Kind.GT);
+                    lower = lower == null || cut.compareTo(lower) > 0 ? cut : lower;
+                    break;
+                }
+                default: {
+                    Cut cut = new Cut(bound, predicate.getKind() == Predicate.Kind.LE);
+                    upper = upper == null || cut.compareTo(upper) < 0 ? cut : upper;
+                    break;
+                }
+            }
+            answered = true;
+        }
+        if (!answered) {
+            return null;
+        }
+        if (lower != null || upper != null) {
+            int[] rows = range(lower, upper);
+            found = found == null ? rows : Postings.intersect(found, rows);
+        }
+        return found;
+    }
+
+    /**
+     * Tests whether every value of a predicate is a number the column is
+     * able to compare exactly.
+     */
+    private static boolean isNumbers(Object[] values) {
+        for (Object value : values) {
+            if (!(value instanceof Number) || !isExact((Number) value)
+                    || ((Number) value).doubleValue() != ((Number) value).doubleValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the rows between two cuts, cracking the column at each.
+     *
+     * @param lower the cut before the first row, or null
+     * @param upper the cut after the last row, or null
+     * @return the rows in ascending order
+     */
+    private int[] range(Cut lower, Cut upper) {
+        if (pending + removedCount > Math.max(64, count / 64)) {
+            merge();
+        }
+        int[] found = new int[0];
+        if (lower == null || upper == null || lower.compareTo(upper) <= 0) {
+            int start = lower != null ? crack(lower) : 0;
+            int end = upper != null ? crack(upper) : count;
+            found = new int[Math.max(0, end - start) + pending];
+            int n = 0;
+            for (int i = start; i < end; i++) {
+                if (removedCount == 0 || !removed.contains(rows[i])) {
+                    found[n++] = rows[i];
+                }
+            }
+            for (int i = 0; i < pending; i++) {
+                double v = pendingValues[i];
+                if ((lower == null || !lower.before(v)) && (upper == null || upper.before(v))) {
+                    found[n++] = pendingRows[i];
+                }
+            }
+            found = Arrays.copyOf(found, n);
+            Arrays.sort(found);
+        }
+        if (inexact.size() == 0) {
+            return found;
+        }
+        List<int[]> lists = new ArrayList<int[]>(2);
+        lists.add(found);
+        lists.add(inexact.toArray());
+        return Postings.union(lists);
+    }
+
+    /**
+     * Partitions the piece of the column holding a cut around the cut,
+     * unless the column was cut there before.
+     *
+     * @return the position of the cut
+     */
+    private int crack(Cut cut) {
+        Integer position = cuts.get(cut);
+        if (position != null) {
+            return position;
+        }
+        Map.Entry<Cut, Integer> floor = cuts.lowerEntry(cut);
+        Map.Entry<Cut, Integer> ceiling = cuts.higherEntry(cut);
+        int i = floor != null ? floor.getValue() : 0;
+        int j = (ceiling != null ? ceiling.getValue() : count) - 1;
+        while (i <= j) {
+            if (cut.before(values[i])) {
+                i++;
+            } else {
+                swap(i, j--);
+            }
+        }
+        cuts.put(cut, i);
+        return i;
+    }
+
+    private void swap(int i, int j) {
+        double v = values[i];
+        values[i] = values[j];
+        values[j] = v;
+        int r = rows[i];
+        rows[i] = rows[j];
+        rows[j] = r;
+    }
+
+    /**
+     * Merges the rows added and removed into the column, placing each row
+     * added in the piece its value belongs to, so that the cuts remain.
+     */
+    private void merge() {
+        Cut[] order = cuts.keySet().toArray(new Cut[cuts.size()]);
+        int[] at = new int[order.length];
+        for (int p = 0; p < order.length; p++) {
+            at[p] = cuts.get(order[p]);
+        }
+        int[] sizes = new int[order.length + 1];
+        int[] pieceOf = new int[pending];
+        int piece = 0;
+        for (int i = 0; i < count; i++) {
+            while (piece < at.length && i == at[piece]) {
+                piece++;
+            }
+            if (removedCount == 0 || !removed.contains(rows[i])) {
+                sizes[piece]++;
+            }
+        }
+        for (int i = 0; i < pending; i++) {
+            pieceOf[i] = pieceOf(order, pendingValues[i]);
+            sizes[pieceOf[i]]++;
+        }
+        int[] offsets = new int[sizes.length];
+        for (int p = 1; p < sizes.length; p++) {
+            offsets[p] = offsets[p - 1] + sizes[p - 1];
+        }
+        int total = offsets[sizes.length - 1] + sizes[sizes.length - 1];
+        double[] mergedValues = new double[Math.max(16, total)];
+        int[] mergedRows = new int[mergedValues.length];
+        int[] next = offsets.clone();
+        piece = 0;
+        for (int i = 0; i < count; i++) {
+            while (piece < at.length && i == at[piece]) {
+                piece++;
+            }
+            if (removedCount == 0 || !removed.contains(rows[i])) {
+                mergedValues[next[piece]] = values[i];
+                mergedRows[next[piece]++] = rows[i];
+            }
+        }
+        for (int i = 0; i < pending; i++) {
+            mergedValues[next[pieceOf[i]]] = pendingValues[i];
+            mergedRows[next[pieceOf[i]]++] = pendingRows[i];
+        }
+        for (int p = 0; p < order.length; p++) {
+            cuts.put(order[p], offsets[p + 1]);
+        }
+        values = mergedValues;
+        rows = mergedRows;
+        count = total;
+        pending = 0;
+        removed.clear();
+        removedCount = 0;
+    }
+
+    /**
+     * Finds the piece a value belongs to: the number of cuts the value is
+     * not before.
+     */
+    private static int pieceOf(Cut[] order, double value) {
+        int low = 0;
+        int high = order.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (order[middle].before(value)) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+}
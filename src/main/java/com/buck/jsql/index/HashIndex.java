@@ -0,0 +1,152 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+import com.buck.jsql.util.Values;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A hash index, answering equality and IN predicates. Keys are normalized
+ * so that numbers match as they do in the comparison predicate. Integral
+ * keys, which most numeric properties have, are held unboxed in a
+ * {@link LongPostingsMap}; other keys in a hash map.
+ *
+ * @author Robert J. Buck
+ */
+public class HashIndex extends Index {
+
+    private final LongPostingsMap longs = new LongPostingsMap();
+    private final HashMap<Object, Postings> postings = new HashMap<Object, Postings>();
+
+    /**
+     * Constructs a hash index.
+     *
+     * @param property the indexed property
+     */
+    HashIndex(String property) {
+        super(property);
+    }
+
+    void add(int row, Object value) {
+        Object key = Values.key(value);
+        if (key instanceof Long) {
+            longs.add((Long) key, row);
+            return;
+        }
+        Postings rows = postings.get(key);
+        if (rows == null) {
+            rows = new Postings();
+            postings.put(key, rows);
+        }
+        rows.add(row);
+    }
+
+    /**
+     * Enters rows sorted by value, a run of rows having the same value at
+     * a time.
+     */
+    void load(Object[] values, int[] rows) {
+        longs.reserve(longs.size() + runs(values));
+        int i = 0;
+        while (i < values.length) {
+            Object key = Values.key(values[i]);
+            int j = i + 1;
+            while (j < values.length && key.equals(Values.key(values[j]))) {
+                j++;
+            }
+            if (key instanceof Long) {
+                long l = (Long) key;
+                for (int r = i; r < j; r++) {
+                    longs.add(l, rows[r]);
+                }
+            } else {
+                Postings postings = this.postings.get(key);
+                if (postings == null) {
+                    postings = new Postings(j - i);
+                    this.postings.put(key, postings);
+                }
+                for (int r = i; r < j; r++) {
+                    postings.add(rows[r]);
+                }
+            }
+            i = j;
+        }
+    }
+
+    Comparator<Object> getLoadOrder() {
+        return VALUE_ORDER;
+    }
+
+    void remove(int row, Object value) {
+        Object key = Values.key(value);
+        if (key instanceof Long) {
+            longs.remove((Long) key, row);
+            return;
+        }
+        Postings rows = postings.get(key);
+        if (rows != null) {
+            rows.remove(row);
+            if (rows.size() == 0) {
+                postings.remove(key);
+            }
+        }
+    }
+
+    void clear() {
+        longs.clear();
+        postings.clear();
+    }
+
+    double getLookupCost() {
+        return 0.1;
+    }
+
+    int[] lookup(List<Predicate> predicates) {
+        int[] rows = null;
+        for (Predicate predicate : predicates) {
+            if (predicate.getKind() == Predicate.Kind.EQ) {
+                int[] found = lookup(predicate.getValues());
+                rows = rows == null ? found : Postings.intersect(rows, found);
+            }
+        }
+        return rows;
+    }
+
+    private int[] lookup(Object[] values) {
+        List<int[]> lists = new ArrayList<int[]>(values.length);
+        for (Object value : values) {
+            Object key = Values.key(value);
+            if (key instanceof Long) {
+                int[] rows = longs.get((Long) key);
+                if (rows.length > 0) {
+                    lists.add(rows);
+                }
+            } else {
+                Postings rows = postings.get(key);
+                if (rows != null) {
+                    lists.add(rows.toArray());
+                }
+            }
+        }
+        return lists.isEmpty() ? new int[0] : Postings.union(lists);
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+import com.buck.jsql.util.Values;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An index over a property of the elements of an {@link IndexedCollection},
+ * mapping property values to the rows holding them. Null values are not
+ * indexed, as no predicate an index answers is satisfied by null.
+ *
+ * @author Robert J. Buck
+ */
+public abstract class Index {
+
+    /**
+     * Orders values as the sort operators do; the order rows are entered
+     * in bulk in by indexes keyed by value.
+     */
+    static final Comparator<Object> VALUE_ORDER = new Comparator<Object>() {
+        public int compare(Object a, Object b) {
+            return Values.compare(a, b);
+        }
+    };
+
+    private final String property;
+
+    /**
+     * Constructor
+     *
+     * @param property the indexed property
+     */
+    Index(String property) {
+        this.property = property;
+    }
+
+    /**
+     * Gets the name of the indexed property.
+     *
+     * @return the property name
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * Gets the names of the properties an entry is made of; the indexed
+     * property alone, unless the index is a composite index.
+     *
+     * @return the property names
+     */
+    public List<String> getProperties() {
+        return Collections.singletonList(property);
+    }
+
+    /**
+     * Enters a row.
+     *
+     * @param row   the row number
+     * @param value the non-null property value of the row, or the tuple of
+     *              property values for a composite index
+     */
+    abstract void add(int row, Object value);
+
+    /**
+     * Enters rows in bulk, sorted in the order the index gives, if any.
+     *
+     * @param values the non-null values of the rows, as for {@link #add}
+     * @param rows   the row numbers, ascending among rows having equal
+     *               values
+     */
+    void load(Object[] values, int[] rows) {
+        for (int i = 0; i < rows.length; i++) {
+            add(rows[i], values[i]);
+        }
+    }
+
+    /**
+     * Removes rows in bulk, sorted in the order the index gives, if any.
+     *
+     * @param values the non-null values the rows were entered with
+     * @param rows   the row numbers
+     */
+    void unload(Object[] values, int[] rows) {
+        for (int i = 0; i < rows.length; i++) {
+            remove(rows[i], values[i]);
+        }
+    }
+
+    /**
+     * Counts the distinct integral keys among values sorted by value; the
+     * runs of equal integral keys.
+     *
+     * @param values the values, sorted by value
+     * @return the number of distinct integral keys
+     */
+    static int runs(Object[] values) {
+        int runs = 0;
+        Object previous = null;
+        for (Object value : values) {
+            Object key = Values.key(value);
+            if (key instanceof Long && !key.equals(previous)) {
+                runs++;
+            }
+            previous = key;
+        }
+        return runs;
+    }
+
+    /**
+     * Gets the order rows are best entered in bulk in.
+     *
+     * @return the order of the values, or null to enter rows in row order
+     */
+    Comparator<Object> getLoadOrder() {
+        return null;
+    }
+
+    /**
+     * Removes a row.
+     *
+     * @param row   the row number
+     * @param value the non-null property value the row was entered with
+     */
+    abstract void remove(int row, Object value);
+
+    /**
+     * Removes every row.
+     */
+    abstract void clear();
+
+    /**
+     * Finds the rows whose property value satisfies every predicate the
+     * index is able to answer.
+     *
+     * @param predicates the predicates over the indexed property
+     * @return the rows in ascending order, or null if the index cannot
+     *         answer any of the predicates
+     */
+    abstract int[] lookup(List<Predicate> predicates);
+
+    /**
+     * Gets the cost of a lookup per row found, relative to the cost of
+     * evaluating the search condition against an element.
+     *
+     * @return the relative cost of a lookup per row
+     */
+    double getLookupCost() {
+        return 0.25;
+    }
+
+    public String toString() {
+        return getClass().getSimpleName() + "(" + property + ")";
+    }
+}
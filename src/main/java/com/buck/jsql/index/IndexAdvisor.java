@@ -0,0 +1,613 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+import com.buck.jsql.Query;
+import com.buck.jsql.QueryException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Recommends indexes for an {@link IndexedCollection} from the queries run
+ * against it.
+ * <p/>
+ * Each query planned against the collection is recorded by the shape of
+ * its top level conjuncts, the properties they constrain and whether by
+ * equality or by range, along with the number of times the shape was run,
+ * the elements it left to scan, and the time spent planning it. The
+ * conjuncts themselves, whose values decide how selective a query is, are
+ * kept for a sample of the executions of each shape. Candidate
+ * indexes are drawn from the shapes: bitmap indexes for equality over few
+ * distinct values, hash indexes for equality over many, sorted indexes for
+ * ranges, and composite indexes for conjunctions over several properties,
+ * equalities first. The benefit of a candidate is the number of element
+ * evaluations it would save over the recorded workload, estimated from the
+ * {@link Statistics} of the properties it covers, and its memory cost is
+ * estimated from their row and distinct value counts.
+ * <p/>
+ * Conjuncts within disjunctions or negations are not considered.
+ * <p/>
+ * The advisor synchronizes on its collection, which records queries while
+ * planning them; recommendations are estimated from a snapshot of the
+ * queries recorded.
+ *
+ * @author Robert J. Buck
+ */
+public final class IndexAdvisor {
+
+    /**
+     * The distinct values a property may have for a bitmap index to be
+     * recommended over a hash index.
+     */
+    public static final int BITMAP_CARDINALITY = 256;
+
+    /**
+     * The least estimated speedup of the workload for which an index is
+     * recommended.
+     */
+    public static final double MIN_SPEEDUP = 1.05;
+
+    /**
+     * The number of executions of a shape whose conjuncts are sampled.
+     */
+    static final int SAMPLES = 16;
+
+    /**
+     * The kinds of index recommended.
+     */
+    public enum Type {
+        HASH, SORTED, BITMAP, COMPOSITE
+    }
+
+    /**
+     * A recommended index.
+     */
+    public static final class Recommendation {
+        private final Type type;
+        private final List<String> properties;
+        private final double benefit;
+        private final double speedup;
+        private final long memory;
+
+        Recommendation(Type type, List<String> properties, double benefit, double speedup, long memory) {
+            this.type = type;
+            this.properties = Collections.unmodifiableList(properties);
+            this.benefit = benefit;
+            this.speedup = speedup;
+            this.memory = memory;
+        }
+
+        /**
+         * Gets the kind of index recommended.
+         *
+         * @return the index type
+         */
+        public Type getType() {
+            return type;
+        }
+
+        /**
+         * Gets the properties to index, most significant first.
+         *
+         * @return the property names
+         */
+        public List<String> getProperties() {
+            return properties;
+        }
+
+        /**
+         * Gets the number of element evaluations the index is estimated to
+         * save over the recorded workload.
+         *
+         * @return the estimated benefit
+         */
+        public double getBenefit() {
+            return benefit;
+        }
+
+        /**
+         * Gets the factor by which the index is estimated to reduce the
+         * elements evaluated over the recorded workload.
+         *
+         * @return the estimated speedup
+         */
+        public double getSpeedup() {
+            return speedup;
+        }
+
+        /**
+         * Gets the estimated memory cost of the index.
+         *
+         * @return the estimated size in bytes
+         */
+        public long getMemory() {
+            return memory;
+        }
+
+        public String toString() {
+            return type + properties.toString() + String.format(": speedup %.1fx, %d bytes", speedup, memory);
+        }
+    }
+
+    /**
+     * The queries of one shape recorded, and the conjuncts of a uniform
+     * sample of them. Whether a property is constrained by equality or by
+     * range is the same for every query of the shape, and is read from the
+     * conjuncts of the first.
+     */
+    private static final class Workload {
+        private final Map<String, List<Predicate>> predicates;
+        private final List<Map<String, List<Predicate>>> samples;
+        private int executions;
+        private long rows;
+        private long nanos;
+
+        Workload(Map<String, List<Predicate>> predicates) {
+            this.predicates = predicates;
+            this.samples = new ArrayList<Map<String, List<Predicate>>>();
+        }
+
+        Workload(Workload workload) {
+            this.predicates = workload.predicates;
+            this.samples = new ArrayList<Map<String, List<Predicate>>>(workload.samples);
+            this.executions = workload.executions;
+            this.rows = workload.rows;
+            this.nanos = workload.nanos;
+        }
+
+        /**
+         * Samples the conjuncts of the latest execution, such that every
+         * execution is as likely to be among the samples kept.
+         */
+        void sample(Map<String, List<Predicate>> conjuncts, Random random) {
+            if (samples.size() < SAMPLES) {
+                samples.add(conjuncts);
+            } else {
+                int i = random.nextInt(executions);
+                if (i < SAMPLES) {
+                    samples.set(i, conjuncts);
+                }
+            }
+        }
+    }
+
+    private final IndexedCollection<?> collection;
+    private final Map<String, Workload> workloads = new LinkedHashMap<String, Workload>();
+    private final Random random = new Random(17);
+
+    /**
+     * Constructs an advisor for a collection.
+     *
+     * @param collection the collection queried
+     */
+    IndexAdvisor(IndexedCollection<?> collection) {
+        this.collection = collection;
+    }
+
+    /**
+     * Records a query planned against the collection.
+     *
+     * @param query the query
+     * @param rows  the number of elements left to scan
+     * @param nanos the time spent planning the query
+     */
+    void record(Query<?> query, int rows, long nanos) {
+        List<Predicate> conjuncts = new ArrayList<Predicate>();
+        Predicate.analyze(query, conjuncts);
+        Map<String, List<Predicate>> byProperty = new LinkedHashMap<String, List<Predicate>>();
+        for (Predicate predicate : conjuncts) {
+            List<Predicate> list = byProperty.get(predicate.getProperty());
+            if (list == null) {
+                list = new ArrayList<Predicate>();
+                byProperty.put(predicate.getProperty(), list);
+            }
+            list.add(predicate);
+        }
+        String shape = shape(byProperty);
+        synchronized (collection) {
+            Workload workload = workloads.get(shape);
+            if (workload == null) {
+                workload = new Workload(byProperty);
+                workloads.put(shape, workload);
+            }
+            workload.executions++;
+            workload.rows += rows;
+            workload.nanos += nanos;
+            workload.sample(byProperty, random);
+        }
+    }
+
+    /**
+     * Copies the queries recorded.
+     */
+    private List<Workload> snapshot() {
+        synchronized (collection) {
+            List<Workload> snapshot = new ArrayList<Workload>(workloads.size());
+            for (Workload workload : workloads.values()) {
+                snapshot.add(new Workload(workload));
+            }
+            return snapshot;
+        }
+    }
+
+    private static String shape(Map<String, List<Predicate>> byProperty) {
+        List<String> parts = new ArrayList<String>();
+        for (Map.Entry<String, List<Predicate>> entry : byProperty.entrySet()) {
+            parts.add(entry.getKey() + (hasEquality(entry.getValue()) ? " EQ" : "")
+                    + (hasRange(entry.getValue()) ? " RANGE" : ""));
+        }
+        Collections.sort(parts);
+        return parts.toString();
+    }
+
+    private static boolean hasEquality(List<Predicate> predicates) {
+        for (Predicate predicate : predicates) {
+            if (predicate.getKind() == Predicate.Kind.EQ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasRange(List<Predicate> predicates) {
+        for (Predicate predicate : predicates) {
+            if (predicate.getKind() != Predicate.Kind.EQ && predicate.getKind() != Predicate.Kind.LIKE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the queries recorded.
+     */
+    public void clear() {
+        synchronized (collection) {
+            workloads.clear();
+        }
+    }
+
+    /**
+     * Gets the number of queries recorded.
+     *
+     * @return the number of queries
+     */
+    public int getQueryCount() {
+        int count = 0;
+        for (Workload workload : snapshot()) {
+            count += workload.executions;
+        }
+        return count;
+    }
+
+    /**
+     * Recommends indexes for the queries recorded, leaving out those the
+     * collection has already.
+     *
+     * @return the recommendations, in descending order of benefit
+     * @throws QueryException if statistics over a property could not be
+     *                        gathered
+     */
+    public List<Recommendation> recommend() throws QueryException {
+        List<Workload> recorded = snapshot();
+        Map<String, Recommendation> candidates = new LinkedHashMap<String, Recommendation>();
+        for (Workload workload : recorded) {
+            List<String> equalities = new ArrayList<String>();
+            String range = null;
+            for (Map.Entry<String, List<Predicate>> entry : workload.predicates.entrySet()) {
+                String property = entry.getKey();
+                if (hasEquality(entry.getValue())) {
+                    equalities.add(property);
+                    Type type = collection.getStatistics(property).getDistinctCount() <= BITMAP_CARDINALITY
+                            ? Type.BITMAP : Type.HASH;
+                    consider(recorded, candidates, type, Arrays.asList(property));
+                } else if (hasRange(entry.getValue())) {
+                    range = range == null ? property : range;
+                    consider(recorded, candidates, Type.SORTED, Arrays.asList(property));
+                }
+            }
+            if (equalities.size() + (range != null ? 1 : 0) >= 2) {
+                // the most selective equality leads, so that the index also serves it alone
+                final Map<String, Double> distinct = new LinkedHashMap<String, Double>();
+                for (String property : equalities) {
+                    distinct.put(property, collection.getStatistics(property).getDistinctCount());
+                }
+                Collections.sort(equalities, new Comparator<String>() {
+                    public int compare(String a, String b) {
+                        return Double.compare(distinct.get(b), distinct.get(a));
+                    }
+                });
+                List<String> properties = new ArrayList<String>(equalities);
+                if (range != null) {
+                    properties.add(range);
+                }
+                consider(recorded, candidates, Type.COMPOSITE, properties);
+            }
+        }
+        List<Recommendation> recommendations = new ArrayList<Recommendation>();
+        for (Recommendation candidate : candidates.values()) {
+            // leave out candidates that would save next to nothing
+            if (candidate.speedup >= MIN_SPEEDUP) {
+                recommendations.add(candidate);
+            }
+        }
+        Collections.sort(recommendations, new Comparator<Recommendation>() {
+            public int compare(Recommendation a, Recommendation b) {
+                return Double.compare(b.benefit, a.benefit);
+            }
+        });
+        return recommendations;
+    }
+
+    /**
+     * Creates recommended indexes, in descending order of benefit per byte,
+     * for as long as their estimated memory cost fits within a budget.
+     *
+     * @param budget the memory budget in bytes
+     * @return the indexes created
+     * @throws QueryException if statistics over a property could not be
+     *                        gathered, or if an index could not be created
+     */
+    public List<Index> apply(long budget) throws QueryException {
+        List<Index> created = new ArrayList<Index>();
+        synchronized (collection) {
+            while (true) {
+                Recommendation best = null;
+                for (Recommendation candidate : recommend()) {
+                    if (candidate.memory <= budget && (best == null || candidate.benefit
+                            / Math.max(1, candidate.memory) > best.benefit / Math.max(1, best.memory))) {
+                        best = candidate;
+                    }
+                }
+                if (best == null) {
+                    return created;
+                }
+                created.add(create(best));
+                budget -= best.memory;
+            }
+        }
+    }
+
+    private Index create(Recommendation recommendation) throws QueryException {
+        String property = recommendation.properties.get(0);
+        switch (recommendation.type) {
+            case HASH:
+                return collection.addHashIndex(property);
+            case SORTED:
+                return collection.addSortedIndex(property);
+            case BITMAP:
+                return collection.addBitmapIndex(property);
+            default:
+                List<String> properties = recommendation.properties;
+                return collection.addCompositeIndex(properties.toArray(new String[properties.size()]));
+        }
+    }
+
+    private void consider(List<Workload> workloads, Map<String, Recommendation> candidates, Type type,
+                          List<String> properties) throws QueryException {
+        String key = type + properties.toString();
+        if (candidates.containsKey(key) || exists(type, properties)) {
+            return;
+        }
+        double before = 0;
+        double saved = 0;
+        for (Workload workload : workloads) {
+            double now = cost(workload, null, null);
+            double with = cost(workload, type, properties);
+            before += workload.executions * now;
+            saved += workload.executions * Math.max(0, now - with);
+        }
+        double speedup = before / Math.max(1, before - saved);
+        candidates.put(key, new Recommendation(type, new ArrayList<String>(properties), saved, speedup,
+                memory(type, properties)));
+    }
+
+    private boolean exists(Type type, List<String> properties) {
+        for (Index index : collection.getIndexes()) {
+            if (index.getProperties().equals(properties) && type(index) == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Type type(Index index) {
+        if (index instanceof HashIndex) {
+            return Type.HASH;
+        } else if (index instanceof SortedIndex) {
+            return Type.SORTED;
+        } else if (index instanceof BitmapIndex) {
+            return Type.BITMAP;
+        } else if (index instanceof CompositeIndex) {
+            return Type.COMPOSITE;
+        }
+        return null;
+    }
+
+    /**
+     * Estimates the elements a query of a workload evaluates on average,
+     * over the executions sampled.
+     */
+    private double cost(Workload workload, Type type, List<String> properties) throws QueryException {
+        double total = 0;
+        for (Map<String, List<Predicate>> sample : workload.samples) {
+            total += cost(workload, sample, type, properties);
+        }
+        double estimate = total / workload.samples.size();
+        // what was measured bounds the estimate without the candidate
+        double measured = workload.rows / (double) workload.executions;
+        return type == null ? Math.min(estimate, measured) : estimate;
+    }
+
+    /**
+     * Estimates the elements a query of a workload evaluates, given the
+     * indexes of the collection and optionally a candidate index: those
+     * selected by the conjuncts the indexes answer, plus the rows looked
+     * up. As the planner does, a composite index matching two or more
+     * properties is probed first, and indexes over single properties
+     * answer the conjuncts over the remaining properties.
+     */
+    private double cost(Workload workload, Map<String, List<Predicate>> sample, Type type, List<String> properties)
+            throws QueryException {
+        List<Type> types = new ArrayList<Type>();
+        List<List<String>> indexed = new ArrayList<List<String>>();
+        for (Index index : collection.getIndexes()) {
+            if (type(index) != null) {
+                types.add(type(index));
+                indexed.add(index.getProperties());
+            }
+        }
+        if (type != null) {
+            types.add(type);
+            indexed.add(properties);
+        }
+        double size = collection.size();
+        double best = Double.MAX_VALUE;
+        for (int c = -1; c < types.size(); c++) {
+            List<String> covered = Collections.emptyList();
+            double estimate = 0;
+            double selected = 1;
+            if (c >= 0) {
+                if (types.get(c) != Type.COMPOSITE || matched(indexed.get(c), workload) < 2) {
+                    continue;
+                }
+                covered = indexed.get(c).subList(0, matched(indexed.get(c), workload));
+                for (String property : covered) {
+                    selected *= selectivity(property, sample);
+                }
+                estimate += selected * size * cost(Type.COMPOSITE);
+            }
+            for (String property : workload.predicates.keySet()) {
+                if (covered.contains(property)) {
+                    continue;
+                }
+                double lookup = Double.MAX_VALUE;
+                for (int i = 0; i < types.size(); i++) {
+                    if (answers(types.get(i), indexed.get(i), property, workload)) {
+                        lookup = Math.min(lookup, cost(types.get(i)));
+                    }
+                }
+                if (lookup != Double.MAX_VALUE) {
+                    double s = selectivity(property, sample);
+                    selected *= s;
+                    estimate += s * size * lookup;
+                }
+            }
+            best = Math.min(best, estimate + selected * size);
+        }
+        return best;
+    }
+
+    private double selectivity(String property, Map<String, List<Predicate>> sample) throws QueryException {
+        return collection.getStatistics(property).getSelectivity(sample.get(property));
+    }
+
+    /**
+     * Tests whether an index over a single property answers the conjuncts
+     * over a property.
+     */
+    private static boolean answers(Type type, List<String> properties, String property, Workload workload) {
+        if (type == Type.COMPOSITE || !properties.get(0).equals(property)) {
+            return false;
+        }
+        List<Predicate> predicates = workload.predicates.get(property);
+        return hasEquality(predicates) || (type == Type.SORTED && hasRange(predicates));
+    }
+
+    /**
+     * Counts the leading properties of a composite index a probe would
+     * match: those constrained by equality, and the one following them if
+     * constrained by range.
+     */
+    private static int matched(List<String> properties, Workload workload) {
+        int matched = 0;
+        while (matched < properties.size()) {
+            List<Predicate> predicates = workload.predicates.get(properties.get(matched));
+            if (predicates == null || !hasEquality(predicates)) {
+                if (predicates != null && hasRange(predicates)) {
+                    matched++;
+                }
+                break;
+            }
+            matched++;
+        }
+        return matched;
+    }
+
+    private static double cost(Type type) {
+        switch (type) {
+            case HASH:
+                return 0.1;
+            case BITMAP:
+                return 0.02;
+            default:
+                return 0.25;
+        }
+    }
+
+    /**
+     * Estimates the memory an index would take, from the number of rows
+     * having values and the number of distinct values.
+     */
+    private long memory(Type type, List<String> properties) throws QueryException {
+        double rows = collection.size();
+        double distinct = 1;
+        for (String property : properties) {
+            Statistics statistics = collection.getStatistics(property);
+            distinct *= Math.max(1, statistics.getDistinctCount());
+            if (type != Type.COMPOSITE) {
+                rows *= 1 - statistics.getNullFraction();
+            }
+        }
+        distinct = Math.min(distinct, Math.max(1, rows));
+        switch (type) {
+            case HASH:
+                return (long) (48 * distinct + 4 * rows);
+            case SORTED:
+                return (long) (64 * distinct + 4 * rows);
+            case BITMAP:
+                return (long) (48 * distinct + 2 * rows);
+            default:
+                return (long) ((64 + 16 * properties.size()) * distinct + 4 * rows);
+        }
+    }
+
+    /**
+     * Describes the queries recorded, one shape per line.
+     *
+     * @return the description
+     */
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        synchronized (collection) {
+            for (Map.Entry<String, Workload> entry : workloads.entrySet()) {
+                Workload workload = entry.getValue();
+                text.append(String.format("%dx %s: %d rows, %d us%n", workload.executions, entry.getKey(),
+                        workload.rows / workload.executions, workload.nanos / workload.executions / 1000));
+            }
+        }
+        return text.toString();
+    }
+}
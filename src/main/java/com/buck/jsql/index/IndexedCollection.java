@@ -0,0 +1,1328 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.commons.i18n.ResourceBundle;
+import com.buck.jsql.Predicate;
+import com.buck.jsql.Query;
+import com.buck.jsql.QueryException;
+import com.buck.jsql.Queryable;
+import com.buck.jsql.SortKey;
+import com.buck.jsql.Versioned;
+import com.buck.jsql.reflection.Getter;
+import com.buck.jsql.reflection.PropertyAccessException;
+import com.buck.jsql.reflection.PropertyNotFoundException;
+import com.buck.jsql.reflection.ReflectionSupport;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+
+/**
+ * A collection maintaining indexes over properties of its elements, which
+ * queries use to narrow down the elements they scan.
+ * <p/>
+ * Elements are held in rows numbered in the order they were added; indexes
+ * map property values to row numbers. To plan a query, the conjuncts an
+ * index answers are looked up, and the rows found are combined by bitmap
+ * algebra following the AND, OR and NOT structure of the search condition:
+ * conjunctions intersect, disjunctions unite, provided every disjunct is
+ * answered, and negations and IS NULL are answered through bitmap indexes,
+ * which know the rows having no value. Only the elements in the resulting
+ * rows are scanned, and the whole search condition is evaluated against
+ * them; conjuncts no index answers are thereby applied as residual
+ * predicates. A query no index applies to scans every element.
+ * <p/>
+ * A composite index answers a conjunction over several of its leading
+ * properties in one probe, in place of a lookup per property.
+ * <p/>
+ * The conjuncts of a conjunction are looked up in ascending order of their
+ * selectivity, as estimated from {@link Statistics} over the properties;
+ * a lookup expected to cost more than scanning the elements it would
+ * eliminate is skipped, leaving its conjunct to be evaluated as a residual
+ * predicate. Statistics are gathered when first needed, and gathered again
+ * once the collection has changed by a fifth since.
+ * <p/>
+ * The {@link IndexAdvisor} of the collection recommends indexes, or
+ * creates them, from the queries it has recorded.
+ * <p/>
+ * In adaptive mode, a range predicate over a numeric property having no
+ * index creates a {@link CrackerIndex} over the property, which the range
+ * queries over the property then refine as they look it up.
+ * <p/>
+ * A query ordered by a single property having a sorted index is answered
+ * in index order, unless its other conjuncts leave so few candidates that
+ * sorting them is cheaper.
+ * <p/>
+ * Indexes are kept up to date as elements are added and removed. As with
+ * the keys of a hash map, the indexed properties of an element must not
+ * change while it is in the collection; a change to an element is applied
+ * as an update, replacing it with another. Null elements are not
+ * permitted.
+ * <p/>
+ * Batches of changes captured from the source of the elements are applied
+ * with {@link #apply}, maintaining each index once per batch. Changes and
+ * query planning are serialized on the collection, and the candidates of
+ * a query are copied out while planning, so that a query evaluates against
+ * the elements of a single version of the collection, whatever batches are
+ * applied meanwhile. Iteration is not synchronized.
+ *
+ * @author Robert J. Buck
+ */
+public class IndexedCollection<T> extends AbstractCollection<T> implements Queryable<T>, Versioned {
+
+    private final Class type;
+    private final List<Index> indexes = new ArrayList<Index>();
+    private final List<Getter[]> getters = new ArrayList<Getter[]>();
+    private final Map<Object, Postings> rowsOf = new HashMap<Object, Postings>();
+    private final Bitmap live = new Bitmap();
+    private final Map<String, Statistics> statistics = new HashMap<String, Statistics>();
+    private final Map<String, Integer> gathered = new HashMap<String, Integer>();
+    private Object[] elements = new Object[16];
+    private int length;
+    private int size;
+    private int modifications;
+    private boolean adaptive;
+    private IndexAdvisor advisor;
+    private volatile long version;
+
+    /**
+     * Constructs an empty indexed collection.
+     *
+     * @param type the class of the elements
+     */
+    public IndexedCollection(Class type) {
+        this.type = type;
+    }
+
+    /**
+     * Constructs an indexed collection holding the elements of a collection.
+     *
+     * @param type the class of the elements
+     * @param coll the elements to add
+     */
+    public IndexedCollection(Class type, Collection<? extends T> coll) {
+        this(type);
+        addAll(coll);
+    }
+
+    /**
+     * Creates a hash index over a property, answering equality and IN
+     * predicates.
+     *
+     * @param property the property to index
+     * @return the index
+     * @throws QueryException if the element class has no such property, or
+     *                        if a property value could not be read
+     */
+    public HashIndex addHashIndex(String property) throws QueryException {
+        return addIndex(new HashIndex(property));
+    }
+
+    /**
+     * Creates a sorted index over a property, answering range, BETWEEN,
+     * equality and IN predicates, and supplying elements in the order of a
+     * single key ORDER BY clause over the property.
+     *
+     * @param property the property to index
+     * @return the index
+     * @throws QueryException if the element class has no such property, or
+     *                        if a property value could not be read
+     */
+    public SortedIndex addSortedIndex(String property) throws QueryException {
+        return addIndex(new SortedIndex(property));
+    }
+
+    /**
+     * Creates a bitmap index over a property, answering equality, IN and
+     * IS NULL predicates and their negations; best suited to properties
+     * having few distinct values.
+     *
+     * @param property the property to index
+     * @return the index
+     * @throws QueryException if the element class has no such property, or
+     *                        if a property value could not be read
+     */
+    public BitmapIndex addBitmapIndex(String property) throws QueryException {
+        return addIndex(new BitmapIndex(property));
+    }
+
+    /**
+     * Creates a trigram index over a string property, answering LIKE
+     * predicates whose pattern has a literal fragment of at least three
+     * characters.
+     *
+     * @param property the property to index
+     * @return the index
+     * @throws QueryException if the element class has no such property, or
+     *                        if a property value could not be read
+     */
+    public TrigramIndex addTrigramIndex(String property) throws QueryException {
+        return addIndex(new TrigramIndex(property));
+    }
+
+    /**
+     * Creates a composite index over a tuple of properties, answering in a
+     * single probe equality and IN predicates over leading properties of
+     * the tuple, along with range predicates over the property following
+     * them.
+     *
+     * @param properties the properties to index, most significant first
+     * @return the index
+     * @throws QueryException if the element class lacks one of the
+     *                        properties, or if a property value could not
+     *                        be read
+     */
+    public CompositeIndex addCompositeIndex(String... properties) throws QueryException {
+        return addIndex(new CompositeIndex(properties));
+    }
+
+    /**
+     * Creates a cracker index over a numeric property, answering range,
+     * BETWEEN, equality and IN predicates; the index is refined by the
+     * lookups made, rather than built up front.
+     *
+     * @param property the property to index
+     * @return the index
+     * @throws QueryException if the element class has no such property, or
+     *                        if a property value could not be read
+     */
+    public CrackerIndex addCrackerIndex(String property) throws QueryException {
+        return addIndex(new CrackerIndex(property));
+    }
+
+    /**
+     * Tests whether range queries create cracker indexes over the numeric
+     * properties they bound.
+     *
+     * @return true if the collection is in adaptive mode
+     */
+    public synchronized boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Sets whether range queries create cracker indexes over the numeric
+     * properties they bound, where there is no index over the property.
+     *
+     * @param adaptive true to index adaptively
+     */
+    public synchronized void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Gets the index advisor of the collection, which records the queries
+     * planned against the collection from the first call on.
+     *
+     * @return the index advisor
+     */
+    public synchronized IndexAdvisor getAdvisor() {
+        if (advisor == null) {
+            advisor = new IndexAdvisor(this);
+        }
+        return advisor;
+    }
+
+    private synchronized <I extends Index> I addIndex(I index) throws QueryException {
+        Getter[] getter = fill(index);
+        indexes.add(index);
+        getters.add(getter);
+        return index;
+    }
+
+    /**
+     * Enters every row in an index that is not yet one of the indexes of
+     * the collection.
+     *
+     * @param index the index to fill
+     * @return the accessors of the properties the index is over
+     * @throws QueryException if the class of the elements has no such
+     *                        property, or if a property value could not be
+     *                        read
+     */
+    private Getter[] fill(Index index) throws QueryException {
+        List<String> properties = index.getProperties();
+        Getter[] getter = new Getter[properties.size()];
+        for (int i = 0; i < getter.length; i++) {
+            getter[i] = getGetter(properties.get(i));
+        }
+        for (int row = 0; row < length; row++) {
+            if (elements[row] != null) {
+                Object value = value(getter, elements[row]);
+                if (value != null) {
+                    index.add(row, value);
+                }
+            }
+        }
+        return getter;
+    }
+
+    private Getter getGetter(String property) throws QueryException {
+        try {
+            return ReflectionSupport.getGetter(type, property);
+        } catch (PropertyNotFoundException e) {
+            Object[] arguments = {property, type.getName()};
+            String message = ResourceBundle.formatResourceBundleMessage(Query.class,
+                    "QUERY_PROPERTY_NOT_FOUND", arguments);
+            throw new QueryException(message, e);
+        }
+    }
+
+    /**
+     * Gets the indexes of the collection.
+     *
+     * @return the indexes, in the order they were created
+     */
+    public synchronized List<Index> getIndexes() {
+        return new ArrayList<Index>(indexes);
+    }
+
+    /**
+     * Gets statistics over the values of a property, gathering them if
+     * there are none, or if those gathered before are out of date.
+     *
+     * @param property the property
+     * @return the statistics
+     * @throws QueryException if the element class has no such property, or
+     *                        if a property value could not be read
+     */
+    public synchronized Statistics getStatistics(String property) throws QueryException {
+        try {
+            return getStatistics(property, getGetter(property));
+        } catch (PropertyAccessException e) {
+            throw new QueryException(e.getMessage(), e);
+        }
+    }
+
+    private Statistics getStatistics(String property, Getter getter) throws PropertyAccessException {
+        Statistics cached = statistics.get(property);
+        if (cached != null && modifications - gathered.get(property) <= Math.max(100, size / 5)) {
+            return cached;
+        }
+        Statistics.Builder builder = new Statistics.Builder(property);
+        for (int row = 0; row < length; row++) {
+            if (elements[row] != null) {
+                builder.add(getter.get(elements[row]));
+            }
+        }
+        Statistics gathering = builder.build();
+        statistics.put(property, gathering);
+        gathered.put(property, modifications);
+        return gathering;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Gets the version of the collection, which every change, or batch of
+     * changes, advances.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Adds an element, entering it in every index.
+     *
+     * @param element the element to add
+     * @return true
+     * @throws NullPointerException     if the element is null
+     * @throws IllegalArgumentException if an indexed property of the
+     *                                  element could not be read
+     */
+    public synchronized boolean add(T element) {
+        if (element == null) {
+            throw new NullPointerException();
+        }
+        if (length == elements.length) {
+            elements = Arrays.copyOf(elements, length * 2);
+        }
+        int row = length;
+        Object[] values = values(element);
+        elements[length++] = element;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                indexes.get(i).add(row, values[i]);
+            }
+        }
+        Postings rows = rowsOf.get(element);
+        if (rows == null) {
+            rows = new Postings();
+            rowsOf.put(element, rows);
+        }
+        rows.add(row);
+        live.add(row);
+        size++;
+        modifications++;
+        version++;
+        return true;
+    }
+
+    /**
+     * Adds the elements of a collection, in bulk.
+     *
+     * @param coll the elements to add
+     * @return true if any element was added
+     * @throws NullPointerException     if an element is null
+     * @throws IllegalArgumentException if an indexed property of an
+     *                                  element could not be read
+     * @see #load(Collection, Executor)
+     */
+    public boolean addAll(Collection<? extends T> coll) {
+        load(coll, null);
+        return !coll.isEmpty();
+    }
+
+    /**
+     * Adds the elements of a collection in bulk, building the indexes from
+     * sorted runs rather than entering elements one at a time.
+     * <p/>
+     * The indexed property values of the elements are read in one pass;
+     * the values of each index are then sorted in runs, and the runs merged
+     * and entered into the index, a value at a time. Sorting and building
+     * run as tasks on the executor given, such that runs, and indexes, are
+     * processed in parallel; the call returns once every index is built.
+     * Either every element is added, or, if some element is null or cannot
+     * be read, or building an index fails, none is.
+     *
+     * @param coll     the elements to add
+     * @param executor the executor running the tasks, or null to run them
+     *                 in the calling thread
+     * @throws NullPointerException     if an element is null
+     * @throws IllegalArgumentException if an indexed property of an
+     *                                  element could not be read
+     */
+    public synchronized void load(Collection<? extends T> coll, Executor executor) {
+        Object[] batch = coll.toArray();
+        List<Object[]> columns = columns(batch);
+        int first = length;
+        BulkLoader loader = new BulkLoader(executor);
+        boolean done = false;
+        try {
+            append(batch, columns, loader);
+            done = true;
+        } finally {
+            if (!done) {
+                rollback(new int[0], null, null, new BulkLoader(null), first, columns, loader);
+            }
+        }
+        modifications += batch.length;
+        version++;
+    }
+
+    /**
+     * Reads the values each index enters a batch of elements under.
+     *
+     * @throws NullPointerException if an element is null
+     */
+    private List<Object[]> columns(Object[] batch) {
+        List<Object[]> columns = new ArrayList<Object[]>(indexes.size());
+        for (int i = 0; i < indexes.size(); i++) {
+            columns.add(new Object[batch.length]);
+        }
+        for (int n = 0; n < batch.length; n++) {
+            if (batch[n] == null) {
+                throw new NullPointerException();
+            }
+            Object[] values = values(batch[n]);
+            for (int i = 0; i < values.length; i++) {
+                columns.get(i)[n] = values[i];
+            }
+        }
+        return columns;
+    }
+
+    /**
+     * Appends a batch of elements, building the indexes in bulk. Should
+     * building fail, the rows appended stay, and are to be rolled back.
+     */
+    private void append(Object[] batch, List<Object[]> columns, BulkLoader loader) {
+        if (length + batch.length > elements.length) {
+            elements = Arrays.copyOf(elements, Math.max(length * 2, length + batch.length));
+        }
+        int first = length;
+        for (Object element : batch) {
+            int row = length;
+            elements[length++] = element;
+            Postings rows = rowsOf.get(element);
+            if (rows == null) {
+                rows = new Postings();
+                rowsOf.put(element, rows);
+            }
+            rows.add(row);
+            live.add(row);
+            size++;
+        }
+        loader.load(indexes, columns, first);
+    }
+
+    /**
+     * Applies a batch of changes, in the calling thread.
+     *
+     * @param batch the changes, in the order they were made
+     * @return the version of the collection the batch results in
+     * @throws IllegalArgumentException if an indexed property of an element
+     *                                  inserted could not be read
+     * @see #apply(List, Executor)
+     */
+    public long apply(List<Change<T>> batch) {
+        return apply(batch, null);
+    }
+
+    /**
+     * Applies a batch of changes as a whole. Deleting an element removes
+     * one occurrence of it; deleting an element the collection does not
+     * hold has no effect, and updating one inserts its replacement.
+     * <p/>
+     * The net effect of the batch is worked out first: an element both
+     * inserted and deleted within the batch is never entered. The index
+     * entries of the rows removed are then sorted and removed in bulk, and
+     * the elements inserted are loaded in bulk, as by {@link #load}. Queries
+     * planned while the batch is applied wait for it, and see the version
+     * following it; either every change of the batch is applied, or, if an
+     * element inserted cannot be read or maintaining an index fails, none
+     * is.
+     *
+     * @param batch    the changes, in the order they were made
+     * @param executor the executor running the index maintenance, or null
+     *                 to run it in the calling thread
+     * @return the version of the collection the batch results in
+     * @throws IllegalArgumentException if an indexed property of an element
+     *                                  inserted could not be read
+     */
+    public synchronized long apply(List<Change<T>> batch, Executor executor) {
+        List<Object> inserted = new ArrayList<Object>();
+        Map<Object, List<Integer>> insertedAt = new HashMap<Object, List<Integer>>();
+        Bitmap removing = new Bitmap();
+        for (Change<T> change : batch) {
+            Object before = change.getBefore();
+            if (before != null) {
+                List<Integer> at = insertedAt.get(before);
+                if (at != null && !at.isEmpty()) {
+                    // deleting an element inserted earlier in the batch cancels the insertion
+                    inserted.set(at.remove(at.size() - 1), null);
+                } else {
+                    int row = rowOf(before, removing);
+                    if (row >= 0) {
+                        removing.add(row);
+                    }
+                }
+            }
+            Object after = change.getAfter();
+            if (after != null) {
+                List<Integer> at = insertedAt.get(after);
+                if (at == null) {
+                    at = new ArrayList<Integer>(1);
+                    insertedAt.put(after, at);
+                }
+                at.add(inserted.size());
+                inserted.add(after);
+            }
+        }
+        inserted.removeAll(Collections.singleton(null));
+        Object[] added = inserted.toArray();
+        List<Object[]> columns = columns(added);
+
+        int[] removed = removing.toArray();
+        List<Object[]> old = new ArrayList<Object[]>(indexes.size());
+        for (int i = 0; i < indexes.size(); i++) {
+            old.add(new Object[removed.length]);
+        }
+        for (int n = 0; n < removed.length; n++) {
+            Object[] values = values(elements[removed[n]]);
+            for (int i = 0; i < values.length; i++) {
+                old.get(i)[n] = values[i];
+            }
+        }
+        Object[] saved = new Object[removed.length];
+        int first = length;
+        BulkLoader unloader = new BulkLoader(executor);
+        BulkLoader loader = new BulkLoader(executor);
+        boolean done = false;
+        try {
+            unloader.unload(indexes, old, removed);
+            for (int n = 0; n < removed.length; n++) {
+                int row = removed[n];
+                saved[n] = elements[row];
+                Postings rows = rowsOf.get(elements[row]);
+                rows.remove(row);
+                if (rows.size() == 0) {
+                    rowsOf.remove(elements[row]);
+                }
+                elements[row] = null;
+                live.remove(row);
+                size--;
+            }
+            append(added, columns, loader);
+            done = true;
+        } finally {
+            if (!done) {
+                rollback(removed, saved, old, unloader, first, columns, loader);
+            }
+        }
+        modifications += removed.length + added.length;
+        if (length > 16 && size < length / 2) {
+            compact();
+        }
+        return ++version;
+    }
+
+    /**
+     * Undoes a change that failed while maintaining the indexes: restores
+     * the elements removed from their rows, and drops the rows appended.
+     * The entries the loaders made or removed are undone one by one, so
+     * that no row is renumbered and every index keeps its state, such as
+     * the cuts of a cracker index; only an index a loader left partly
+     * maintained is rebuilt.
+     *
+     * @param removed  the rows removed
+     * @param saved    the elements of the rows removed, null where a row
+     *                 was not yet removed
+     * @param old      the values the rows removed were entered with, for
+     *                 each index, or null if no row was removed
+     * @param unloader the loader removing the rows from the indexes
+     * @param first    the first row appended
+     * @param added    the values of the rows appended, for each index
+     * @param loader   the loader entering the rows appended
+     */
+    private void rollback(int[] removed, Object[] saved, List<Object[]> old, BulkLoader unloader,
+                          int first, List<Object[]> added, BulkLoader loader) {
+        List<Integer> partial = new ArrayList<Integer>();
+        for (int i = 0; i < indexes.size(); i++) {
+            if (unloader.isPartial(i) || loader.isPartial(i)) {
+                partial.add(i);
+                continue;
+            }
+            Index index = indexes.get(i);
+            if (loader.isComplete(i)) {
+                Object[] values = added.get(i);
+                for (int n = 0; n < values.length; n++) {
+                    if (values[n] != null) {
+                        index.remove(first + n, values[n]);
+                    }
+                }
+            }
+            if (unloader.isComplete(i)) {
+                Object[] values = old.get(i);
+                for (int n = 0; n < values.length; n++) {
+                    if (values[n] != null) {
+                        index.add(removed[n], values[n]);
+                    }
+                }
+            }
+        }
+        for (int n = 0; n < removed.length; n++) {
+            int row = removed[n];
+            if (saved[n] != null && elements[row] == null) {
+                elements[row] = saved[n];
+                Postings rows = rowsOf.get(saved[n]);
+                if (rows == null) {
+                    rows = new Postings();
+                    rowsOf.put(saved[n], rows);
+                }
+                rows.add(row);
+                live.add(row);
+                size++;
+            }
+        }
+        for (int row = first; row < length; row++) {
+            Postings rows = rowsOf.get(elements[row]);
+            rows.remove(row);
+            if (rows.size() == 0) {
+                rowsOf.remove(elements[row]);
+            }
+            elements[row] = null;
+            live.remove(row);
+            size--;
+        }
+        length = first;
+        for (int i : partial) {
+            rebuild(i);
+        }
+    }
+
+    /**
+     * Enters every row in an index anew.
+     *
+     * @param i the position of the index
+     */
+    private void rebuild(int i) {
+        Index index = indexes.get(i);
+        index.clear();
+        for (int row = 0; row < length; row++) {
+            if (elements[row] != null) {
+                Object value;
+                try {
+                    value = value(getters.get(i), elements[row]);
+                } catch (PropertyAccessException e) {
+                    throw new IllegalArgumentException(e.getMessage(), e);
+                }
+                if (value != null) {
+                    index.add(row, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the last row holding an element, other than those about to be
+     * removed.
+     *
+     * @return the row, or -1 if there is none
+     */
+    private int rowOf(Object element, Bitmap removing) {
+        Postings rows = rowsOf.get(element);
+        if (rows != null) {
+            int[] all = rows.toArray();
+            for (int i = all.length - 1; i >= 0; i--) {
+                if (!removing.contains(all[i])) {
+                    return all[i];
+                }
+            }
+        }
+        return -1;
+    }
+
+    public synchronized boolean remove(Object o) {
+        Postings rows = rowsOf.get(o);
+        if (rows == null) {
+            return false;
+        }
+        int[] all = rows.toArray();
+        removeRow(all[all.length - 1]);
+        return true;
+    }
+
+    public synchronized boolean contains(Object o) {
+        return rowsOf.containsKey(o);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(elements, 0, length, null);
+        for (Index index : indexes) {
+            index.clear();
+        }
+        rowsOf.clear();
+        live.clear();
+        length = 0;
+        size = 0;
+        modifications++;
+        version++;
+    }
+
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int next = advance(0);
+            private int last = -1;
+            private int expected = modifications;
+
+            private int advance(int row) {
+                while (row < length && elements[row] == null) {
+                    row++;
+                }
+                return row;
+            }
+
+            public boolean hasNext() {
+                return next < length;
+            }
+
+            @SuppressWarnings({"unchecked"})
+            public T next() {
+                if (expected != modifications) {
+                    throw new ConcurrentModificationException();
+                }
+                if (next >= length) {
+                    throw new NoSuchElementException();
+                }
+                last = next;
+                next = advance(next + 1);
+                return (T) elements[last];
+            }
+
+            public void remove() {
+                if (last < 0) {
+                    throw new IllegalStateException();
+                }
+                if (expected != modifications) {
+                    throw new ConcurrentModificationException();
+                }
+                // rows are never renumbered while iterating
+                removeRow(last, false);
+                last = -1;
+                expected = modifications;
+            }
+        };
+    }
+
+    private void removeRow(int row) {
+        removeRow(row, true);
+    }
+
+    private void removeRow(int row, boolean compact) {
+        Object element = elements[row];
+        Object[] values = values(element);
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                indexes.get(i).remove(row, values[i]);
+            }
+        }
+        Postings rows = rowsOf.get(element);
+        rows.remove(row);
+        if (rows.size() == 0) {
+            rowsOf.remove(element);
+        }
+        elements[row] = null;
+        live.remove(row);
+        size--;
+        modifications++;
+        version++;
+        if (compact && length > 16 && size < length / 2) {
+            compact();
+        }
+    }
+
+    /**
+     * Renumbers the rows, dropping those of removed elements, and rebuilds
+     * the indexes.
+     */
+    private void compact() {
+        Object[] compacted = new Object[Math.max(16, size * 2)];
+        int n = 0;
+        for (int row = 0; row < length; row++) {
+            if (elements[row] != null) {
+                compacted[n++] = elements[row];
+            }
+        }
+        elements = compacted;
+        length = n;
+        rowsOf.clear();
+        live.clear();
+        for (Index index : indexes) {
+            index.clear();
+        }
+        for (int row = 0; row < length; row++) {
+            live.add(row);
+            Object[] values = values(elements[row]);
+            for (int i = 0; i < values.length; i++) {
+                if (values[i] != null) {
+                    indexes.get(i).add(row, values[i]);
+                }
+            }
+            Postings rows = rowsOf.get(elements[row]);
+            if (rows == null) {
+                rows = new Postings();
+                rowsOf.put(elements[row], rows);
+            }
+            rows.add(row);
+        }
+    }
+
+    private Object[] values(Object element) {
+        Object[] values = new Object[getters.size()];
+        for (int i = 0; i < values.length; i++) {
+            try {
+                values[i] = value(getters.get(i), element);
+            } catch (PropertyAccessException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads the value an index enters an element under; a property value,
+     * or for a composite index the tuple of property values.
+     */
+    private static Object value(Getter[] getter, Object element) throws PropertyAccessException {
+        if (getter.length == 1) {
+            return getter[0].get(element);
+        }
+        Object[] tuple = new Object[getter.length];
+        for (int i = 0; i < tuple.length; i++) {
+            tuple[i] = getter[i].get(element);
+        }
+        return tuple;
+    }
+
+    /**
+     * Gets the elements that may satisfy a query: those in the intersection
+     * of the rows found by looking up each conjunct some index answers.
+     *
+     * @param query the query
+     * @return a copy of the candidate elements in row order; every element
+     *         if no index applies to the query
+     */
+    @SuppressWarnings({"unchecked"})
+    public synchronized Collection<T> candidates(Query<T> query) {
+        long start = System.nanoTime();
+        int[] rows = plan(query, null);
+        if (advisor != null) {
+            advisor.record(query, rows != null ? rows.length : size, System.nanoTime() - start);
+        }
+        if (rows == null) {
+            // a copy, so that the query sees this version however the collection changes
+            List<T> all = new ArrayList<T>(size);
+            for (int row = 0; row < length; row++) {
+                if (elements[row] != null) {
+                    all.add((T) elements[row]);
+                }
+            }
+            return all;
+        }
+        List<T> candidates = new ArrayList<T>(rows.length);
+        for (int row : rows) {
+            candidates.add((T) elements[row]);
+        }
+        return candidates;
+    }
+
+    /**
+     * Gets the elements that may satisfy a query in the order of its ORDER
+     * BY clause, by walking a sorted index over the sort key. Rows whose
+     * sort key is null come first in ascending order and last in
+     * descending order.
+     *
+     * @param query the query
+     * @return the candidate elements in order, or null if the query is not
+     *         ordered by a single property having a complete sorted index,
+     *         or if so few candidates remain that sorting them is cheaper
+     */
+    @SuppressWarnings({"unchecked"})
+    public synchronized List<T> ordered(Query<T> query) {
+        List<SortKey> ordering = query.getOrdering();
+        if (ordering.size() != 1) {
+            return null;
+        }
+        SortKey key = ordering.get(0);
+        SortedIndex sorted = null;
+        for (Index index : indexes) {
+            if (index instanceof SortedIndex && index.getProperty().equals(key.getProperty())
+                    && ((SortedIndex) index).isComplete()) {
+                sorted = (SortedIndex) index;
+                break;
+            }
+        }
+        if (sorted == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        int[] rows = plan(query, null);
+        if (rows != null && rows.length < size / 16) {
+            return null;
+        }
+        if (advisor != null) {
+            advisor.record(query, rows != null ? rows.length : size, System.nanoTime() - start);
+        }
+        boolean[] wanted = new boolean[length];
+        if (rows == null) {
+            for (int row = 0; row < length; row++) {
+                wanted[row] = elements[row] != null;
+            }
+        } else {
+            for (int row : rows) {
+                wanted[row] = true;
+            }
+        }
+        int[] ordered = sorted.ordered(key.isAscending());
+        List<T> candidates = new ArrayList<T>(rows == null ? size : rows.length);
+        if (!key.isAscending()) {
+            append(ordered, wanted, candidates);
+        }
+        // the rows left wanted are those whose sort key is null
+        boolean[] nulls = wanted.clone();
+        for (int row : ordered) {
+            nulls[row] = false;
+        }
+        for (int row = 0; row < length; row++) {
+            if (nulls[row]) {
+                candidates.add((T) elements[row]);
+            }
+        }
+        if (key.isAscending()) {
+            append(ordered, wanted, candidates);
+        }
+        return candidates;
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private void append(int[] rows, boolean[] wanted, List<T> candidates) {
+        for (int row : rows) {
+            if (wanted[row]) {
+                candidates.add((T) elements[row]);
+            }
+        }
+    }
+
+    /**
+     * Describes how a query would be executed against the collection,
+     * leaving the collection as it is. In adaptive mode, the plan includes
+     * the cracker indexes the query would create, without creating them.
+     *
+     * @param query the query
+     * @return a description of the index lookups made, or of the scan
+     */
+    public synchronized String explain(Query<T> query) {
+        StringBuilder plan = new StringBuilder();
+        int[] rows = plan(query, plan);
+        if (rows == null) {
+            return "scan " + size;
+        }
+        return plan.append(" -> ").append(rows.length).toString();
+    }
+
+    private int[] plan(Query<T> query, StringBuilder explain) {
+        Plan plan = Predicate.visit(query, new Planner(explain != null));
+        if (plan.satisfy == null) {
+            return null;
+        }
+        if (explain != null) {
+            explain.append(plan.text);
+        }
+        return plan.satisfy.toArray();
+    }
+
+    /**
+     * The rows of a query plan for part of a search condition: the rows
+     * that may satisfy the condition and the rows that may fail it, either
+     * being null when every row may, along with a description of the index
+     * lookups made.
+     */
+    private static final class Plan {
+        private final Bitmap satisfy;
+        private final Bitmap fail;
+        private final String text;
+
+        Plan(Bitmap satisfy, Bitmap fail, String text) {
+            this.satisfy = satisfy;
+            this.fail = fail;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Plans a search condition bottom up. Lookups yield the rows that may
+     * satisfy each predicate; bitmap indexes, which also know the rows
+     * having no value, yield the rows failing an equality exactly as well.
+     * Negation swaps the two, which is what keeps NOT sound under three
+     * valued logic: a row whose value is null neither satisfies nor fails
+     * a predicate, and so satisfies neither it nor its negation.
+     */
+    private final class Planner implements Predicate.Visitor<Plan> {
+        private final boolean explaining;
+        // the accessors of the properties of the cracker indexes built aside
+        private final Map<String, Getter> aside = new HashMap<String, Getter>();
+
+        Planner(boolean explaining) {
+            this.explaining = explaining;
+        }
+
+        public Plan predicates(List<Predicate> predicates) {
+            Map<String, List<Predicate>> byProperty = new LinkedHashMap<String, List<Predicate>>();
+            for (Predicate predicate : predicates) {
+                List<Predicate> conjuncts = byProperty.get(predicate.getProperty());
+                if (conjuncts == null) {
+                    conjuncts = new ArrayList<Predicate>();
+                    byProperty.put(predicate.getProperty(), conjuncts);
+                }
+                conjuncts.add(predicate);
+            }
+            List<Index> available = available(byProperty);
+            Bitmap satisfy = null;
+            Bitmap fail = new Bitmap();
+            boolean exact = true;
+            StringBuilder text = new StringBuilder();
+            // a composite index matching several properties answers them in one probe
+            CompositeIndex composite = null;
+            int matched = 1;
+            for (Index index : available) {
+                if (index instanceof CompositeIndex) {
+                    int n = ((CompositeIndex) index).match(byProperty);
+                    if (n > matched) {
+                        composite = (CompositeIndex) index;
+                        matched = n;
+                    }
+                }
+            }
+            if (composite != null) {
+                satisfy = Bitmap.of(composite.lookup(byProperty));
+                exact = false;
+                text.append(composite);
+                String separator = " ";
+                for (String property : composite.getProperties().subList(0, matched)) {
+                    for (Predicate predicate : byProperty.remove(property)) {
+                        text.append(separator).append(predicate);
+                        separator = " AND ";
+                    }
+                }
+            }
+            // look up the most selective conjuncts first, and none costing more than it saves
+            Map<String, Double> selectivities = new HashMap<String, Double>();
+            for (Map.Entry<String, List<Predicate>> entry : byProperty.entrySet()) {
+                selectivities.put(entry.getKey(), selectivity(entry.getKey(), entry.getValue()));
+            }
+            double candidates = satisfy != null ? satisfy.cardinality() : size;
+            for (Map.Entry<String, List<Predicate>> entry : order(byProperty, selectivities)) {
+                double selectivity = selectivities.get(entry.getKey());
+                Bitmap found = null;
+                for (Index index : available) {
+                    if (!index.getProperty().equals(entry.getKey())) {
+                        continue;
+                    }
+                    if (selectivity * size * index.getLookupCost() >= candidates * (1 - selectivity)) {
+                        exact = false;
+                        break;
+                    }
+                    if (index instanceof BitmapIndex) {
+                        BitmapIndex bitmap = (BitmapIndex) index;
+                        found = bitmap.match(entry.getValue());
+                        if (found != null && exact && isEquality(entry.getValue())) {
+                            fail = Bitmap.or(fail, Bitmap.andNot(bitmap.present(), found));
+                        } else {
+                            exact = false;
+                        }
+                    } else {
+                        int[] rows = index.lookup(entry.getValue());
+                        found = rows != null ? Bitmap.of(rows) : null;
+                        exact = false;
+                    }
+                    if (found != null) {
+                        text.append(text.length() > 0 ? " AND " : "").append(index);
+                        for (int i = 0; i < entry.getValue().size(); i++) {
+                            text.append(i > 0 ? " AND " : " ").append(entry.getValue().get(i));
+                        }
+                        break;
+                    }
+                }
+                if (found == null) {
+                    exact = false;
+                } else {
+                    satisfy = satisfy == null ? found : Bitmap.and(satisfy, found);
+                    candidates = satisfy.cardinality();
+                }
+            }
+            return new Plan(satisfy, exact ? fail : null, text.length() > 0 ? text.toString() : null);
+        }
+
+        /**
+         * Gets the indexes to plan with. In adaptive mode, a cracker index is
+         * first created over each unindexed property a range predicate over
+         * a number applies to. When explaining, the collection is left as
+         * it is: such indexes are built aside for the plan alone, and cracker
+         * indexes are stood in for by copies, which the lookups cut instead.
+         */
+        private List<Index> available(Map<String, List<Predicate>> byProperty) {
+            List<Index> available = indexes;
+            if (explaining) {
+                available = new ArrayList<Index>(indexes.size());
+                for (Index index : indexes) {
+                    Index copy = index instanceof CrackerIndex ? copy(index.getProperty()) : index;
+                    if (copy != null) {
+                        available.add(copy);
+                    }
+                }
+            }
+            if (!adaptive) {
+                return available;
+            }
+            for (Map.Entry<String, List<Predicate>> entry : byProperty.entrySet()) {
+                if (isIndexed(entry.getKey()) || !isNumericRange(entry.getValue())) {
+                    continue;
+                }
+                if (explaining) {
+                    Index copy = copy(entry.getKey());
+                    if (copy != null) {
+                        available.add(copy);
+                    }
+                    continue;
+                }
+                try {
+                    addCrackerIndex(entry.getKey());
+                } catch (QueryException e) {
+                    // the query reports a property it cannot read when evaluated
+                }
+            }
+            return available;
+        }
+
+        /**
+         * Builds a cracker index over a property, apart from the collection.
+         *
+         * @return the index, or null if the property could not be read
+         */
+        private CrackerIndex copy(String property) {
+            CrackerIndex cracker = new CrackerIndex(property);
+            try {
+                aside.put(property, fill(cracker)[0]);
+            } catch (QueryException e) {
+                return null;
+            }
+            return cracker;
+        }
+
+        private boolean isIndexed(String property) {
+            for (Index index : indexes) {
+                if (index.getProperty().equals(property)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private boolean isNumericRange(List<Predicate> predicates) {
+            for (Predicate predicate : predicates) {
+                Predicate.Kind kind = predicate.getKind();
+                if (kind != Predicate.Kind.EQ && kind != Predicate.Kind.LIKE
+                        && predicate.getValues()[0] instanceof Number) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Orders the conjuncts over each property by ascending estimated
+         * selectivity; those over unindexed properties last, as their
+         * selectivity is taken to be one.
+         */
+        private List<Map.Entry<String, List<Predicate>>> order(Map<String, List<Predicate>> byProperty,
+                                                               final Map<String, Double> selectivities) {
+            List<Map.Entry<String, List<Predicate>>> entries =
+                    new ArrayList<Map.Entry<String, List<Predicate>>>(byProperty.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<String, List<Predicate>>>() {
+                public int compare(Map.Entry<String, List<Predicate>> a, Map.Entry<String, List<Predicate>> b) {
+                    return Double.compare(selectivities.get(a.getKey()), selectivities.get(b.getKey()));
+                }
+            });
+            return entries;
+        }
+
+        /**
+         * Estimates the selectivity of the conjuncts over a property from
+         * the statistics of the property, read through one of its indexes,
+         * or one built aside.
+         *
+         * @return the selectivity, or one if the property is not indexed
+         */
+        private double selectivity(String property, List<Predicate> predicates) {
+            Getter getter = aside.get(property);
+            for (int i = 0; i < indexes.size() && getter == null; i++) {
+                if (getters.get(i).length == 1 && indexes.get(i).getProperty().equals(property)) {
+                    getter = getters.get(i)[0];
+                }
+            }
+            if (getter == null) {
+                return 1;
+            }
+            try {
+                return getStatistics(property, getter).getSelectivity(predicates);
+            } catch (PropertyAccessException e) {
+                throw new IllegalArgumentException(e.getMessage(), e);
+            }
+        }
+
+        public Plan isNull(String property) {
+            for (Index index : indexes) {
+                if (index instanceof BitmapIndex && index.getProperty().equals(property)) {
+                    Bitmap present = ((BitmapIndex) index).present();
+                    return new Plan(Bitmap.andNot(live, present), present, index + " " + property + " IS NULL");
+                }
+            }
+            return other();
+        }
+
+        public Plan not(Plan operand) {
+            return new Plan(operand.fail, operand.satisfy, operand.text != null ? "NOT (" + operand.text + ")" : null);
+        }
+
+        public Plan and(List<Plan> operands) {
+            Bitmap satisfy = null;
+            Bitmap fail = new Bitmap();
+            for (Plan operand : operands) {
+                if (operand.satisfy != null) {
+                    satisfy = satisfy == null ? operand.satisfy : Bitmap.and(satisfy, operand.satisfy);
+                }
+                fail = fail == null || operand.fail == null ? null : Bitmap.or(fail, operand.fail);
+            }
+            return new Plan(satisfy, fail, join(operands, " AND ", false));
+        }
+
+        public Plan or(List<Plan> operands) {
+            Bitmap satisfy = new Bitmap();
+            Bitmap fail = null;
+            for (Plan operand : operands) {
+                satisfy = satisfy == null || operand.satisfy == null ? null : Bitmap.or(satisfy, operand.satisfy);
+                if (operand.fail != null) {
+                    fail = fail == null ? operand.fail : Bitmap.and(fail, operand.fail);
+                }
+            }
+            return new Plan(satisfy, fail, join(operands, " OR ", true));
+        }
+
+        public Plan other() {
+            return new Plan(null, null, null);
+        }
+
+        private String join(List<Plan> operands, String separator, boolean parenthesize) {
+            StringBuilder text = new StringBuilder();
+            for (Plan operand : operands) {
+                if (operand.text != null) {
+                    text.append(text.length() > 0 ? separator : "").append(operand.text);
+                }
+            }
+            if (text.length() == 0) {
+                return null;
+            }
+            return parenthesize ? "(" + text + ")" : text.toString();
+        }
+
+        /**
+         * Tests whether a bitmap index answers every predicate exactly,
+         * such that a row having a value and not found fails them.
+         */
+        private boolean isEquality(List<Predicate> predicates) {
+            for (Predicate predicate : predicates) {
+                if (predicate.getKind() != Predicate.Kind.EQ) {
+                    return false;
+                }
+                for (Object value : predicate.getValues()) {
+                    // NaN equals itself as a key, but not in a comparison
+                    if (value instanceof Double && ((Double) value).isNaN()) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import java.util.Arrays;
+
+/**
+ * A map from long keys to the ascending rows having them, held in parallel
+ * primitive arrays; neither keys nor rows are boxed.
+ * <p/>
+ * The map is an open addressing hash table with linear probing, kept at
+ * most three quarters full; removals shift the entries following them back
+ * into place rather than leaving tombstones. A key having a single row, as
+ * is common for identifiers, holds the row inline; a key having more rows
+ * holds them in an int array with some room to grow. A slot of the table
+ * takes twenty bytes, and a row beyond the first of its key four more.
+ *
+ * @author Robert J. Buck
+ */
+final class LongPostingsMap {
+
+    private static final int[] NONE = new int[0];
+
+    private long[] keys;
+    private int[] counts;
+    private int[] singles;
+    private int[][] lists;
+    private int mask;
+    private int size;
+
+    LongPostingsMap() {
+        allocate(16);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        counts = new int[capacity];
+        singles = new int[capacity];
+        lists = new int[capacity][];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        // the finalizer of MurmurHash3, so that sequential keys scatter
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /**
+     * Finds the slot holding a key, or the empty slot where it belongs.
+     */
+    private int slot(long key) {
+        int i = hash(key) & mask;
+        while (counts[i] != 0 && keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * Gets the number of keys.
+     *
+     * @return the number of keys
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Adds a row under a key.
+     *
+     * @param key the key
+     * @param row the row number
+     * @return true if the key was not in the map before
+     */
+    boolean add(long key, int row) {
+        int i = slot(key);
+        int count = counts[i];
+        if (count == 0) {
+            keys[i] = key;
+            counts[i] = 1;
+            singles[i] = row;
+            if (++size > (keys.length >> 2) * 3) {
+                rehash(keys.length * 2);
+            }
+            return true;
+        }
+        if (count == 1) {
+            if (singles[i] != row) {
+                int[] list = new int[4];
+                list[0] = Math.min(singles[i], row);
+                list[1] = Math.max(singles[i], row);
+                lists[i] = list;
+                counts[i] = 2;
+            }
+            return false;
+        }
+        int[] list = lists[i];
+        int at = count;
+        if (list[count - 1] > row) {
+            at = Arrays.binarySearch(list, 0, count, row);
+            if (at >= 0) {
+                return false;
+            }
+            at = -at - 1;
+        } else if (list[count - 1] == row) {
+            return false;
+        }
+        if (count == list.length) {
+            list = Arrays.copyOf(list, count + (count >> 1));
+            lists[i] = list;
+        }
+        System.arraycopy(list, at, list, at + 1, count - at);
+        list[at] = row;
+        counts[i] = count + 1;
+        return false;
+    }
+
+    /**
+     * Removes a row from under a key, and the key once it has no rows.
+     *
+     * @param key the key
+     * @param row the row number
+     * @return true if the row was under the key
+     */
+    boolean remove(long key, int row) {
+        int i = slot(key);
+        int count = counts[i];
+        if (count == 0) {
+            return false;
+        }
+        if (count == 1) {
+            if (singles[i] != row) {
+                return false;
+            }
+            delete(i);
+            return true;
+        }
+        int[] list = lists[i];
+        int at = Arrays.binarySearch(list, 0, count, row);
+        if (at < 0) {
+            return false;
+        }
+        System.arraycopy(list, at + 1, list, at, count - at - 1);
+        if (--count == 1) {
+            singles[i] = list[0];
+            lists[i] = null;
+        }
+        counts[i] = count;
+        return true;
+    }
+
+    /**
+     * Empties a slot, moving back the entries of the probe sequence that
+     * follows it which would otherwise no longer be found.
+     */
+    private void delete(int i) {
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (counts[j] == 0) {
+                break;
+            }
+            int k = hash(keys[j]) & mask;
+            // move the entry back unless its home lies cyclically within (i, j]
+            if (i <= j ? (k <= i || k > j) : (k <= i && k > j)) {
+                keys[i] = keys[j];
+                counts[i] = counts[j];
+                singles[i] = singles[j];
+                lists[i] = lists[j];
+                i = j;
+            }
+        }
+        counts[i] = 0;
+        lists[i] = null;
+        size--;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        int[] oldSingles = singles;
+        int[][] oldLists = lists;
+        allocate(capacity);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldCounts[j] != 0) {
+                int i = slot(oldKeys[j]);
+                keys[i] = oldKeys[j];
+                counts[i] = oldCounts[j];
+                singles[i] = oldSingles[j];
+                lists[i] = oldLists[j];
+            }
+        }
+    }
+
+    /**
+     * Grows the table ahead of a number of keys being added.
+     *
+     * @param keys the number of keys the map is to hold
+     */
+    void reserve(int keys) {
+        int capacity = this.keys.length;
+        while ((capacity >> 2) * 3 < keys) {
+            capacity *= 2;
+        }
+        if (capacity != this.keys.length) {
+            rehash(capacity);
+        }
+    }
+
+    /**
+     * Removes every key.
+     */
+    void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    /**
+     * Tests whether a key is in the map.
+     *
+     * @param key the key
+     * @return true if some row has the key
+     */
+    boolean contains(long key) {
+        return counts[slot(key)] != 0;
+    }
+
+    /**
+     * Gets the number of rows under a key.
+     *
+     * @param key the key
+     * @return the number of rows, zero if none
+     */
+    int count(long key) {
+        return counts[slot(key)];
+    }
+
+    /**
+     * Gets the rows under a key.
+     *
+     * @param key the key
+     * @return a copy of the rows in ascending order, empty if none
+     */
+    int[] get(long key) {
+        int i = slot(key);
+        switch (counts[i]) {
+            case 0:
+                return NONE;
+            case 1:
+                return new int[]{singles[i]};
+            default:
+                return Arrays.copyOf(lists[i], counts[i]);
+        }
+    }
+
+    /**
+     * Copies the rows under a key into an array.
+     *
+     * @param key  the key
+     * @param rows the array to copy into
+     * @param n    the position to copy to
+     * @return the position following the rows copied
+     */
+    int copy(long key, int[] rows, int n) {
+        int i = slot(key);
+        int count = counts[i];
+        if (count == 1) {
+            rows[n] = singles[i];
+        } else if (count > 1) {
+            System.arraycopy(lists[i], 0, rows, n, count);
+        }
+        return n + count;
+    }
+
+    /**
+     * Copies the keys into an array.
+     *
+     * @return the keys, in no particular order
+     */
+    long[] keys() {
+        long[] all = new long[size];
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (counts[i] != 0) {
+                all[n++] = keys[i];
+            }
+        }
+        return all;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An ascending list of row numbers; the rows of an indexed collection
+ * having some key. Rows are usually added in ascending order, making an
+ * addition an append.
+ *
+ * @author Robert J. Buck
+ */
+final class Postings {
+
+    private int[] rows;
+    private int size;
+
+    /**
+     * Constructs an empty list.
+     */
+    Postings() {
+        this(2);
+    }
+
+    /**
+     * Constructs an empty list having room for a number of rows.
+     *
+     * @param capacity the number of rows to make room for
+     */
+    Postings(int capacity) {
+        rows = new int[Math.max(2, capacity)];
+    }
+
+    /**
+     * Adds a row.
+     *
+     * @param row the row number
+     */
+    void add(int row) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+        }
+        if (size == 0 || rows[size - 1] < row) {
+            rows[size++] = row;
+            return;
+        }
+        int i = Arrays.binarySearch(rows, 0, size, row);
+        if (i >= 0) {
+            return;
+        }
+        i = -i - 1;
+        System.arraycopy(rows, i, rows, i + 1, size - i);
+        rows[i] = row;
+        size++;
+    }
+
+    /**
+     * Removes a row.
+     *
+     * @param row the row number
+     */
+    void remove(int row) {
+        int i = Arrays.binarySearch(rows, 0, size, row);
+        if (i >= 0) {
+            System.arraycopy(rows, i + 1, rows, i, size - i - 1);
+            size--;
+        }
+    }
+
+    /**
+     * Gets the number of rows.
+     *
+     * @return the number of rows
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Copies the rows into an array.
+     *
+     * @return the rows in ascending order
+     */
+    int[] toArray() {
+        return Arrays.copyOf(rows, size);
+    }
+
+    /**
+     * Unites ascending arrays of rows.
+     *
+     * @param lists the arrays to unite
+     * @return the ascending, distinct rows of all the arrays
+     */
+    static int[] union(List<int[]> lists) {
+        if (lists.size() == 1) {
+            return lists.get(0);
+        }
+        int n = 0;
+        for (int[] list : lists) {
+            n += list.length;
+        }
+        int[] all = new int[n];
+        n = 0;
+        for (int[] list : lists) {
+            System.arraycopy(list, 0, all, n, list.length);
+            n += list.length;
+        }
+        Arrays.sort(all);
+        int distinct = 0;
+        for (int i = 0; i < all.length; i++) {
+            if (distinct == 0 || all[distinct - 1] != all[i]) {
+                all[distinct++] = all[i];
+            }
+        }
+        return distinct == all.length ? all : Arrays.copyOf(all, distinct);
+    }
+
+    /**
+     * Intersects two ascending arrays of rows.
+     *
+     * @param a an array of rows
+     * @param b another array of rows
+     * @return the ascending rows present in both arrays
+     */
+    static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i++;
+            } else if (a[i] > b[j]) {
+                j++;
+            } else {
+                result[n++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+import com.buck.jsql.literals.PatternLiteral;
+import com.buck.jsql.util.Values;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * A sorted index, answering range, BETWEEN, equality and IN predicates
+ * over numbers and strings, and LIKE predicates by the literal prefix of
+ * their pattern, and listing rows in property order.
+ * <p/>
+ * Numbers and strings are kept in separate trees, as no predicate relates
+ * a number to a string. The conjuncts over the property are combined into
+ * a single range of one of the trees, bounded by the tightest lower and
+ * upper bounds; a LIKE pattern bounds the strings by its literal prefix,
+ * from the prefix itself up to its successor. Values that are neither
+ * numbers nor strings, and NaN, are not ordered by the comparison
+ * predicate and are not indexed; an index holding such values is
+ * incomplete, and cannot list rows in order.
+ * <p/>
+ * Integral numbers are held unboxed in a {@link LongPostingsMap}, along
+ * with an array of their distinct values in ascending order; values new to
+ * the index are appended to a second array, which is sorted and merged
+ * into the first when a lookup next needs the order.
+ *
+ * @author Robert J. Buck
+ */
+public class SortedIndex extends Index {
+
+    private static final Comparator<Object> ORDER = new Comparator<Object>() {
+        public int compare(Object a, Object b) {
+            return Values.compare(a, b);
+        }
+    };
+
+    private final TreeMap<Object, Postings> numbers = new TreeMap<Object, Postings>(ORDER);
+    private final TreeMap<Object, Postings> strings = new TreeMap<Object, Postings>(ORDER);
+    private final LongPostingsMap longs = new LongPostingsMap();
+    private long[] sorted = new long[0];
+    private long[] fresh = new long[16];
+    private int freshCount;
+    private int rows;
+    private int unordered;
+
+    /**
+     * Constructs a sorted index.
+     *
+     * @param property the indexed property
+     */
+    SortedIndex(String property) {
+        super(property);
+    }
+
+    void add(int row, Object value) {
+        TreeMap<Object, Postings> tree = tree(value);
+        if (tree == null) {
+            unordered++;
+            return;
+        }
+        Object key = Values.key(value);
+        rows++;
+        if (key instanceof Long) {
+            if (longs.add((Long) key, row)) {
+                if (freshCount == fresh.length) {
+                    fresh = Arrays.copyOf(fresh, freshCount * 2);
+                }
+                fresh[freshCount++] = (Long) key;
+            }
+            return;
+        }
+        Postings postings = tree.get(key);
+        if (postings == null) {
+            postings = new Postings();
+            tree.put(key, postings);
+        }
+        postings.add(row);
+    }
+
+    /**
+     * Enters rows sorted by value, a run of rows having the same value at
+     * a time; integral values new to the index arrive in ascending order.
+     */
+    void load(Object[] values, int[] rows) {
+        longs.reserve(longs.size() + runs(values));
+        int i = 0;
+        while (i < values.length) {
+            Object key = Values.key(values[i]);
+            int j = i + 1;
+            while (j < values.length && key.equals(Values.key(values[j]))) {
+                j++;
+            }
+            TreeMap<Object, Postings> tree = tree(key);
+            if (tree != null && !(key instanceof Long)) {
+                Postings postings = tree.get(key);
+                if (postings == null) {
+                    postings = new Postings(j - i);
+                    tree.put(key, postings);
+                }
+                for (int r = i; r < j; r++) {
+                    postings.add(rows[r]);
+                }
+                this.rows += j - i;
+            } else {
+                for (int r = i; r < j; r++) {
+                    add(rows[r], key);
+                }
+            }
+            i = j;
+        }
+    }
+
+    Comparator<Object> getLoadOrder() {
+        return ORDER;
+    }
+
+    void remove(int row, Object value) {
+        TreeMap<Object, Postings> tree = tree(value);
+        if (tree == null) {
+            unordered--;
+            return;
+        }
+        Object key = Values.key(value);
+        if (key instanceof Long) {
+            if (longs.remove((Long) key, row)) {
+                rows--;
+            }
+            return;
+        }
+        Postings postings = tree.get(key);
+        if (postings != null) {
+            postings.remove(row);
+            if (postings.size() == 0) {
+                tree.remove(key);
+            }
+            rows--;
+        }
+    }
+
+    void clear() {
+        numbers.clear();
+        strings.clear();
+        longs.clear();
+        sorted = new long[0];
+        freshCount = 0;
+        rows = 0;
+        unordered = 0;
+    }
+
+    private TreeMap<Object, Postings> tree(Object value) {
+        if (value instanceof String) {
+            return strings;
+        }
+        if (value instanceof Number) {
+            double d = ((Number) value).doubleValue();
+            return d == d ? numbers : null;
+        }
+        return null;
+    }
+
+    int[] lookup(List<Predicate> predicates) {
+        int[] rows = null;
+        Range range = new Range();
+        for (Predicate predicate : predicates) {
+            Object[] values = predicate.getValues();
+            switch (predicate.getKind()) {
+                case EQ: {
+                    int[] found = lookup(values);
+                    if (found != null) {
+                        rows = rows == null ? found : Postings.intersect(rows, found);
+                    }
+                    break;
+                }
+                case LIKE: {
+                    // the strings matching a pattern share the literal prefix of the pattern
+                    String prefix = PatternLiteral.prefix((String) values[0],
+                            values.length > 1 ? (Character) values[1] : null);
+                    if (prefix.length() > 0) {
+                        String successor = successor(prefix);
+                        if (!range.restrict(Predicate.Kind.GE, prefix)
+                                || (successor != null && !range.restrict(Predicate.Kind.LT, successor))) {
+                            return new int[0];
+                        }
+                    }
+                    break;
+                }
+                default:
+                    if (!range.restrict(predicate.getKind(), values[0])) {
+                        return new int[0];
+                    }
+                    break;
+            }
+        }
+        if (range.tree != null) {
+            int[] found = range.lookup();
+            rows = rows == null ? found : Postings.intersect(rows, found);
+        }
+        return rows;
+    }
+
+    /**
+     * Gets the distinct integral values in ascending order, merging in
+     * those added since the order was last needed, and dropping those no
+     * longer having rows.
+     */
+    private long[] sortedLongs() {
+        if (freshCount == 0 && sorted.length <= 2 * longs.size()) {
+            return sorted;
+        }
+        Arrays.sort(fresh, 0, freshCount);
+        long[] merged = new long[longs.size()];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < sorted.length || j < freshCount) {
+            long key = j == freshCount || (i < sorted.length && sorted[i] < fresh[j]) ? sorted[i++] : fresh[j++];
+            if ((n == 0 || merged[n - 1] != key) && longs.contains(key)) {
+                merged[n++] = key;
+            }
+        }
+        sorted = n == merged.length ? merged : Arrays.copyOf(merged, n);
+        freshCount = 0;
+        if (fresh.length > 16) {
+            fresh = new long[16];
+        }
+        return sorted;
+    }
+
+    /**
+     * Finds the first integral value after a bound, or at or after it.
+     */
+    private static int search(long[] keys, Object bound, boolean after) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            int c = compare(keys[middle], bound);
+            if (c > 0 || (c == 0 && !after)) {
+                high = middle;
+            } else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares an integral value with a number, as {@link Values#compare}
+     * does, without boxing the value.
+     */
+    private static int compare(long key, Object number) {
+        if (number instanceof Double || number instanceof Float) {
+            double d = ((Number) number).doubleValue();
+            return key < d ? -1 : (key > d ? 1 : 0);
+        }
+        long l = ((Number) number).longValue();
+        return key < l ? -1 : (key > l ? 1 : 0);
+    }
+
+    /**
+     * Gets the least string greater than every string having a prefix.
+     *
+     * @return the successor, or null if there is none
+     */
+    private static String successor(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE) {
+            end--;
+        }
+        if (end == 0) {
+            return null;
+        }
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * A range of one of the trees, bounded by the tightest bounds seen.
+     */
+    private final class Range {
+        private TreeMap<Object, Postings> tree;
+        private Object lower;
+        private boolean lowerInclusive;
+        private Object upper;
+        private boolean upperInclusive;
+
+        /**
+         * Narrows the range by a bound.
+         *
+         * @return false if the range is empty, as the bound is of another
+         *         kind than the bounds seen before
+         */
+        boolean restrict(Predicate.Kind kind, Object bound) {
+            if (tree == null) {
+                tree = tree(bound);
+            } else if (tree != tree(bound)) {
+                // no value is both a number and a string
+                return false;
+            }
+            if (kind == Predicate.Kind.GT || kind == Predicate.Kind.GE) {
+                int c = lower == null ? 1 : ORDER.compare(bound, lower);
+                if (c > 0 || (c == 0 && kind == Predicate.Kind.GT)) {
+                    lower = bound;
+                    lowerInclusive = kind == Predicate.Kind.GE;
+                }
+            } else {
+                int c = upper == null ? -1 : ORDER.compare(bound, upper);
+                if (c < 0 || (c == 0 && kind == Predicate.Kind.LT)) {
+                    upper = bound;
+                    upperInclusive = kind == Predicate.Kind.LE;
+                }
+            }
+            return true;
+        }
+
+        int[] lookup() {
+            NavigableMap<Object, Postings> range = tree;
+            if (lower != null && upper != null) {
+                int c = ORDER.compare(lower, upper);
+                if (c > 0 || (c == 0 && !(lowerInclusive && upperInclusive))) {
+                    return new int[0];
+                }
+                range = tree.subMap(lower, lowerInclusive, upper, upperInclusive);
+            } else if (lower != null) {
+                range = tree.tailMap(lower, lowerInclusive);
+            } else if (upper != null) {
+                range = tree.headMap(upper, upperInclusive);
+            }
+            List<int[]> lists = new ArrayList<int[]>(range.size() + 1);
+            for (Postings postings : range.values()) {
+                lists.add(postings.toArray());
+            }
+            if (tree == numbers) {
+                lists.add(longs());
+            }
+            return lists.isEmpty() ? new int[0] : Postings.union(lists);
+        }
+
+        /**
+         * Gets the rows having integral values within the range.
+         */
+        private int[] longs() {
+            long[] keys = sortedLongs();
+            int from = lower != null ? search(keys, lower, !lowerInclusive) : 0;
+            int to = upper != null ? search(keys, upper, upperInclusive) : keys.length;
+            int count = 0;
+            for (int i = from; i < to; i++) {
+                count += longs.count(keys[i]);
+            }
+            int[] found = new int[count];
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                n = longs.copy(keys[i], found, n);
+            }
+            Arrays.sort(found);
+            return found;
+        }
+    }
+
+    /**
+     * Looks up the rows having one of a set of values.
+     *
+     * @return the rows, or null if some value is not ordered
+     */
+    private int[] lookup(Object[] values) {
+        List<int[]> lists = new ArrayList<int[]>(values.length);
+        for (Object value : values) {
+            TreeMap<Object, Postings> tree = tree(value);
+            if (tree == null) {
+                return null;
+            }
+            Object key = Values.key(value);
+            if (key instanceof Long) {
+                int[] found = longs.get((Long) key);
+                if (found.length > 0) {
+                    lists.add(found);
+                }
+                continue;
+            }
+            Postings postings = tree.get(key);
+            if (postings != null) {
+                lists.add(postings.toArray());
+            }
+        }
+        return lists.isEmpty() ? new int[0] : Postings.union(lists);
+    }
+
+    /**
+     * Tests whether every non-null value of the property is indexed, so
+     * that the index is able to list the rows in order.
+     *
+     * @return true if no value is unordered
+     */
+    boolean isComplete() {
+        return unordered == 0;
+    }
+
+    /**
+     * Lists the indexed rows in the order of their values; numbers before
+     * strings when ascending. Rows having equal values are listed in
+     * ascending row order in either direction.
+     *
+     * @param ascending true to list in ascending order of value
+     * @return the indexed rows
+     */
+    int[] ordered(boolean ascending) {
+        int[] ordered = new int[rows];
+        int n = 0;
+        if (ascending) {
+            n = appendNumbers(true, ordered, n);
+            append(strings, true, ordered, n);
+        } else {
+            n = append(strings, false, ordered, n);
+            appendNumbers(false, ordered, n);
+        }
+        return ordered;
+    }
+
+    /**
+     * Appends the rows having numbers, merging the integral values with
+     * the others in order.
+     */
+    private int appendNumbers(boolean ascending, int[] ordered, int n) {
+        long[] keys = sortedLongs();
+        int i = ascending ? 0 : keys.length - 1;
+        Iterator<Map.Entry<Object, Postings>> others =
+                (ascending ? numbers : numbers.descendingMap()).entrySet().iterator();
+        Map.Entry<Object, Postings> other = others.hasNext() ? others.next() : null;
+        while (i >= 0 && i < keys.length || other != null) {
+            boolean integral = other == null
+                    || (i >= 0 && i < keys.length && (compare(keys[i], other.getKey()) < 0) == ascending);
+            if (integral) {
+                n = longs.copy(keys[i], ordered, n);
+                i += ascending ? 1 : -1;
+            } else {
+                int[] rows = other.getValue().toArray();
+                System.arraycopy(rows, 0, ordered, n, rows.length);
+                n += rows.length;
+                other = others.hasNext() ? others.next() : null;
+            }
+        }
+        return n;
+    }
+
+    private static int append(TreeMap<Object, Postings> tree, boolean ascending, int[] ordered, int n) {
+        for (Postings postings : (ascending ? tree : tree.descendingMap()).values()) {
+            int[] rows = postings.toArray();
+            System.arraycopy(rows, 0, ordered, n, rows.length);
+            n += rows.length;
+        }
+        return n;
+    }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+import com.buck.jsql.literals.PatternLiteral;
+import com.buck.jsql.util.Values;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * Statistics over the values of a property of the elements of a
+ * collection, used to estimate the selectivity of predicates.
+ * <p/>
+ * Gathering makes one pass over the elements, counting nulls, estimating
+ * the number of distinct values with a sketch of the smallest value hashes
+ * seen (a k minimum values sketch), and drawing a reservoir sample of the
+ * numbers and strings, from which an equi-depth histogram is built. A
+ * value spanning several buckets of the histogram is a frequent value, and
+ * its frequency is estimated from the buckets it spans; any other value is
+ * assumed to be as frequent as the average distinct value.
+ *
+ * @author Robert J. Buck
+ */
+public final class Statistics {
+
+    /**
+     * The number of values sampled for the histogram.
+     */
+    public static final int SAMPLE_SIZE = 4096;
+
+    /**
+     * The number of buckets of the histogram.
+     */
+    public static final int BUCKETS = 64;
+
+    /**
+     * The number of hashes kept by the distinct value sketch.
+     */
+    public static final int SKETCH_SIZE = 256;
+
+    /**
+     * The selectivity assumed for a LIKE pattern, or the part of a pattern
+     * following its literal prefix.
+     */
+    static final double LIKE_SELECTIVITY = 0.1;
+
+    private static final Comparator<Object> ORDER = new Comparator<Object>() {
+        public int compare(Object a, Object b) {
+            return Values.compare(a, b);
+        }
+    };
+
+    private final String property;
+    private final int rows;
+    private final int nulls;
+    private final double distinct;
+    private final double ordered;
+    private final double numbers;
+    private final Object[] bounds;
+
+    private Statistics(String property, int rows, int nulls, double distinct,
+                       double ordered, double numbers, Object[] bounds) {
+        this.property = property;
+        this.rows = rows;
+        this.nulls = nulls;
+        this.distinct = distinct;
+        this.ordered = ordered;
+        this.numbers = numbers;
+        this.bounds = bounds;
+    }
+
+    /**
+     * Accumulates the statistics of a property, one value at a time.
+     */
+    static final class Builder {
+        private final String property;
+        private final Random random = new Random(0);
+        private final TreeSet<Long> sketch = new TreeSet<Long>();
+        private final Object[] sample = new Object[SAMPLE_SIZE];
+        private int rows;
+        private int nulls;
+        private int orderedCount;
+
+        Builder(String property) {
+            this.property = property;
+        }
+
+        void add(Object value) {
+            rows++;
+            if (value == null) {
+                nulls++;
+                return;
+            }
+            Object key = Values.key(value);
+            sketch.add(hash(key.hashCode()));
+            if (sketch.size() > SKETCH_SIZE) {
+                sketch.pollLast();
+            }
+            boolean isOrdered = value instanceof String
+                    || (value instanceof Number && ((Number) value).doubleValue() == ((Number) value).doubleValue());
+            if (isOrdered) {
+                // reservoir sampling keeps each ordered value with equal probability
+                if (orderedCount < SAMPLE_SIZE) {
+                    sample[orderedCount] = key;
+                } else {
+                    int i = random.nextInt(orderedCount + 1);
+                    if (i < SAMPLE_SIZE) {
+                        sample[i] = key;
+                    }
+                }
+                orderedCount++;
+            }
+        }
+
+        Statistics build() {
+            double distinct;
+            if (sketch.size() < SKETCH_SIZE) {
+                distinct = sketch.size();
+            } else {
+                // the k-th smallest of n uniform hashes lies near k / n of the hash range
+                distinct = (SKETCH_SIZE - 1) * (double) Long.MAX_VALUE / sketch.last();
+            }
+            int n = Math.min(orderedCount, SAMPLE_SIZE);
+            Object[] sorted = Arrays.copyOf(sample, n);
+            Arrays.sort(sorted, ORDER);
+            int numberCount = 0;
+            while (numberCount < n && sorted[numberCount] instanceof Number) {
+                numberCount++;
+            }
+            Object[] bounds = new Object[n > 0 ? BUCKETS + 1 : 0];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = sorted[Math.min(n - 1, (int) ((long) i * n / BUCKETS))];
+            }
+            int nonNull = rows - nulls;
+            return new Statistics(property, rows, nulls, Math.max(distinct, nonNull > 0 ? 1 : 0),
+                    nonNull > 0 ? (double) orderedCount / nonNull : 0,
+                    n > 0 ? (double) numberCount / n : 0, bounds);
+        }
+
+        private static long hash(long h) {
+            // the finalizer of MurmurHash3, spreading the bits of the hash code
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h >>> 1;
+        }
+    }
+
+    /**
+     * Gets the name of the property.
+     *
+     * @return the property name
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * Gets the number of elements seen when gathering the statistics.
+     *
+     * @return the number of elements
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * Gets the fraction of elements whose property value is null.
+     *
+     * @return the null fraction
+     */
+    public double getNullFraction() {
+        return rows > 0 ? (double) nulls / rows : 0;
+    }
+
+    /**
+     * Gets the estimated number of distinct non-null values.
+     *
+     * @return the distinct value estimate
+     */
+    public double getDistinctCount() {
+        return distinct;
+    }
+
+    /**
+     * Estimates the fraction of elements satisfying every one of a number
+     * of predicates over the property.
+     *
+     * @param predicates the predicates
+     * @return the selectivity, between zero and one
+     */
+    public double getSelectivity(List<Predicate> predicates) {
+        if (rows == 0) {
+            return 0;
+        }
+        double selectivity = 1;
+        Object lower = null;
+        Object upper = null;
+        for (Predicate predicate : predicates) {
+            Object[] values = predicate.getValues();
+            switch (predicate.getKind()) {
+                case EQ:
+                    selectivity = Math.min(selectivity, equality(values));
+                    break;
+                case LIKE: {
+                    String prefix = PatternLiteral.prefix((String) values[0],
+                            values.length > 1 ? (Character) values[1] : null);
+                    double like = LIKE_SELECTIVITY;
+                    if (prefix.length() > 0) {
+                        lower = max(lower, prefix);
+                        upper = min(upper, prefix + Character.MAX_VALUE);
+                        like = new PatternLiteral((String) values[0],
+                                values.length > 1 ? (Character) values[1] : null).isPrefixOnly() ? 1 : LIKE_SELECTIVITY;
+                    }
+                    selectivity *= like;
+                    break;
+                }
+                case GT:
+                case GE:
+                    lower = max(lower, values[0]);
+                    break;
+                default:
+                    upper = min(upper, values[0]);
+                    break;
+            }
+        }
+        if (lower != null || upper != null) {
+            selectivity = Math.min(selectivity, range(lower, upper));
+        }
+        return Math.max(selectivity, 0.5 / rows);
+    }
+
+    private double equality(Object[] values) {
+        double nonNull = 1 - getNullFraction();
+        double selectivity = 0;
+        for (Object value : values) {
+            int spanned = 0;
+            for (Object bound : bounds) {
+                if (Values.compare(bound, value) == 0) {
+                    spanned++;
+                }
+            }
+            if (spanned > 1) {
+                selectivity += (spanned - 1) / (double) BUCKETS * ordered * nonNull;
+            } else if (distinct > 0) {
+                selectivity += nonNull / distinct;
+            }
+        }
+        return Math.min(1, selectivity);
+    }
+
+    /**
+     * Estimates the fraction of elements whose values lie between two
+     * bounds of the same kind, either of which may be absent.
+     */
+    private double range(Object lower, Object upper) {
+        if (bounds.length == 0) {
+            return 0;
+        }
+        boolean strings = (lower != null ? lower : upper) instanceof String;
+        if (lower != null && upper != null && (lower instanceof String) != (upper instanceof String)) {
+            return 0;
+        }
+        double from = lower != null ? cdf(lower) : (strings ? numbers : 0);
+        double to = upper != null ? cdf(upper) : (strings ? 1 : numbers);
+        return Math.max(0, to - from) * ordered * (1 - getNullFraction());
+    }
+
+    /**
+     * Estimates the fraction of the numbers and strings less than a value,
+     * interpolating linearly between numeric bucket bounds.
+     */
+    private double cdf(Object value) {
+        if (Values.compare(value, bounds[0]) <= 0) {
+            return 0;
+        }
+        if (Values.compare(value, bounds[BUCKETS]) > 0) {
+            return 1;
+        }
+        int low = 0;
+        int high = BUCKETS;
+        while (high - low > 1) {
+            int middle = (low + high) >>> 1;
+            if (Values.compare(bounds[middle], value) < 0) {
+                low = middle;
+            } else {
+                high = middle;
+            }
+        }
+        double fraction = 0.5;
+        if (value instanceof Number && bounds[low] instanceof Number && bounds[high] instanceof Number) {
+            double from = ((Number) bounds[low]).doubleValue();
+            double to = ((Number) bounds[high]).doubleValue();
+            fraction = to > from ? (((Number) value).doubleValue() - from) / (to - from) : 0.5;
+        }
+        return (low + fraction) / BUCKETS;
+    }
+
+    private static Object max(Object a, Object b) {
+        return a == null || Values.compare(b, a) > 0 ? b : a;
+    }
+
+    private static Object min(Object a, Object b) {
+        return a == null || Values.compare(b, a) < 0 ? b : a;
+    }
+
+    public String toString() {
+        return property + ": rows=" + rows + ", nulls=" + nulls + ", distinct=" + Math.round(distinct);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Predicate;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A trigram index over a string property, answering LIKE predicates
+ * having a literal fragment of three or more characters, wherever the
+ * fragment occurs in the pattern.
+ * <p/>
+ * Every string is entered under each distinct run of three characters it
+ * contains. To look up a pattern, the literal fragments between its
+ * wildcards are taken, and the rows entered under every trigram of every
+ * fragment are intersected; the rows found contain each fragment, and are
+ * a superset of those matching the pattern, which the query then verifies.
+ * Matching is case sensitive, as LIKE is.
+ *
+ * @author Robert J. Buck
+ */
+public class TrigramIndex extends Index {
+
+    private static final int N = 3;
+
+    private final HashMap<String, Postings> postings = new HashMap<String, Postings>();
+
+    /**
+     * Constructs a trigram index.
+     *
+     * @param property the indexed property
+     */
+    TrigramIndex(String property) {
+        super(property);
+    }
+
+    void add(int row, Object value) {
+        if (value instanceof String) {
+            for (String trigram : trigrams((String) value)) {
+                Postings rows = postings.get(trigram);
+                if (rows == null) {
+                    rows = new Postings();
+                    postings.put(trigram, rows);
+                }
+                rows.add(row);
+            }
+        }
+    }
+
+    void remove(int row, Object value) {
+        if (value instanceof String) {
+            for (String trigram : trigrams((String) value)) {
+                Postings rows = postings.get(trigram);
+                if (rows != null) {
+                    rows.remove(row);
+                    if (rows.size() == 0) {
+                        postings.remove(trigram);
+                    }
+                }
+            }
+        }
+    }
+
+    void clear() {
+        postings.clear();
+    }
+
+    double getLookupCost() {
+        return 0.5;
+    }
+
+    int[] lookup(List<Predicate> predicates) {
+        Set<String> trigrams = new LinkedHashSet<String>();
+        for (Predicate predicate : predicates) {
+            if (predicate.getKind() == Predicate.Kind.LIKE) {
+                Object[] values = predicate.getValues();
+                Character escape = values.length > 1 ? (Character) values[1] : null;
+                for (String fragment : fragments((String) values[0], escape)) {
+                    trigrams.addAll(trigrams(fragment));
+                }
+            }
+        }
+        if (trigrams.isEmpty()) {
+            return null;
+        }
+        // intersect the rarest trigrams first, so the intersection shrinks soonest
+        List<Postings> lists = new ArrayList<Postings>(trigrams.size());
+        for (String trigram : trigrams) {
+            Postings rows = postings.get(trigram);
+            if (rows == null) {
+                return new int[0];
+            }
+            lists.add(rows);
+        }
+        Postings rarest = lists.get(0);
+        for (Postings rows : lists) {
+            if (rows.size() < rarest.size()) {
+                rarest = rows;
+            }
+        }
+        int[] found = rarest.toArray();
+        for (Postings rows : lists) {
+            if (found.length == 0) {
+                break;
+            }
+            if (rows != rarest) {
+                found = Postings.intersect(found, rows.toArray());
+            }
+        }
+        return found;
+    }
+
+    private static Set<String> trigrams(String value) {
+        Set<String> trigrams = new LinkedHashSet<String>();
+        for (int i = 0; i + N <= value.length(); i++) {
+            trigrams.add(value.substring(i, i + N));
+        }
+        return trigrams;
+    }
+
+    /**
+     * Splits a LIKE pattern into the literal fragments between its
+     * wildcards, resolving escapes as the pattern literal does.
+     */
+    static List<String> fragments(String like, Character escape) {
+        List<String> fragments = new ArrayList<String>();
+        StringBuilder fragment = new StringBuilder();
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (escape != null && escape == c) {
+                if (++i < like.length()) {
+                    fragment.append(like.charAt(i));
+                }
+            } else if (c == '%' || c == '_') {
+                if (fragment.length() > 0) {
+                    fragments.add(fragment.toString());
+                    fragment.setLength(0);
+                }
+            } else {
+                fragment.append(c);
+            }
+        }
+        if (fragment.length() > 0) {
+            fragments.add(fragment.toString());
+        }
+        return fragments;
+    }
+}
@@ -18,7 +18,6 @@ package com.buck.jsql.literals;
 
 import com.buck.jsql.EvaluationContext;
 import com.buck.jsql.EvaluationException;
-import com.buck.jsql.Expression;
 import com.buck.jsql.ExpressionType;
 
 /**
@@ -26,7 +25,7 @@ import com.buck.jsql.ExpressionType;
  *
  * @author Robert J. Buck
  */
-public class DoubleLiteral extends Expression {
+public class DoubleLiteral extends Literal {
 
     private final Double literal;
 
@@ -40,6 +39,10 @@ public class DoubleLiteral extends Expression {
         this.literal = literal;
     }
 
+    public Object getValue() {
+        return literal;
+    }
+
     /**
      * The numeric literal is returned.
      *
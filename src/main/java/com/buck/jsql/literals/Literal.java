@@ -0,0 +1,43 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buck.jsql.literals;
+
+import com.buck.jsql.Expression;
+import com.buck.jsql.ExpressionType;
+
+/**
+ * Base class for all literals. A literal evaluates to the same value in
+ * every context, so its value may be used when a query is constructed.
+ *
+ * @author Robert J. Buck
+ */
+public abstract class Literal extends Expression {
+    /**
+     * Constructor
+     *
+     * @param type the node type
+     */
+    protected Literal(ExpressionType type) {
+        super(type);
+    }
+
+    /**
+     * Gets the value of the literal.
+     *
+     * @return the literal value
+     */
+    public abstract Object getValue();
+}
@@ -18,7 +18,6 @@ package com.buck.jsql.literals;
 
 import com.buck.jsql.EvaluationContext;
 import com.buck.jsql.EvaluationException;
-import com.buck.jsql.Expression;
 import com.buck.jsql.ExpressionType;
 
 import java.util.HashSet;
@@ -27,7 +26,7 @@ import java.util.regex.Pattern;
 /**
  * A literal for a regular expression pattern.
  */
-public class PatternLiteral extends Expression {
+public class PatternLiteral extends Literal {
 
     static final private HashSet<Character> REGEXP_CONTROL_CHARS = new HashSet<Character>();
 
@@ -54,7 +53,11 @@ public class PatternLiteral extends Expression {
         REGEXP_CONTROL_CHARS.add('!');
     }
 
+    private final String like;
+    private final Character escape;
     private final Pattern pattern;
+    private final String prefix;
+    private final boolean prefixOnly;
 
     /**
      * Constructs a pattern to match literals against.
@@ -64,6 +67,10 @@ public class PatternLiteral extends Expression {
      */
     public PatternLiteral(final String like, Character escape) {
         super(ExpressionType.PatternLiteral);
+        this.like = like;
+        this.escape = escape;
+        this.prefix = prefix(like, escape);
+        this.prefixOnly = isPrefixOnly(like, escape);
 
         StringBuffer regexp = new StringBuffer(like.length() * 2);
         regexp.append("\\A"); // The beginning of the input
@@ -95,6 +102,97 @@ public class PatternLiteral extends Expression {
         pattern = Pattern.compile(regexp.toString(), Pattern.DOTALL);
     }
 
+    public Object getValue() {
+        return pattern;
+    }
+
+    /**
+     * Gets the LIKE pattern the regular expression was compiled from.
+     *
+     * @return the LIKE pattern
+     */
+    public String getSource() {
+        return like;
+    }
+
+    /**
+     * Gets the escape character of the LIKE pattern.
+     *
+     * @return the escape character, or null if there is none
+     */
+    public Character getEscape() {
+        return escape;
+    }
+
+    /**
+     * Gets the literal prefix of the LIKE pattern; the characters preceding
+     * the first wildcard, with escapes resolved. Every string matching the
+     * pattern starts with the prefix.
+     *
+     * @return the prefix, empty if the pattern starts with a wildcard
+     */
+    public String getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * Tests whether the LIKE pattern is a literal prefix followed by
+     * nothing but '%' wildcards, such that a string matches the pattern if
+     * and only if it starts with the prefix.
+     *
+     * @return true if the pattern is a prefix pattern
+     */
+    public boolean isPrefixOnly() {
+        return prefixOnly;
+    }
+
+    /**
+     * Gets the literal prefix of a LIKE pattern.
+     *
+     * @param like   the LIKE pattern
+     * @param escape the escape character, or null if there is none
+     * @return the characters preceding the first wildcard, with escapes
+     *         resolved
+     */
+    public static String prefix(String like, Character escape) {
+        StringBuilder prefix = new StringBuilder(like.length());
+        for (int i = 0; i < like.length(); i++) {
+            char c = like.charAt(i);
+            if (escape != null && escape == c) {
+                if (++i < like.length()) {
+                    prefix.append(like.charAt(i));
+                }
+            } else if (c == '%' || c == '_') {
+                break;
+            } else {
+                prefix.append(c);
+            }
+        }
+        return prefix.toString();
+    }
+
+    private static boolean isPrefixOnly(String like, Character escape) {
+        int i = 0;
+        while (i < like.length()) {
+            char c = like.charAt(i);
+            if (escape != null && escape == c) {
+                i += 2;
+            } else if (c == '%' || c == '_') {
+                break;
+            } else {
+                i++;
+            }
+        }
+        if (i >= like.length() || like.charAt(i) != '%') {
+            // a trailing escape character or no wildcard at all
+            return false;
+        }
+        while (i < like.length() && like.charAt(i) == '%' && (escape == null || escape != '%')) {
+            i++;
+        }
+        return i == like.length();
+    }
+
     /**
      * Return the regular expression pattern.
      *
@@ -38,6 +38,14 @@ public final class ReflectionSupport {
         }
     }
 
+    public static Setter getSetter(Class clazz, String name) throws PropertyNotFoundException {
+        try {
+            return BASIC_PROPERTY_ACCESSOR.getSetter(clazz, name);
+        } catch (PropertyNotFoundException pnfe) {
+            return DIRECT_PROPERTY_ACCESSOR.getSetter(clazz, name);
+        }
+    }
+
     public static Class classForName(String name) throws ClassNotFoundException {
         try {
             ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
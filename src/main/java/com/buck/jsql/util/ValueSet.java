@@ -0,0 +1,107 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.buck.jsql.util;
+
+import java.util.HashSet;
+
+/**
+ * A typed hash set of query values. Integral values (including floating
+ * point values having an integral value) are kept in a primitive long set;
+ * strings, booleans and other values are kept in an ordinary hash set.
+ * Membership follows the equality semantics of the comparison predicate,
+ * so that <code>5</code>, <code>5L</code> and <code>5.0</code> are the same
+ * member.
+ *
+ * @author Robert J. Buck
+ */
+public final class ValueSet {
+
+    private final LongHashSet longs;
+    private final HashSet<Object> objects = new HashSet<Object>();
+    private boolean containsNull;
+
+    /**
+     * Constructs an empty value set.
+     */
+    public ValueSet() {
+        this(16);
+    }
+
+    /**
+     * Constructs an empty value set sized for the expected number of values.
+     *
+     * @param expected the expected number of values
+     */
+    public ValueSet(int expected) {
+        longs = new LongHashSet(expected);
+    }
+
+    /**
+     * Adds a value to the set.
+     *
+     * @param value the value to add, may be null
+     */
+    public void add(Object value) {
+        if (value == null) {
+            containsNull = true;
+            return;
+        }
+        Object key = Values.key(value);
+        if (key instanceof Long) {
+            longs.add((Long) key);
+        } else {
+            objects.add(key);
+        }
+    }
+
+    /**
+     * Tests whether the set contains a non-null value.
+     *
+     * @param value the value to look for
+     * @return true if the set contains the value
+     */
+    public boolean contains(Object value) {
+        if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            long l = (long) d;
+            if (l == d && l != Long.MAX_VALUE && l != Long.MIN_VALUE) {
+                return longs.contains(l);
+            }
+            return objects.contains(d);
+        } else if (value instanceof Number) {
+            return longs.contains(((Number) value).longValue());
+        }
+        return objects.contains(value);
+    }
+
+    /**
+     * Tests whether a null value was added to the set.
+     *
+     * @return true if the set contains null
+     */
+    public boolean containsNull() {
+        return containsNull;
+    }
+
+    /**
+     * Gets the number of distinct non-null values in the set.
+     *
+     * @return the number of values
+     */
+    public int size() {
+        return longs.size() + objects.size();
+    }
+}
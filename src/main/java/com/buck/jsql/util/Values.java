@@ -0,0 +1,118 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.util;
+
+/**
+ * Value helpers shared by the hashing and sorting operators.
+ *
+ * @author Robert J. Buck
+ */
+public final class Values {
+
+    /**
+     * Normalizes a value for use as a hash key, such that two values that
+     * are equal according to the comparison predicate yield equal keys. All
+     * integral numbers become longs, and floating point numbers having an
+     * integral value become longs as well; other values are returned as is.
+     *
+     * @param value the value to normalize, may be null
+     * @return the hash key for the value
+     */
+    public static Object key(Object value) {
+        if (value instanceof Number) {
+            Number number = (Number) value;
+            if (number instanceof Double || number instanceof Float) {
+                double d = number.doubleValue();
+                long l = (long) d;
+                if (l == d && l != Long.MAX_VALUE && l != Long.MIN_VALUE) {
+                    return l;
+                }
+                return d;
+            }
+            return number.longValue();
+        }
+        return value;
+    }
+
+    /**
+     * Compares two values for sorting, imposing a total order on the values
+     * of a property. Nulls come first, then numbers, then strings, then
+     * booleans, then values of other types grouped by class. Numbers compare
+     * by value, as longs unless either is floating point, with NaN after
+     * all other numbers; strings compare lexicographically; booleans sort
+     * false first; values of other types compare by their natural ordering,
+     * if they have one.
+     *
+     * @param a a value, may be null
+     * @param b another value, may be null
+     * @return a negative integer, zero, or a positive integer as the first
+     *         value sorts before, with, or after the second
+     */
+    @SuppressWarnings({"unchecked"})
+    public static int compare(Object a, Object b) {
+        int ra = rank(a);
+        int rb = rank(b);
+        if (ra != rb) {
+            return ra < rb ? -1 : 1;
+        }
+        switch (ra) {
+            case 0:
+                return 0;
+            case 1: {
+                Number l = (Number) a;
+                Number r = (Number) b;
+                if (l instanceof Double || l instanceof Float || r instanceof Double || r instanceof Float) {
+                    double x = l.doubleValue();
+                    double y = r.doubleValue();
+                    if (x != x || y != y) {
+                        return x != x ? (y != y ? 0 : 1) : -1;
+                    }
+                    return x < y ? -1 : (x > y ? 1 : 0);
+                }
+                long x = l.longValue();
+                long y = r.longValue();
+                return x < y ? -1 : (x > y ? 1 : 0);
+            }
+            case 2:
+                return ((String) a).compareTo((String) b);
+            case 3:
+                return a.equals(b) ? 0 : (Boolean.TRUE.equals(b) ? -1 : 1);
+            default: {
+                if (a.getClass() != b.getClass()) {
+                    return a.getClass().getName().compareTo(b.getClass().getName());
+                }
+                return a instanceof Comparable ? ((Comparable<Object>) a).compareTo(b) : 0;
+            }
+        }
+    }
+
+    private static int rank(Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return 1;
+        } else if (value instanceof String) {
+            return 2;
+        } else if (value instanceof Boolean) {
+            return 3;
+        }
+        return 4;
+    }
+
+    private Values() {
+    }
+}
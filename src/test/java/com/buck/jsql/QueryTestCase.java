@@ -19,6 +19,10 @@ package com.buck.jsql;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 import java.util.Set;
 import java.util.Vector;
 
@@ -60,4 +64,215 @@ public class QueryTestCase {
             Assert.assertFalse("Double Addition", caught);
         }
     }
+
+    @Test
+    public void testQueryCache() throws QueryException {
+        QueryCache cache = new QueryCache(2);
+        Query<Double> query = cache.getQuery(Double.class, "value IN (1, 2) OR value IS NULL");
+        Assert.assertSame(query, cache.getQuery(Double.class, "value  in (1,2)\tor value is null -- comment\n"));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        cache.getQuery(Double.class, "value > 1.5");
+        cache.getQuery(Double.class, "value > 3.5");
+        Assert.assertEquals(2, cache.getHitCount());
+        Assert.assertEquals(2, cache.size());
+
+        cache.getQuery(Double.class, "value < 3.5");
+        Assert.assertEquals(1, cache.getEvictionCount());
+        Assert.assertNotSame(query, cache.getQuery(Double.class, "value IN (1, 2) OR value IS NULL"));
+    }
+
+    @Test
+    public void testCanonicalQuery() throws QueryException {
+        CanonicalQuery canonical = CanonicalQuery.of(
+                "age >= 50 and name like 'b%' /* block */ or name in ('a', 'b') and -2.5 < x", true);
+        Assert.assertEquals("age >= ? AND name LIKE 'b%' OR name IN ( 'a' , 'b' ) AND - ? < x",
+                canonical.getText());
+        Assert.assertArrayEquals(new Object[]{50, 2.5}, canonical.getValues());
+        Assert.assertFalse(CanonicalQuery.of("age >= ? and name = 'bob'", true).isParameterized());
+
+        Vector<Double> doubles = new Vector<Double>();
+        doubles.add(3.14);
+        QueryCache cache = new QueryCache(16);
+        Assert.assertEquals(1, cache.<Double>getQuery(Double.class, "value > 3").select(doubles).size());
+        Assert.assertEquals(0, cache.<Double>getQuery(Double.class, "value > 4").select(doubles).size());
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testCanonicalQueryLocale() throws QueryException {
+        Locale locale = Locale.getDefault();
+        Locale.setDefault(new Locale("tr", "TR"));
+        try {
+            Assert.assertEquals("value IN ( 0 , 2 ) AND value IS NULL",
+                    CanonicalQuery.of("value in (0, 2) and value is null", true).getText());
+            Assert.assertEquals("value LIKE 'x%'", CanonicalQuery.of("value like 'x%'", true).getText());
+            Vector<Double> doubles = new Vector<Double>();
+            doubles.add(2.0);
+            Assert.assertEquals(1, new QueryCache(4).<Double>getQuery(Double.class,
+                    "value in (0, 2) or value is null").select(doubles).size());
+        } finally {
+            Locale.setDefault(locale);
+        }
+    }
+
+    public static class Message {
+        private final String select;
+        private final int where;
+        private final String from;
+
+        Message(String select, int where, String from) {
+            this.select = select;
+            this.where = where;
+            this.from = from;
+        }
+
+        public String getSelect() {
+            return select;
+        }
+
+        public int getWhere() {
+            return where;
+        }
+
+        public String getFrom() {
+            return from;
+        }
+
+        public int getOrder() {
+            return -where;
+        }
+
+        public String getDesc() {
+            return select + from;
+        }
+    }
+
+    @Test
+    public void testKeywordProperties() throws QueryException {
+        List<Message> messages = new ArrayList<Message>();
+        messages.add(new Message("a", 1, "bob"));
+        messages.add(new Message("b", 2, "alice"));
+        messages.add(new Message("a", 3, "bob"));
+
+        Assert.assertEquals(1, new Query<Message>(Message.class, "select = 'a' AND where > 1").select(messages).size());
+        Assert.assertEquals(2, new Query<Message>(Message.class, "where IN (1, 2)").select(messages).size());
+        Assert.assertEquals(1, new Query<Message>(Message.class, "from = 'alice'").select(messages).size());
+        Assert.assertEquals(3, new Query<Message>(Message.class, "order < 0").select(messages).size());
+        List<Message> ordered = new Query<Message>(Message.class,
+                "desc LIKE 'a%' ORDER BY order ASC, desc DESC").list(messages);
+        Assert.assertEquals(2, ordered.size());
+        Assert.assertSame(messages.get(2), ordered.get(0));
+        Catalog catalog = new Catalog();
+        catalog.register("messages", Message.class, messages);
+        Assert.assertEquals(2, new Query<Message>(Message.class,
+                "from IN (SELECT from FROM messages WHERE where = 1)", catalog).select(messages).size());
+        List<Tuple> tuples = new Query<Message>(Message.class,
+                "SELECT where WHERE select <> 'b' ORDER BY where DESC").project(messages);
+        Assert.assertEquals(2, tuples.size());
+        Assert.assertEquals(3, tuples.get(0).get("where"));
+
+        QueryCache cache = new QueryCache(4);
+        Assert.assertEquals(2, cache.<Message>getQuery(Message.class, "select = 'a'").select(messages).size());
+        Assert.assertEquals("select = ?", CanonicalQuery.of("select = 'a'", true).getText());
+        Assert.assertEquals(1, cache.<Message>getQuery(Message.class, "from = 'alice'").select(messages).size());
+        Assert.assertEquals("order > ? order by desc DESC", CanonicalQuery.of("order > 0 order by desc DESC", true).getText());
+    }
+
+    public static class Account {
+        private long id;
+        private int age;
+        private Double balance;
+        private String region;
+        private boolean active;
+
+        public Account() {
+        }
+
+        Account(long id, int age, Double balance, String region, boolean active) {
+            this.id = id;
+            this.age = age;
+            this.balance = balance;
+            this.region = region;
+            this.active = active;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public int getAge() {
+            return age;
+        }
+
+        public Double getBalance() {
+            return balance;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Account)) {
+                return false;
+            }
+            Account a = (Account) o;
+            return id == a.id && age == a.age && active == a.active
+                    && (balance == null ? a.balance == null : balance.equals(a.balance))
+                    && (region == null ? a.region == null : region.equals(a.region));
+        }
+
+        public int hashCode() {
+            return (int) id;
+        }
+    }
+
+    @Test
+    public void testColumnarTable() throws QueryException {
+        String[] regions = {"EU", "US", "APAC", null};
+        Random random = new Random(31);
+        List<Account> accounts = new ArrayList<Account>();
+        for (int i = 0; i < 5000; i++) {
+            accounts.add(new Account(i, random.nextInt(90), random.nextInt(10) == 0 ? null : random.nextInt(10000) / 4.0,
+                    regions[random.nextInt(regions.length)], random.nextBoolean()));
+        }
+        ColumnarTable<Account> table = new ColumnarTable<Account>(Account.class, accounts);
+        Assert.assertEquals(accounts.size(), table.size());
+        Assert.assertEquals(3, table.getDictionarySize("region"));
+        Assert.assertEquals(new ArrayList<Account>(accounts), new ArrayList<Account>(table));
+
+        String[] texts = {
+                "age BETWEEN 30 AND 39 AND region = 'EU'",
+                "balance > 1200.5 AND active IS TRUE",
+                "balance <= 100 OR region IS NULL",
+                "id IN (1, 2, 3.0, 4.5) AND age >= 0",
+                "region LIKE '%A%' AND age < 20.5",
+                "age > 80 AND region > 'F' ORDER BY balance DESC, id",
+                "balance IS NULL AND NOT active ORDER BY region"
+        };
+        for (String text : texts) {
+            Query<Account> query = new Query<Account>(Account.class, text);
+            Assert.assertEquals(text, query.select(accounts), query.select(table));
+            Assert.assertEquals(text, query.list(accounts), query.list(table));
+        }
+
+        Query<Account> projection = new Query<Account>(Account.class,
+                "SELECT id, balance, region WHERE age < 25 AND balance >= 2000 ORDER BY balance");
+        Assert.assertEquals(projection.project(accounts), projection.project(table));
+        Columns columns = projection.columns(table);
+        Assert.assertArrayEquals(projection.columns(accounts).getLongs("id"), columns.getLongs("id"));
+
+        try {
+            new ColumnarTable<Integer>(Integer.class);
+            Assert.fail();
+        } catch (QueryException e) {
+            // expected; Integer has no constructor taking no arguments
+        }
+    }
 }
@@ -0,0 +1,813 @@
+/*
+ * Copyright 2010-2013 Robert J. Buck
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.buck.jsql.index;
+
+import com.buck.jsql.Catalog;
+import com.buck.jsql.DiscriminationNetwork;
+import com.buck.jsql.Predicate;
+import com.buck.jsql.Query;
+import com.buck.jsql.QueryException;
+import com.buck.jsql.RuleTable;
+import com.buck.jsql.SelectorIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests indexed collections and the query planning over them.
+ *
+ * @author Robert J. Buck
+ */
+public class IndexedCollectionTestCase {
+
+    public static class Order {
+        private final long customerId;
+        private final String status;
+        private final double amount;
+
+        public Order(long customerId, String status, double amount) {
+            this.customerId = customerId;
+            this.status = status;
+            this.amount = amount;
+        }
+
+        public long getCustomerId() {
+            return customerId;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        public double getAmount() {
+            return amount;
+        }
+    }
+
+    private static final String[] STATUSES = {"NEW", "PAID", "SHIPPED", null};
+
+    private static List<Order> orders(int count) {
+        List<Order> orders = new ArrayList<Order>();
+        for (int i = 0; i < count; i++) {
+            orders.add(new Order(i % 100, STATUSES[i % STATUSES.length], i % 1000));
+        }
+        return orders;
+    }
+
+    private static void assertSameResults(List<Order> orders, IndexedCollection<Order> indexed, String text)
+            throws QueryException {
+        Query<Order> query = new Query<Order>(Order.class, text);
+        Assert.assertEquals(text, query.select(orders), query.select(indexed));
+    }
+
+    @Test
+    public void testHashIndex() throws QueryException {
+        List<Order> orders = orders(10000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.addHashIndex("customerId");
+        indexed.addHashIndex("status");
+        Assert.assertEquals(10000, indexed.size());
+
+        Query<Order> query = new Query<Order>(Order.class, "customerId = 42 AND status IN ('SHIPPED', 'PAID')");
+        Assert.assertEquals("HashIndex(customerId) customerId EQ [42] -> 100",
+                indexed.explain(query));
+        Assert.assertEquals("scan 10000", indexed.explain(new Query<Order>(Order.class, "customerId <> 42")));
+
+        assertSameResults(orders, indexed, "customerId = 42 AND status IN ('SHIPPED', 'PAID')");
+        assertSameResults(orders, indexed, "customerId = 42.0 AND amount > 500");
+        assertSameResults(orders, indexed, "status = 'SHIPPED' OR customerId = 1");
+        assertSameResults(orders, indexed, "status IS NULL AND customerId IN (1, 2, 3)");
+        assertSameResults(orders, indexed, "customerId = 1000");
+    }
+
+    @Test
+    public void testSortedIndex() throws QueryException {
+        List<Order> orders = orders(10000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.addSortedIndex("amount");
+        indexed.addSortedIndex("status");
+
+        Query<Order> query = new Query<Order>(Order.class, "amount BETWEEN 100 AND 199.5 AND amount > 150");
+        Assert.assertEquals("SortedIndex(amount) amount GE [100] AND amount LE [199.5] AND amount GT [150] -> 490",
+                indexed.explain(query));
+
+        assertSameResults(orders, indexed, "amount BETWEEN 100 AND 199.5 AND amount > 150");
+        assertSameResults(orders, indexed, "amount >= 990 AND status = 'PAID'");
+        assertSameResults(orders, indexed, "status < 'P' AND amount < 10");
+        assertSameResults(orders, indexed, "amount > 500 AND amount < 400");
+        assertSameResults(orders, indexed, "amount > 5 AND amount < 'x'");
+        assertSameResults(orders, indexed, "amount IN (1, 2.0, 2.5)");
+    }
+
+    @Test
+    public void testOrderBy() throws QueryException {
+        List<Order> orders = orders(1000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.addSortedIndex("status");
+        indexed.addSortedIndex("amount");
+        String[] texts = {
+                "customerId < 50 ORDER BY status",
+                "customerId < 50 ORDER BY status DESC",
+                "amount > 100 ORDER BY amount DESC",
+                "amount < 300 AND status = 'NEW' ORDER BY amount",
+                "customerId < 50 ORDER BY status DESC, amount ASC"
+        };
+        for (String text : texts) {
+            Query<Order> query = new Query<Order>(Order.class, text);
+            List<Order> expected = query.list(orders);
+            Assert.assertEquals(text, expected, query.list(indexed));
+            for (int i = 1; i < expected.size(); i++) {
+                Order a = expected.get(i - 1);
+                Order b = expected.get(i);
+                Assert.assertTrue(text, a.getStatus() == null || b.getStatus() == null
+                        || !a.getStatus().equals(b.getStatus()) || a.getAmount() != b.getAmount()
+                        || orders.indexOf(a) < orders.indexOf(b));
+            }
+        }
+        List<Order> ascending = new Query<Order>(Order.class, "customerId < 50 ORDER BY status").list(indexed);
+        Assert.assertNull(ascending.get(0).getStatus());
+        Assert.assertEquals("SHIPPED", ascending.get(ascending.size() - 1).getStatus());
+    }
+
+    @Test
+    public void testBitmapIndex() throws QueryException {
+        List<Order> orders = orders(10000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.addBitmapIndex("status");
+        indexed.addBitmapIndex("customerId");
+        Assert.assertEquals(3, ((BitmapIndex) indexed.getIndexes().get(0)).getCardinality());
+
+        Assert.assertEquals("NOT (BitmapIndex(status) status EQ [PAID]) -> 5000",
+                indexed.explain(new Query<Order>(Order.class, "status <> 'PAID'")));
+        Assert.assertEquals("(BitmapIndex(status) status EQ [NEW] OR BitmapIndex(status) status IS NULL) -> 5000",
+                indexed.explain(new Query<Order>(Order.class, "status = 'NEW' OR status IS NULL")));
+
+        assertSameResults(orders, indexed, "status = 'PAID' OR status IS NULL");
+        assertSameResults(orders, indexed, "NOT (status = 'PAID')");
+        assertSameResults(orders, indexed, "status <> 'NEW' AND customerId IN (1, 2, 3)");
+        assertSameResults(orders, indexed, "NOT (status IN ('NEW', 'PAID') OR customerId = 3)");
+        assertSameResults(orders, indexed, "status IS NOT NULL AND NOT customerId = 5");
+        assertSameResults(orders, indexed, "(status = 'NEW' OR amount > 900) AND customerId = 4");
+        assertSameResults(orders, indexed, "NOT (status = 'NEW' AND amount > 900)");
+    }
+
+    @Test
+    public void testTrigramIndex() throws QueryException {
+        List<Order> orders = orders(10000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.addTrigramIndex("status");
+
+        Assert.assertEquals("TrigramIndex(status) status LIKE '%IPP%' -> 2500",
+                indexed.explain(new Query<Order>(Order.class, "status LIKE '%IPP%'")));
+        Assert.assertEquals("scan 10000", indexed.explain(new Query<Order>(Order.class, "status LIKE '%I%'")));
+
+        assertSameResults(orders, indexed, "status LIKE '%IPP%'");
+        assertSameResults(orders, indexed, "status LIKE 'SH%ED'");
+        assertSameResults(orders, indexed, "status LIKE '%AI_%' AND customerId < 10");
+        assertSameResults(orders, indexed, "status LIKE '%XYZ%' OR status = 'NEW'");
+        assertSameResults(orders, indexed, "status NOT LIKE '%IPP%' AND status IS NOT NULL");
+
+        Assert.assertEquals(Arrays.asList("50%", "off"), TrigramIndex.fragments("50!%%off", '!'));
+    }
+
+    @Test
+    public void testPrefixLike() throws QueryException {
+        List<Order> orders = new ArrayList<Order>();
+        for (int i = 0; i < 5000; i++) {
+            String sku = i % 7 == 0 ? null : "AB-" + i + (i % 3 == 0 ? "_%" : "");
+            orders.add(new Order(i, sku, i));
+        }
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.addSortedIndex("status");
+
+        Assert.assertEquals("SortedIndex(status) status LIKE 'AB-12%' -> 96",
+                indexed.explain(new Query<Order>(Order.class, "status LIKE 'AB-12%'")));
+        Assert.assertEquals("SortedIndex(status) status LIKE 'AB-12!_%' ESCAPE '!' -> 1",
+                indexed.explain(new Query<Order>(Order.class, "status LIKE 'AB-12!_%' ESCAPE '!'")));
+
+        assertSameResults(orders, indexed, "status LIKE 'AB-12%'");
+        assertSameResults(orders, indexed, "status LIKE 'AB-12!_%' ESCAPE '!'");
+        assertSameResults(orders, indexed, "status LIKE 'AB-12!_!%' ESCAPE '!'");
+        assertSameResults(orders, indexed, "status LIKE 'AB-1_3%'");
+        assertSameResults(orders, indexed, "status LIKE '%12'");
+        assertSameResults(orders, indexed, "status LIKE 'AB-4%' AND customerId >= 4500");
+        assertSameResults(orders, indexed, "status NOT LIKE 'AB-1%'");
+
+        try {
+            new Query<Order>(Order.class, "status LIKE 'AB%' ESCAPE '!!'");
+            Assert.fail("multi-character escape");
+        } catch (QueryException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCompositeIndex() throws QueryException {
+        List<Order> orders = orders(10000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.addCompositeIndex("customerId", "status", "amount");
+
+        Assert.assertEquals("CompositeIndex(customerId, status, amount) customerId EQ [42] AND status EQ [SHIPPED]"
+                + " AND amount GT [500] -> 50",
+                indexed.explain(new Query<Order>(Order.class, "customerId = 42 AND status = 'SHIPPED' AND amount > 500")));
+
+        assertSameResults(orders, indexed, "customerId = 42 AND status = 'SHIPPED' AND amount > 500");
+        assertSameResults(orders, indexed, "customerId = 42 AND status = 'SHIPPED' AND amount BETWEEN 142 AND 542");
+        assertSameResults(orders, indexed, "customerId IN (1, 2, 3) AND status IN ('NEW', 'PAID') AND amount <= 401");
+        assertSameResults(orders, indexed, "customerId = 7 AND amount < 300");
+        assertSameResults(orders, indexed, "customerId = 7 AND status IS NULL");
+        assertSameResults(orders, indexed, "customerId = 8 AND status = 'NEW' AND amount = 108");
+        assertSameResults(orders, indexed, "customerId > 95 AND status = 'NEW'");
+        assertSameResults(orders, indexed, "customerId = 9 AND status > 'O'");
+        assertSameResults(orders, indexed, "customerId = 9 AND status = 'NEW' AND amount > 'x'");
+    }
+
+    @Test
+    public void testStatistics() throws QueryException {
+        List<Order> orders = orders(10000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.addHashIndex("customerId");
+        indexed.addSortedIndex("amount");
+
+        Statistics status = indexed.getStatistics("status");
+        Assert.assertEquals(0.25, status.getNullFraction(), 1e-9);
+        Assert.assertEquals(3, status.getDistinctCount(), 1e-9);
+        Assert.assertEquals(100, indexed.getStatistics("customerId").getDistinctCount(), 1e-9);
+        Assert.assertEquals(1000, indexed.getStatistics("amount").getDistinctCount(), 150);
+
+        Statistics amount = indexed.getStatistics("amount");
+        Assert.assertEquals(0.25, amount.getSelectivity(predicates("amount < 250")), 0.03);
+        Assert.assertEquals(0.1, amount.getSelectivity(predicates("amount BETWEEN 500 AND 600")), 0.03);
+        Assert.assertEquals(0.25, status.getSelectivity(predicates("status = 'PAID'")), 0.03);
+        Assert.assertEquals(0.5, status.getSelectivity(predicates("status IN ('PAID', 'NEW')")), 0.05);
+
+        // an unselective lookup is left to the scan, and the most selective is made first
+        Assert.assertEquals("HashIndex(customerId) customerId EQ [42] -> 100",
+                indexed.explain(new Query<Order>(Order.class, "amount > 10 AND customerId = 42")));
+        Assert.assertEquals("SortedIndex(amount) amount LT [5] AND HashIndex(customerId) customerId EQ [3] -> 10",
+                indexed.explain(new Query<Order>(Order.class, "customerId = 3 AND amount < 5")));
+        assertSameResults(orders, indexed, "amount > 10 AND customerId = 42");
+        assertSameResults(orders, indexed, "customerId = 3 AND amount < 5");
+    }
+
+    @Test
+    public void testCrackerIndex() throws QueryException {
+        List<Order> orders = orders(10000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        indexed.setAdaptive(true);
+        Query<Order> between = new Query<Order>(Order.class, "amount BETWEEN 100 AND 199");
+        Assert.assertEquals("CrackerIndex(amount) amount GE [100] AND amount LE [199] -> 1000",
+                indexed.explain(between));
+        // explaining a query leaves the collection as it is
+        Assert.assertTrue(indexed.getIndexes().isEmpty());
+        Assert.assertEquals(1000, between.select(indexed).size());
+        CrackerIndex cracker = (CrackerIndex) indexed.getIndexes().get(0);
+        Assert.assertEquals(3, cracker.pieces());
+        Assert.assertEquals("CrackerIndex(amount) amount LT [50] -> 500",
+                indexed.explain(new Query<Order>(Order.class, "amount < 50")));
+        Assert.assertEquals(3, cracker.pieces());
+
+        Random random = new Random(5);
+        for (int i = 0; i < 50; i++) {
+            int low = random.nextInt(1000);
+            assertSameResults(orders, indexed, "amount >= " + low + " AND amount < " + (low + random.nextInt(200)));
+        }
+        Assert.assertTrue(cracker.pieces() > 50);
+        assertSameResults(orders, indexed, "amount IN (1, 2.0, 2.5) OR amount = 999");
+        assertSameResults(orders, indexed, "amount > 5 AND amount < 'x'");
+        assertSameResults(orders, indexed, "customerId > 97");
+        Assert.assertEquals(2, indexed.getIndexes().size());
+
+        // rows added and removed are merged into the column, keeping its cuts
+        List<Order> remaining = new ArrayList<Order>(orders);
+        for (int i = 0; i < 3000; i += 2) {
+            indexed.remove(orders.get(i));
+            remaining.remove(orders.get(i));
+        }
+        for (int i = 0; i < 500; i++) {
+            Order order = new Order(i, "NEW", i * 1.5);
+            indexed.add(order);
+            remaining.add(order);
+        }
+        for (int i = 0; i < 20; i++) {
+            int low = random.nextInt(1000);
+            assertSameResults(remaining, indexed, "amount > " + low + " AND amount <= " + (low + random.nextInt(200)));
+        }
+    }
+
+    @Test
+    public void testIndexAdvisor() throws Exception {
+        List<Order> orders = orders(10000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders);
+        IndexAdvisor advisor = indexed.getAdvisor();
+        for (int i = 0; i < 20; i++) {
+            new Query<Order>(Order.class, "customerId = " + i + " AND status = 'PAID'").select(indexed);
+        }
+        for (int i = 0; i < 10; i++) {
+            new Query<Order>(Order.class, "amount BETWEEN " + i * 50 + " AND " + (i * 50 + 49)).select(indexed);
+        }
+        Assert.assertEquals(30, advisor.getQueryCount());
+        List<IndexAdvisor.Recommendation> recommendations = advisor.recommend();
+        Assert.assertEquals(4, recommendations.size());
+        Assert.assertEquals(IndexAdvisor.Type.COMPOSITE, recommendations.get(0).getType());
+        Assert.assertEquals(Arrays.asList("customerId", "status"), recommendations.get(0).getProperties());
+        Assert.assertEquals(IndexAdvisor.Type.BITMAP, recommendations.get(2).getType());
+        Assert.assertEquals(IndexAdvisor.Type.SORTED, recommendations.get(3).getType());
+        Assert.assertTrue(recommendations.get(0).getSpeedup() > 2);
+
+        // within a budget, indexes are created by benefit per byte
+        Assert.assertTrue(advisor.apply(0).isEmpty());
+        Assert.assertEquals("[BitmapIndex(status)]", advisor.apply(20000).toString());
+        Assert.assertEquals(3, advisor.apply(1 << 20).size());
+        Assert.assertTrue(advisor.recommend().isEmpty());
+        assertSameResults(orders, indexed, "customerId = 3 AND status = 'PAID'");
+        assertSameResults(orders, indexed, "amount BETWEEN 100 AND 149");
+
+        // queries are recorded while recommendations are estimated on another thread
+        final IndexedCollection<Order> queried = new IndexedCollection<Order>(Order.class, orders(2000));
+        final String[] shapes = {"customerId = 1", "status = 'NEW'", "amount < 10", "customerId = 2 AND amount > 5",
+                "status = 'PAID' AND amount < 3", "customerId = 3 AND status = 'NEW'"};
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread runner = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < 3000; i++) {
+                        new Query<Order>(Order.class, shapes[i % shapes.length]).select(queried);
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        };
+        IndexAdvisor busy = queried.getAdvisor();
+        runner.start();
+        try {
+            while (runner.isAlive()) {
+                busy.recommend();
+                busy.toString();
+                if (busy.getQueryCount() > 100) {
+                    busy.clear();
+                }
+            }
+        } finally {
+            runner.join();
+        }
+        Assert.assertEquals(Collections.emptyList(), failures);
+    }
+
+    @Test
+    public void testIndexAdvisorSampling() throws QueryException {
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class, orders(10000));
+        IndexAdvisor advisor = indexed.getAdvisor();
+        // executions of a shape are costed by their own values, not by those of the first
+        new Query<Order>(Order.class, "amount > 990").select(indexed);
+        for (int i = 0; i < 50; i++) {
+            new Query<Order>(Order.class, "amount > " + (10 + i)).select(indexed);
+        }
+        Assert.assertTrue(advisor.recommend().isEmpty());
+        for (int i = 0; i < 200; i++) {
+            new Query<Order>(Order.class, "amount > " + (980 + i % 10)).select(indexed);
+        }
+        Assert.assertEquals("[SORTED[amount]]", types(advisor.recommend()));
+    }
+
+    private static String types(List<IndexAdvisor.Recommendation> recommendations) {
+        List<String> types = new ArrayList<String>();
+        for (IndexAdvisor.Recommendation recommendation : recommendations) {
+            types.add(recommendation.getType() + recommendation.getProperties().toString());
+        }
+        return types.toString();
+    }
+
+    @Test
+    public void testBulkLoad() throws QueryException {
+        List<Order> orders = orders(200000);
+        Collections.shuffle(orders, new Random(11));
+        IndexedCollection<Order> loaded = declare(new IndexedCollection<Order>(Order.class));
+        IndexedCollection<Order> added = declare(new IndexedCollection<Order>(Order.class));
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            loaded.load(orders.subList(0, 150000), executor);
+            loaded.load(orders.subList(150000, orders.size()), executor);
+        } finally {
+            executor.shutdown();
+        }
+        for (Order order : orders) {
+            added.add(order);
+        }
+        Assert.assertEquals(orders.size(), loaded.size());
+        String[] queries = {
+                "customerId = 42 AND status IN ('SHIPPED', 'PAID')",
+                "amount BETWEEN 100 AND 199.5 AND status = 'NEW'",
+                "status LIKE '%IPP%' AND customerId < 3",
+                "customerId = 7 AND status = 'NEW' AND amount > 500",
+                "status IS NULL AND amount >= 990"
+        };
+        for (String text : queries) {
+            Query<Order> query = new Query<Order>(Order.class, text);
+            Assert.assertEquals(added.explain(query), loaded.explain(query));
+            Assert.assertEquals(text, query.select(added), query.select(loaded));
+        }
+        Query<Order> ordered = new Query<Order>(Order.class, "amount > 998 ORDER BY amount DESC");
+        Assert.assertEquals(ordered.list(added), ordered.list(loaded));
+    }
+
+    /**
+     * Runs the first few tasks, then rejects the rest.
+     */
+    private static Executor rejecting(final int accepted) {
+        return new Executor() {
+            private int executed;
+
+            public void execute(Runnable task) {
+                if (++executed > accepted) {
+                    throw new RejectedExecutionException();
+                }
+                task.run();
+            }
+        };
+    }
+
+    public static class Tagged {
+        private final Object tag;
+
+        public Tagged(Object tag) {
+            this.tag = tag;
+        }
+
+        public Object getTag() {
+            return tag;
+        }
+    }
+
+    @Test
+    public void testFailedLoad() throws QueryException {
+        List<Order> orders = orders(1000);
+        IndexedCollection<Order> indexed = declare(new IndexedCollection<Order>(Order.class, orders.subList(0, 500)));
+        Executor rejecting = rejecting(3);
+        try {
+            indexed.load(orders.subList(500, 1000), rejecting);
+            Assert.fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        List<Change<Order>> batch = new ArrayList<Change<Order>>();
+        batch.add(Change.delete(orders.get(1)));
+        batch.add(Change.update(orders.get(2), orders.get(600)));
+        batch.add(Change.insert(orders.get(700)));
+        long version = indexed.getVersion();
+        try {
+            indexed.apply(batch, rejecting);
+            Assert.fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        Assert.assertEquals(version, indexed.getVersion());
+        List<Order> expected = orders.subList(0, 500);
+        Assert.assertEquals(expected, new ArrayList<Order>(indexed));
+        assertSameResults(expected, indexed, "customerId = 1 OR customerId = 2");
+        assertSameResults(expected, indexed, "customerId = 7 AND status = 'SHIPPED' AND amount > 5");
+        assertSameResults(expected, indexed, "amount BETWEEN 0 AND 10 AND status LIKE '%E%'");
+
+        // undoing a failed load renumbers no row, and keeps the cuts of a cracker index
+        IndexedCollection<Order> adaptive = new IndexedCollection<Order>(Order.class, orders.subList(0, 500));
+        adaptive.setAdaptive(true);
+        for (int low = 0; low < 500; low += 50) {
+            assertSameResults(orders.subList(0, 500), adaptive, "amount >= " + low + " AND amount < " + (low + 25));
+        }
+        CrackerIndex cracker = (CrackerIndex) adaptive.getIndexes().get(0);
+        adaptive.addHashIndex("customerId");
+        int pieces = cracker.pieces();
+        List<Order> remaining = new ArrayList<Order>(orders.subList(0, 500));
+        for (int i = 0; i < 100; i += 3) {
+            adaptive.remove(orders.get(i));
+            remaining.remove(orders.get(i));
+        }
+        Iterator<Order> iterator = adaptive.iterator();
+        List<Order> iterated = new ArrayList<Order>();
+        for (int i = 0; i < 10; i++) {
+            iterated.add(iterator.next());
+        }
+        for (int accepted = 0; accepted < 3; accepted++) {
+            try {
+                adaptive.load(orders.subList(500, 1000), rejecting(accepted));
+                Assert.fail();
+            } catch (RejectedExecutionException e) {
+                // expected
+            }
+        }
+        Assert.assertEquals(pieces, cracker.pieces());
+        while (iterator.hasNext()) {
+            iterated.add(iterator.next());
+        }
+        Assert.assertEquals(remaining, iterated);
+        assertSameResults(remaining, adaptive, "amount >= 20 AND amount < 75 OR customerId = 4");
+
+        // an index left partly built is built again
+        IndexedCollection<Tagged> tagged = new IndexedCollection<Tagged>(Tagged.class);
+        tagged.addBitmapIndex("tag");
+        tagged.add(new Tagged("a"));
+        for (int i = 0; i < 200; i++) {
+            tagged.add(new Tagged("c"));
+        }
+        List<Tagged> batch2 = new ArrayList<Tagged>();
+        batch2.add(new Tagged("a"));
+        batch2.add(new Tagged("b"));
+        batch2.add(new Tagged(new Object() {
+            public int hashCode() {
+                throw new IllegalStateException();
+            }
+        }));
+        try {
+            tagged.load(batch2, null);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Assert.assertEquals(201, tagged.size());
+        Assert.assertEquals(1, new Query<Tagged>(Tagged.class, "tag = 'a'").select(tagged).size());
+        Assert.assertEquals("BitmapIndex(tag) tag EQ [b] -> 0",
+                tagged.explain(new Query<Tagged>(Tagged.class, "tag = 'b'")));
+    }
+
+    private static IndexedCollection<Order> declare(IndexedCollection<Order> indexed) throws QueryException {
+        indexed.addHashIndex("customerId");
+        indexed.addSortedIndex("amount");
+        indexed.addBitmapIndex("status");
+        indexed.addTrigramIndex("status");
+        indexed.addCompositeIndex("customerId", "status", "amount");
+        return indexed;
+    }
+
+    @Test
+    public void testChangeCapture() throws Exception {
+        final IndexedCollection<Order> indexed = declare(new IndexedCollection<Order>(Order.class));
+        List<Order> expected = new ArrayList<Order>();
+        final Query<Order> query = new Query<Order>(Order.class, "customerId = 7 AND amount < 500");
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    while (!done.get()) {
+                        for (Order order : query.select(indexed)) {
+                            Assert.assertEquals(7, order.getCustomerId());
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        };
+        reader.start();
+        Random random = new Random(29);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 50; round++) {
+                List<Change<Order>> batch = new ArrayList<Change<Order>>();
+                for (int i = random.nextInt(500); i > 0; i--) {
+                    Order order = new Order(random.nextInt(20), STATUSES[random.nextInt(STATUSES.length)],
+                            random.nextInt(1000));
+                    int choice = random.nextInt(4);
+                    if (choice == 0 && !expected.isEmpty()) {
+                        Order before = expected.get(random.nextInt(expected.size()));
+                        batch.add(Change.update(before, order));
+                        expected.remove(expected.lastIndexOf(before));
+                        expected.add(order);
+                    } else if (choice == 1 && !expected.isEmpty()) {
+                        Order before = expected.get(random.nextInt(expected.size()));
+                        batch.add(Change.delete(before));
+                        expected.remove(expected.lastIndexOf(before));
+                    } else {
+                        batch.add(Change.insert(order));
+                        expected.add(order);
+                        if (choice == 1) {
+                            // inserted and deleted within the batch
+                            batch.add(Change.delete(order));
+                            expected.remove(expected.size() - 1);
+                        }
+                    }
+                }
+                // deleting an element never inserted has no effect
+                batch.add(Change.delete(new Order(1, "NEW", 1)));
+                long version = indexed.getVersion();
+                Assert.assertEquals(version + 1, indexed.apply(batch, round % 2 == 0 ? executor : null));
+                Assert.assertEquals(expected.size(), indexed.size());
+            }
+        } finally {
+            executor.shutdown();
+            done.set(true);
+            reader.join();
+        }
+        Assert.assertEquals(Collections.emptyList(), failures);
+        Assert.assertEquals(expected, new ArrayList<Order>(indexed));
+        assertSameResults(expected, indexed, "customerId = 7 AND amount < 500");
+        assertSameResults(expected, indexed, "status IN ('NEW', 'PAID') AND customerId < 3");
+        assertSameResults(expected, indexed, "status LIKE '%IPP%' AND amount BETWEEN 100 AND 300");
+    }
+
+    private static List<Predicate> predicates(String text) throws QueryException {
+        List<Predicate> predicates = new ArrayList<Predicate>();
+        Predicate.analyze(new Query<Order>(Order.class, text), predicates);
+        return predicates;
+    }
+
+    public static class Customer {
+        private final long id;
+        private final AtomicInteger reads;
+
+        public Customer(long id, AtomicInteger reads) {
+            this.id = id;
+            this.reads = reads;
+        }
+
+        public long getId() {
+            reads.incrementAndGet();
+            return id;
+        }
+    }
+
+    @Test
+    public void testSubQueryReuse() throws QueryException {
+        AtomicInteger reads = new AtomicInteger();
+        IndexedCollection<Customer> flagged = new IndexedCollection<Customer>(Customer.class);
+        for (long id = 0; id < 10; id++) {
+            flagged.add(new Customer(id, reads));
+        }
+        Catalog catalog = new Catalog();
+        catalog.register("flagged", Customer.class, flagged);
+        String text = "customerId IN (SELECT id FROM flagged)";
+
+        SelectorIndex<Order, String> selectors = new SelectorIndex<Order, String>(Order.class);
+        selectors.add("flagged", new Query<Order>(Order.class, text, catalog));
+        DiscriminationNetwork<Order, String> network = new DiscriminationNetwork<Order, String>(Order.class);
+        network.add("flagged", new Query<Order>(Order.class, text, catalog));
+        final AtomicInteger dispatched = new AtomicInteger();
+        RuleTable<Order> rules = new RuleTable<Order>(Order.class);
+        rules.add(new Query<Order>(Order.class, text, catalog), new Query.Apply<Order>() {
+            public void action(Order object) {
+                dispatched.incrementAndGet();
+            }
+        });
+
+        int selected = 0;
+        int networked = 0;
+        for (Order order : orders(1000)) {
+            selected += selectors.match(order).size();
+            networked += network.match(order).size();
+            rules.dispatch(order);
+        }
+        Assert.assertEquals(100, selected);
+        Assert.assertEquals(100, networked);
+        Assert.assertEquals(100, dispatched.get());
+        // once per standing query, not once per object matched
+        Assert.assertEquals(3 * 10, reads.get());
+
+        // a change to the collection is seen by the next match
+        flagged.add(new Customer(10, reads));
+        Order order = new Order(10, "NEW", 1);
+        Assert.assertEquals(Arrays.asList("flagged"), selectors.match(order));
+        Assert.assertEquals(3 * 10 + 11, reads.get());
+        Assert.assertEquals(Arrays.asList("flagged"), selectors.match(order));
+        Assert.assertEquals(3 * 10 + 11, reads.get());
+
+        // as is another collection registered in its place
+        catalog.register("flagged", Customer.class, new IndexedCollection<Customer>(Customer.class));
+        Assert.assertEquals(Collections.<String>emptyList(), selectors.match(order));
+    }
+
+    @Test
+    public void testBitmap() {
+        Random random = new Random(17);
+        for (int round = 0; round < 20; round++) {
+            TreeSet<Integer> a = new TreeSet<Integer>();
+            TreeSet<Integer> b = new TreeSet<Integer>();
+            Bitmap x = new Bitmap();
+            int range = 1 + random.nextInt(300000);
+            for (int i = random.nextInt(20000); i > 0; i--) {
+                int row = random.nextInt(range);
+                a.add(row);
+                x.add(row);
+            }
+            for (int i = random.nextInt(20000); i > 0; i--) {
+                int row = random.nextInt(range);
+                b.add(row);
+            }
+            for (int i = random.nextInt(5000); i > 0; i--) {
+                int row = random.nextInt(range);
+                a.remove(row);
+                x.remove(row);
+            }
+            Bitmap y = Bitmap.of(toArray(b));
+            Assert.assertArrayEquals(toArray(a), x.toArray());
+            Assert.assertArrayEquals(toArray(b), y.toArray());
+
+            TreeSet<Integer> and = new TreeSet<Integer>(a);
+            and.retainAll(b);
+            TreeSet<Integer> or = new TreeSet<Integer>(a);
+            or.addAll(b);
+            TreeSet<Integer> andNot = new TreeSet<Integer>(a);
+            andNot.removeAll(b);
+            Assert.assertArrayEquals(toArray(and), Bitmap.and(x, y).toArray());
+            Assert.assertArrayEquals(toArray(or), Bitmap.or(x, y).toArray());
+            Assert.assertArrayEquals(toArray(andNot), Bitmap.andNot(x, y).toArray());
+            Assert.assertArrayEquals(toArray(a), x.toArray());
+        }
+    }
+
+    @Test
+    public void testLongPostingsMap() {
+        Random random = new Random(23);
+        Map<Long, TreeSet<Integer>> expected = new HashMap<Long, TreeSet<Integer>>();
+        LongPostingsMap map = new LongPostingsMap();
+        for (int i = 0; i < 200000; i++) {
+            // few keys and rows, so that adds and removes collide often
+            long key = random.nextInt(3000) * 0x100000001L;
+            int row = random.nextInt(20);
+            TreeSet<Integer> rows = expected.get(key);
+            if (random.nextInt(3) > 0) {
+                if (rows == null) {
+                    rows = new TreeSet<Integer>();
+                    expected.put(key, rows);
+                }
+                Assert.assertEquals(rows.isEmpty(), map.add(key, row));
+                rows.add(row);
+            } else {
+                Assert.assertEquals(rows != null && rows.remove(row), map.remove(key, row));
+                if (rows != null && rows.isEmpty()) {
+                    expected.remove(key);
+                }
+            }
+        }
+        Assert.assertEquals(expected.size(), map.size());
+        for (int key = 0; key < 3000; key++) {
+            TreeSet<Integer> rows = expected.get(key * 0x100000001L);
+            Assert.assertArrayEquals(rows != null ? toArray(rows) : new int[0], map.get(key * 0x100000001L));
+        }
+    }
+
+    private static int[] toArray(Set<Integer> set) {
+        int[] array = new int[set.size()];
+        int n = 0;
+        for (Integer value : set) {
+            array[n++] = value;
+        }
+        return array;
+    }
+
+    @Test
+    public void testMaintenance() throws QueryException {
+        List<Order> orders = orders(1000);
+        IndexedCollection<Order> indexed = new IndexedCollection<Order>(Order.class);
+        indexed.addHashIndex("customerId");
+        indexed.addBitmapIndex("status");
+        indexed.addAll(orders);
+        for (Iterator<Order> i = indexed.iterator(); i.hasNext(); ) {
+            if (i.next().getCustomerId() % 2 == 0) {
+                i.remove();
+            }
+        }
+        for (int i = 0; i < orders.size(); i += 3) {
+            indexed.remove(orders.get(i));
+        }
+        List<Order> remaining = new ArrayList<Order>(indexed);
+        Assert.assertEquals(remaining.size(), indexed.size());
+        assertSameResults(remaining, indexed, "customerId IN (1, 3, 4, 5)");
+        assertSameResults(remaining, indexed, "status IS NULL OR customerId = 1");
+        Assert.assertTrue(indexed.contains(orders.get(1)));
+        Assert.assertFalse(indexed.contains(orders.get(3)));
+
+        indexed.clear();
+        Assert.assertEquals(0, new Query<Order>(Order.class, "customerId = 1").select(indexed).size());
+    }
+}
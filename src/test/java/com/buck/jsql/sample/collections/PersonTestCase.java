@@ -16,14 +16,39 @@
 
 package com.buck.jsql.sample.collections;
 
+import com.buck.jsql.Catalog;
+import com.buck.jsql.Columns;
+import com.buck.jsql.DiscriminationNetwork;
+import com.buck.jsql.Join;
+import com.buck.jsql.PreparedQuery;
 import com.buck.jsql.Query;
+import com.buck.jsql.QueryBatch;
+import com.buck.jsql.QueryCache;
 import com.buck.jsql.QueryException;
+import com.buck.jsql.RuleTable;
+import com.buck.jsql.SelectorIndex;
+import com.buck.jsql.SharedScanService;
+import com.buck.jsql.Tuple;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
+import java.util.RandomAccess;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Tests querying a collection of person objects.
@@ -205,4 +230,387 @@ public class PersonTestCase {
         Collection<Person> results = query.select(people);
         Assert.assertEquals(0, results.size());
     }
+
+    @Test
+    public void testProjection() throws QueryException {
+        Vector<Person> people = new Vector<Person>();
+        for (int i = 0; i < 10; i++) {
+            Person p = new Person();
+            p.setName("p" + i);
+            p.setAge(i * 10);
+            people.add(p);
+        }
+        Query<Person> query = new Query<Person>(Person.class, "SELECT name, age WHERE age >= 50");
+        List<Tuple> tuples = query.project(people);
+        Assert.assertEquals(5, tuples.size());
+        Assert.assertEquals("p5", tuples.get(0).get("name"));
+        Assert.assertEquals(50, tuples.get(0).get(1));
+
+        Columns columns = query.columns(people);
+        Assert.assertEquals(5, columns.size());
+        long[] ages = columns.getLongs("age");
+        Assert.assertEquals(90L, ages[4]);
+        Assert.assertEquals("p9", columns.getObjects("name")[4]);
+    }
+
+    @Test
+    public void testHashJoin() throws QueryException {
+        Vector<Person> parents = new Vector<Person>();
+        Vector<Person> children = new Vector<Person>();
+        for (int i = 0; i < 10; i++) {
+            Person parent = new Person();
+            parent.setName("parent" + i);
+            parent.setAge(i);
+            parents.add(parent);
+            for (int j = 0; j < 3; j++) {
+                Person child = new Person();
+                child.setName("child" + i);
+                child.setAge(i);
+                children.add(child);
+            }
+        }
+        Join<Person, Person> join = new Join<Person, Person>(
+                new Query<Person>(Person.class, "age < 5"), "age",
+                new Query<Person>(Person.class, "name <> 'child0'"), "age");
+        List<Join.Pair<Person, Person>> pairs = join.join(parents, children);
+        Assert.assertEquals(12, pairs.size());
+        for (Join.Pair<Person, Person> pair : pairs) {
+            Assert.assertEquals(pair.getLeft().getAge(), pair.getRight().getAge());
+        }
+    }
+
+    @Test
+    public void testSemiJoin() throws QueryException {
+        Vector<Person> people = new Vector<Person>();
+        Vector<Person> retirees = new Vector<Person>();
+        for (int i = 0; i < 10; i++) {
+            Person p = new Person();
+            p.setName("p" + i);
+            p.setAge(i * 10);
+            people.add(p);
+            Person r = new Person();
+            r.setName("p" + i);
+            r.setAge(i < 3 ? 70 : 30);
+            retirees.add(r);
+        }
+        Catalog catalog = new Catalog();
+        catalog.register("retirees", Person.class, retirees);
+        Query<Person> query = new Query<Person>(Person.class,
+                "name IN (SELECT name FROM retirees WHERE age > 65)", catalog);
+        Assert.assertEquals(3, query.select(people).size());
+        query = new Query<Person>(Person.class,
+                "name NOT IN (SELECT name FROM retirees WHERE age > 65) AND age < 50", catalog);
+        Assert.assertEquals(2, query.select(people).size());
+    }
+
+    @Test
+    public void testInPredicate() throws QueryException {
+        Vector<Person> people = new Vector<Person>();
+        for (int i = 0; i < 10; i++) {
+            Person p = new Person();
+            p.setName("p" + i);
+            p.setAge(i);
+            people.add(p);
+        }
+        Assert.assertEquals(3, new Query<Person>(Person.class, "age IN (1, 3, 5.0)").select(people).size());
+        Assert.assertEquals(2, new Query<Person>(Person.class, "name IN ('p1', 'p2', 'x')").select(people).size());
+        Assert.assertEquals(8, new Query<Person>(Person.class, "age NOT IN (0, 9)").select(people).size());
+        Assert.assertEquals(1, new Query<Person>(Person.class, "age IN (age - 1, 2 * 2) AND age < 5").select(people).size());
+
+        StringBuilder list = new StringBuilder("age IN (-1");
+        for (int i = 0; i < 10000; i += 2) {
+            list.append(", ").append(i);
+        }
+        list.append(")");
+        Assert.assertEquals(5, new Query<Person>(Person.class, list.toString()).select(people).size());
+    }
+
+    @Test
+    public void testPreparedQuery() throws QueryException {
+        Vector<Person> people = new Vector<Person>();
+        for (int i = 0; i < 10; i++) {
+            Person p = new Person();
+            p.setName("p" + i);
+            p.setAge(i * 10);
+            people.add(p);
+        }
+        PreparedQuery<Person> prepared = new PreparedQuery<Person>(Person.class,
+                "age >= ? AND (name <> :name OR age > :age + 0)");
+        Assert.assertEquals(3, prepared.getParameterCount());
+        Assert.assertEquals("name", prepared.getParameterName(1));
+        Assert.assertEquals(5, prepared.select(people, 50, "p1", 0).size());
+        Assert.assertEquals(4, prepared.select(people, 50, "p5", 50).size());
+        Assert.assertEquals(2, prepared.bind(80, "p1", 0).select(people).size());
+
+        HashMap<String, Object> named = new HashMap<String, Object>();
+        named.put("name", "p1");
+        named.put("age", 0);
+        boolean caught = false;
+        try {
+            prepared.bind(named);
+        } catch (QueryException e) {
+            caught = true;
+        }
+        Assert.assertTrue("Positional parameter bound by name", caught);
+
+        caught = false;
+        try {
+            new Query<Person>(Person.class, "age >= ?").select(people);
+        } catch (QueryException e) {
+            caught = true;
+        }
+        Assert.assertTrue("Unbound parameter", caught);
+    }
+
+    @Test
+    public void testSelectorIndex() throws QueryException {
+        String[] selectors = {
+                "age = 30", "age > 50 AND name = 'p7'", "age BETWEEN 20 AND 40", "40 >= age",
+                "name IN ('p1', 'p2') AND age < 15", "name LIKE 'p%' AND age >= 90", "name <> 'p3'",
+                "age = 30 OR age = 60", "name > 'p5' AND name <= 'p8'", "age IN (0, 10, 20.0)"
+        };
+        QueryCache cache = new QueryCache(16);
+        SelectorIndex<Person, String> index = new SelectorIndex<Person, String>(Person.class);
+        for (String selector : selectors) {
+            index.add(selector, cache.<Person>getQuery(Person.class, selector));
+        }
+        index.add("age = 30", new Query<Person>(Person.class, "age = 31"));
+        Assert.assertEquals(selectors.length, index.size());
+        Assert.assertTrue(index.remove("name <> 'p3'"));
+        Assert.assertFalse(index.remove("name <> 'p3'"));
+
+        for (int i = 0; i < 10; i++) {
+            Person p = new Person();
+            p.setName("p" + i);
+            p.setAge(i * 10);
+            Set<String> expected = new HashSet<String>();
+            for (String selector : selectors) {
+                String text = selector.equals("age = 30") ? "age = 31" : selector;
+                if (!selector.equals("name <> 'p3'") && new Query<Person>(Person.class, text).matches(p)) {
+                    expected.add(selector);
+                }
+            }
+            Assert.assertEquals(p.getName(), expected, new HashSet<String>(index.match(p)));
+        }
+    }
+
+    @Test
+    public void testDiscriminationNetwork() throws QueryException {
+        String[] selectors = {
+                "name = 'p3' AND age > 20", "age > 20 AND name = 'p3' AND age < 50",
+                "NOT (name = 'p3' AND age > 20) OR age IS NULL", "name LIKE 'p%' OR age = 40",
+                "age > 20 OR name = 'p3'", "age BETWEEN 10 AND 30 AND NOT name IN ('p1', 'p2')"
+        };
+        DiscriminationNetwork<Person, String> network = new DiscriminationNetwork<Person, String>(Person.class);
+        for (String selector : selectors) {
+            network.add(selector, new Query<Person>(Person.class, selector));
+        }
+        // the tests name = 'p3' and age > 20, and their conjunction, are shared
+        Assert.assertEquals(16, network.getNodeCount());
+
+        for (int i = 0; i < 10; i++) {
+            Person p = new Person();
+            p.setName("p" + i);
+            p.setAge(i * 10);
+            List<String> expected = new ArrayList<String>();
+            for (String selector : selectors) {
+                if (new Query<Person>(Person.class, selector).matches(p)) {
+                    expected.add(selector);
+                }
+            }
+            Assert.assertEquals(p.getName(), expected, network.match(p));
+        }
+
+        for (String selector : selectors) {
+            Assert.assertTrue(network.remove(selector));
+        }
+        Assert.assertEquals(0, network.getNodeCount());
+    }
+
+    @Test
+    public void testRuleTable() throws QueryException {
+        String[] rules = {
+                "name = 'p1' AND age > 5", "name IN ('p2', 'p3') AND age < 25", "age = 40",
+                "name = 'p5' OR age = 60", "name = 'p7' AND age >= 70", "name LIKE 'p%' AND age > 80",
+                "name = 'p9'", "age BETWEEN 0 AND 20"
+        };
+        final int[] fired = new int[rules.length];
+        RuleTable<Person> table = new RuleTable<Person>(Person.class);
+        for (int i = 0; i < rules.length; i++) {
+            final int rule = i;
+            table.add(new Query<Person>(Person.class, rules[i]), new Query.Apply<Person>() {
+                public void action(Person person) {
+                    fired[rule]++;
+                }
+            });
+        }
+        Assert.assertEquals(rules.length, table.size());
+
+        int[] expected = new int[rules.length];
+        for (int i = 0; i < 100; i++) {
+            Person p = new Person();
+            p.setName("p" + i % 10);
+            p.setAge(i);
+            int first = -1;
+            for (int j = 0; j < rules.length && first < 0; j++) {
+                if (new Query<Person>(Person.class, rules[j]).matches(p)) {
+                    first = j;
+                }
+            }
+            Assert.assertEquals(p.getName() + " " + p.getAge(), first, table.find(p));
+            Assert.assertEquals(first >= 0, table.dispatch(p));
+            if (first >= 0) {
+                expected[first]++;
+            }
+        }
+        Assert.assertArrayEquals(expected, fired);
+    }
+
+    @Test
+    public void testQueryBatch() throws QueryException {
+        Vector<Person> people = new Vector<Person>();
+        for (int i = 0; i < 100; i++) {
+            Person p = new Person();
+            p.setName("p" + i % 10);
+            p.setAge(i);
+            people.add(p);
+        }
+        String[] selectors = {"age >= 50", "name = 'p3' AND age < 50", "age IN (1, 2, 3) OR name LIKE '%9'"};
+        final int[] applied = new int[1];
+        QueryBatch<Person> batch = new QueryBatch<Person>(Person.class);
+        for (String selector : selectors) {
+            batch.add(new Query<Person>(Person.class, selector), new Query.Apply<Person>() {
+                public void action(Person person) {
+                    applied[0]++;
+                }
+            });
+        }
+        List<Set<Person>> results = batch.select(people);
+        int total = 0;
+        for (int i = 0; i < selectors.length; i++) {
+            Assert.assertEquals(new Query<Person>(Person.class, selectors[i]).select(people), results.get(i));
+            total += results.get(i).size();
+        }
+        batch.apply(people);
+        Assert.assertEquals(total, applied[0]);
+    }
+
+    @Test
+    public void testSharedScanService() throws Exception {
+        final List<Person> people = new ArrayList<Person>();
+        for (int i = 0; i < 10000; i++) {
+            Person p = new Person();
+            p.setName("p" + i % 10);
+            p.setAge(i % 100);
+            people.add(p);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SharedScanService service = new SharedScanService(executor, 64);
+            String[] selectors = {"age >= 50", "name = 'p3' AND age < 50", "age IN (1, 2, 3)", "age > 1000"};
+            List<Future<Set<Person>>> futures = new ArrayList<Future<Set<Person>>>();
+            for (String selector : selectors) {
+                futures.add(service.select(people, new Query<Person>(Person.class, selector)));
+            }
+            for (int i = 0; i < selectors.length; i++) {
+                Assert.assertEquals(new Query<Person>(Person.class, selectors[i]).select(people),
+                        futures.get(i).get(10, TimeUnit.SECONDS));
+            }
+
+            Future<Set<Person>> failed = service.select(people, new Query<Person>(Person.class, "age > ?"));
+            boolean caught = false;
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                caught = e.getCause() instanceof QueryException;
+            }
+            Assert.assertTrue("Unbound parameter", caught);
+
+            // an error escaping the scan fails its riders, and later queries scan anew
+            Future<Void> broken = service.apply(people, new Query<Person>(Person.class, "age = 7"),
+                    new Query.Apply<Person>() {
+                        public void action(Person object) {
+                            throw new LinkageError("action");
+                        }
+                    });
+            caught = false;
+            try {
+                broken.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                caught = e.getCause() instanceof LinkageError;
+            }
+            Assert.assertTrue("Error in action", caught);
+            Assert.assertEquals(100, service.select(people, new Query<Person>(Person.class, "age = 7"))
+                    .get(10, TimeUnit.SECONDS).size());
+
+            // a throwable that is neither an error nor an exception is reported as the cause
+            Future<Void> thrown = service.apply(people, new Query<Person>(Person.class, "age = 7"),
+                    new Query.Apply<Person>() {
+                        public void action(Person object) {
+                            PersonTestCase.<RuntimeException>sneakyThrow(new Throwable("action"));
+                        }
+                    });
+            caught = false;
+            try {
+                thrown.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                caught = e.getCause() instanceof ExecutionException
+                        && "action".equals(e.getCause().getCause().getMessage());
+            }
+            Assert.assertTrue("Throwable in action", caught);
+        } finally {
+            executor.shutdown();
+        }
+
+        // queries submitted while a scan is pending ride it, reading each element once
+        final AtomicInteger reads = new AtomicInteger();
+        List<Person> counted = new CountingList<Person>(people, reads);
+        final List<Runnable> scans = new ArrayList<Runnable>();
+        SharedScanService service = new SharedScanService(new Executor() {
+            public void execute(Runnable command) {
+                scans.add(command);
+            }
+        }, 64);
+        String[] selectors = {"age >= 50", "name = 'p3' AND age < 50", "age IN (1, 2, 3)"};
+        List<Future<Set<Person>>> futures = new ArrayList<Future<Set<Person>>>();
+        for (String selector : selectors) {
+            futures.add(service.select(counted, new Query<Person>(Person.class, selector)));
+        }
+        Assert.assertEquals(1, scans.size());
+        scans.get(0).run();
+        Assert.assertEquals(people.size(), reads.get());
+        for (int i = 0; i < selectors.length; i++) {
+            Assert.assertEquals(new Query<Person>(Person.class, selectors[i]).select(people),
+                    futures.get(i).get(0, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * A list counting the elements read from it.
+     */
+    private static final class CountingList<E> extends AbstractList<E> implements RandomAccess {
+        private final List<E> list;
+        private final AtomicInteger reads;
+
+        CountingList(List<E> list, AtomicInteger reads) {
+            this.list = list;
+            this.reads = reads;
+        }
+
+        @Override
+        public E get(int index) {
+            reads.incrementAndGet();
+            return list.get(index);
+        }
+
+        @Override
+        public int size() {
+            return list.size();
+        }
+    }
+
+    @SuppressWarnings({"unchecked"})
+    private static <E extends Throwable> void sneakyThrow(Throwable t) throws E {
+        throw (E) t;
+    }
 }